@@ -0,0 +1,87 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.model.Developer;
+import org.apache.maven.model.License;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Patching of the project metadata into DESCRIPTION by the sources goal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DescriptionBenchmark
+{
+	@Param({ "20", "2000" }) int	dependencies;
+
+	private RSourcesMojo			mojo;
+	private byte					contents[];
+	private File					description;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		MavenProject project = new MavenProject();
+		project.setVersion("1.2.3-SNAPSHOT");
+		License license = new License();
+		license.setName("EUPL-1.1");
+		project.getLicenses().add(license);
+		for (int i = 0; i < 3; i++)
+		{
+			Developer developer = new Developer();
+			developer.setName("Developer " + i);
+			developer.setEmail("developer" + i + "@example.com");
+			project.getDevelopers().add(developer);
+		}
+
+		mojo = new RSourcesMojo();
+		mojo.project = project;
+		mojo.encoding = "UTF-8";
+		mojo.setLog(new QuietLog());
+
+		contents = SyntheticPackage.description(dependencies, dependencies / 2).getBytes(StandardCharsets.UTF_8);
+		description = File.createTempFile("DESCRIPTION", "");
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() throws IOException
+	{
+		Files.write(description.toPath(), contents);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		description.delete();
+	}
+
+	@Benchmark
+	public long patchDescription() throws MojoExecutionException, IOException
+	{
+		mojo.patchDescription(description);
+		return description.length();
+	}
+}
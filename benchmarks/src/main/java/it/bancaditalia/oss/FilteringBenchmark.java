@@ -0,0 +1,72 @@
+package it.bancaditalia.oss;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.shared.filtering.MultiDelimiterInterpolatorFilterReaderLineEnding;
+import org.codehaus.plexus.interpolation.PropertiesBasedValueSource;
+import org.codehaus.plexus.interpolation.multi.MultiDelimiterStringSearchInterpolator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filtering of R sources with the default delimiters, as done by maven-filtering for the sources goal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilteringBenchmark
+{
+	@Param({ "1000", "100000" }) int					lines;
+
+	private String										source;
+	private MultiDelimiterStringSearchInterpolator	interpolator;
+	private final char									buffer[]	= new char[8192];
+
+	@Setup
+	public void setup()
+	{
+		source = SyntheticPackage.source(lines);
+
+		Properties properties = new Properties();
+		properties.setProperty("project.version", "1.2.3-SNAPSHOT");
+		properties.setProperty("build.label", "benchmark");
+		interpolator = new MultiDelimiterStringSearchInterpolator();
+		interpolator.setDelimiterSpecs(new LinkedHashSet<>(Arrays.asList("${*}", "@")));
+		interpolator.addValueSource(new PropertiesBasedValueSource(properties));
+	}
+
+	@Benchmark
+	public long filter() throws IOException
+	{
+		MultiDelimiterInterpolatorFilterReaderLineEnding filter = new MultiDelimiterInterpolatorFilterReaderLineEnding(new StringReader(source),
+				interpolator, true);
+		filter.setDelimiterSpecs(new LinkedHashSet<>(Arrays.asList("${*}", "@")));
+
+		long length = 0;
+		try (Reader reader = filter)
+		{
+			int read;
+			while ((read = reader.read(buffer, 0, buffer.length)) >= 0)
+				length += read;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,99 @@
+package it.bancaditalia.oss;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.JRI.REXP;
+
+/**
+ * Building an R statement and evaluating it through {@link AbstractRMojo#tryCatch(RSession, String)}, either on an
+ * in-memory stub session or through the worker protocol against a stub daemon. The result is a character vector of
+ * the size of the output of a check.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark
+{
+	@Param({ "1", "1000", "100000" }) int	resultSize;
+
+	private RBuildMojo						mojo;
+	private StubRSession					stub;
+	private StubRDaemon						daemon;
+	private RWorker							worker;
+	private RSession						protocol;
+
+	@Setup
+	public void setup() throws IOException, MojoExecutionException
+	{
+		mojo = new RBuildMojo();
+		mojo.setLog(new QuietLog());
+
+		String values[] = new String[resultSize];
+		for (int i = 0; i < resultSize; i++)
+			values[i] = "checking R code for possible problems ... NOTE (line " + i + ")";
+		stub = new StubRSession(new REXP(values));
+
+		daemon = new StubRDaemon(values);
+		worker = RWorker.connect(daemon.getAddress(), StubRDaemon.TOKEN, new QuietLog());
+		protocol = new RSession() {
+			@Override
+			public REXP eval(String expression) throws MojoExecutionException
+			{
+				return worker.eval(expression);
+			}
+
+			@Override
+			public REXP eval(String expression, long timeout) throws MojoExecutionException
+			{
+				return worker.eval(expression, timeout);
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+	}
+
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		worker.destroy();
+		daemon.close();
+	}
+
+	@Benchmark
+	public REXP stubSession() throws MojoExecutionException
+	{
+		return mojo.tryCatch(stub, statement());
+	}
+
+	@Benchmark
+	public REXP workerProtocol() throws MojoExecutionException
+	{
+		return mojo.tryCatch(protocol, statement());
+	}
+
+	private String statement()
+	{
+		return "devtools::check_built(path = '" + mojo.sanitize("/home/builder/workspace/synthetic/target/synthetic_1.2.3.tar.gz")
+				+ "', cran = FALSE, quiet = TRUE)";
+	}
+}
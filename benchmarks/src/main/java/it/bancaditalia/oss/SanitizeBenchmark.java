@@ -0,0 +1,51 @@
+package it.bancaditalia.oss;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Escaping of paths before they are embedded in R statements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitizeBenchmark
+{
+	private RBuildMojo	mojo;
+	private String		unixPath;
+	private String		windowsPath;
+
+	@Setup
+	public void setup()
+	{
+		mojo = new RBuildMojo();
+		mojo.setLog(new QuietLog());
+		unixPath = "/home/builder/workspace/projects/synthetic-package/target/classes";
+		windowsPath = "C:\\Users\\O'Brien\\workspace\\projects\\synthetic-package\\target\\classes";
+	}
+
+	@Benchmark
+	public String sanitizeUnixPath()
+	{
+		return mojo.sanitize(unixPath);
+	}
+
+	@Benchmark
+	public String sanitizeWindowsPath()
+	{
+		return mojo.sanitize(windowsPath);
+	}
+}
@@ -0,0 +1,95 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Java stand-in for <code>rworker.R</code> in daemon mode, which speaks the worker protocol on a loopback socket and
+ * answers every request with the same character vector, so that the plugin side of the protocol can be measured
+ * without R.
+ */
+final class StubRDaemon implements AutoCloseable
+{
+	static final String			TOKEN	= "benchmark";
+
+	private final ServerSocket	server;
+	private final String		response;
+
+	/**
+	 * @param values The character vector answered to every request.
+	 * @throws IOException if the socket cannot be opened.
+	 */
+	StubRDaemon(String values[]) throws IOException
+	{
+		// No console output, then the response
+		StringBuilder builder = new StringBuilder("\n\u001e\nS\n").append(values.length).append('\n');
+		for (String value : values)
+		{
+			for (byte b : value.getBytes(StandardCharsets.UTF_8))
+				builder.append(String.format("%02x", b & 0xFF));
+			builder.append('\n');
+		}
+		this.response = builder.toString();
+		this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+
+		Thread thread = new Thread("Stub R daemon") {
+			@Override
+			public void run()
+			{
+				while (!server.isClosed())
+					try (Socket socket = server.accept())
+					{
+						serve(socket);
+					}
+					catch (IOException e)
+					{
+						// client gone or server closed
+					}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return The address where the stub listens.
+	 */
+	InetSocketAddress getAddress()
+	{
+		return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+	}
+
+	private void serve(Socket socket) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		if (!TOKEN.equals(in.readLine()))
+			return;
+		out.write("OK\n");
+		out.flush();
+
+		String count;
+		while ((count = in.readLine()) != null)
+		{
+			for (int i = Integer.parseInt(count); i > 0; i--)
+				in.readLine();
+			out.write(response);
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		server.close();
+	}
+}
@@ -0,0 +1,36 @@
+package it.bancaditalia.oss;
+
+import org.rosuda.JRI.REXP;
+
+/**
+ * An in-memory R session that answers every expression with the same value.
+ */
+final class StubRSession implements RSession
+{
+	private final REXP result;
+
+	/**
+	 * @param result The value of every expression.
+	 */
+	StubRSession(REXP result)
+	{
+		this.result = result;
+	}
+
+	@Override
+	public REXP eval(String expression)
+	{
+		return result;
+	}
+
+	@Override
+	public REXP eval(String expression, long timeout)
+	{
+		return result;
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
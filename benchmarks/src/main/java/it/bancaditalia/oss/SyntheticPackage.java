@@ -0,0 +1,74 @@
+package it.bancaditalia.oss;
+
+import java.util.Random;
+
+/**
+ * Generates the contents of large synthetic R packages. The generator is seeded, so that every run of the benchmarks
+ * works on the same data.
+ */
+final class SyntheticPackage
+{
+	private static final long SEED = 20180417L;
+
+	private SyntheticPackage()
+	{
+	}
+
+	/**
+	 * @param dependencies The number of packages listed in Imports.
+	 * @param files The number of source files listed in Collate.
+	 * @return The contents of a DESCRIPTION file, with long continued fields.
+	 */
+	static String description(int dependencies, int files)
+	{
+		Random random = new Random(SEED);
+		StringBuilder builder = new StringBuilder();
+		builder.append("Package: synthetic\n");
+		builder.append("Type: Package\n");
+		builder.append("Title: A Synthetic Package for Benchmarks\n");
+		builder.append("Version: 0.0.1\n");
+		builder.append("Author: Somebody\n");
+		builder.append("Maintainer: Somebody <somebody@example.com>\n");
+		builder.append("Description: ");
+		for (int i = 0; i < dependencies; i++)
+			builder.append(i % 10 == 9 ? "\n    " : "").append(word(random)).append(' ');
+		builder.append("\nLicense: file LICENSE\n");
+		builder.append("Imports:");
+		for (int i = 0; i < dependencies; i++)
+			builder.append(i > 0 ? "," : "").append("\n    ").append(word(random)).append(" (>= ").append(random.nextInt(5)).append('.')
+					.append(random.nextInt(20)).append(')');
+		builder.append("\nCollate:");
+		for (int i = 0; i < files; i++)
+			builder.append("\n    'file").append(i).append(".R'");
+		builder.append("\nEncoding: UTF-8\n");
+		return builder.toString();
+	}
+
+	/**
+	 * @param lines The approximate number of lines.
+	 * @return The contents of an R source file with roxygen comments and some property references to filter.
+	 */
+	static String source(int lines)
+	{
+		Random random = new Random(SEED);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; builder.length() < lines * 40; i++)
+		{
+			builder.append("#' Function number ").append(i).append(" of version ${project.version}\n");
+			builder.append("#'\n#' @param x A ").append(word(random)).append("\n#' @export\n");
+			builder.append("f").append(i).append(" <- function(x) {\n");
+			builder.append("  y <- paste0('").append(word(random)).append("', x, \"@build.label@\")\n");
+			builder.append("  if (length(y) > ").append(random.nextInt(100)).append(") stop('too long')\n");
+			builder.append("  y\n}\n\n");
+		}
+		return builder.toString();
+	}
+
+	private static String word(Random random)
+	{
+		char chars[] = new char[3 + random.nextInt(8)];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = (char) ('a' + random.nextInt(26));
+		return new String(chars);
+	}
+}
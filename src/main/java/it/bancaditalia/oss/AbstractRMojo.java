@@ -1,34 +1,34 @@
 package it.bancaditalia.oss;
 
 import java.io.File;
-import java.lang.reflect.Field;
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.execution.ProjectDependencyGraph;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
 import org.rosuda.JRI.REXP;
-import org.rosuda.JRI.Rengine;
-
-import com.sun.jna.Library;
-import com.sun.jna.Native;
-import com.sun.jna.Platform;
 
 public abstract class AbstractRMojo extends AbstractMojo
 {
-	private static final String														ERROR_ATTR		= "JRIERROR";
 	protected static final Pattern													RVERSIONPATTERN	= Pattern.compile("(\\d+)[-.](\\d+)(?=[-.](\\d+))?.*");
-	private static Rengine															engine;
 
 	@Component protected MavenProjectHelper											mavenProjectHelper;
 	@Parameter(defaultValue = "${project}", readonly = true) protected MavenProject	project;
 	@Parameter(defaultValue = "${session}", readonly = true) protected MavenSession	session;
+	@Parameter(defaultValue = "${mojoExecution}", readonly = true) MojoExecution		mojoExecution;
 
 	/**
 	 * Location of R installation directory. Default value is taken from R_HOME environment variable.
@@ -40,6 +40,24 @@ public abstract class AbstractRMojo extends AbstractMojo
 	 */
 	@Parameter(property = "sharedLibs") File[]										sharedLibs;
 
+	/**
+	 * The R backend to use. With {@code jri} R is embedded in the Maven JVM and all the goals of the build are evaluated
+	 * one at a time. With {@code workers} R runs in a pool of Rscript processes, so that the modules of a parallel build
+	 * are processed concurrently. With {@code daemon} R runs in a background process with devtools already loaded,
+	 * which is shared by subsequent builds and serves one goal at a time.
+	 */
+	@Parameter(defaultValue = RBackend.JRI, property = "R.backend") String					backend;
+
+	/**
+	 * Maximum number of R processes started by the {@code workers} backend. Defaults to the number of available processors.
+	 */
+	@Parameter(defaultValue = "0", property = "R.workers") int								workers;
+
+	/**
+	 * Number of seconds after which an idle R daemon shuts down.
+	 */
+	@Parameter(defaultValue = "10800", property = "R.daemon.idleTimeout") int				daemonIdleTimeout;
+
 	/**
 	 * True if the artifact produced by the build should be attached to the project.
 	 */
@@ -50,126 +68,347 @@ public abstract class AbstractRMojo extends AbstractMojo
 	 */
 	@Parameter(property = "classifier") String										classifier;
 
-	private interface libc extends Library
+	/**
+	 * Root directory of the local caches shared by all the builds of the current user.
+	 */
+	@Parameter(defaultValue = "${user.home}/.cache/r-maven-plugin", property = "R.cacheDirectory") File	cacheDirectory;
+
+	/**
+	 * Set it to {@code true} to record the wall time, I/O volume and R memory usage of each goal and R statement in
+	 * {@code target/r-profile.json}. R memory is measured after a garbage collection, which slows down the build.
+	 */
+	@Parameter(defaultValue = "false", property = "R.profile") boolean								profile;
+
+	/**
+	 * Number of make jobs compiling the native code of packages. Defaults to the number of workers, unless MAKEFLAGS is
+	 * already set in the environment. Goals running several R processes at once divide the jobs among them.
+	 */
+	@Parameter(defaultValue = "0", property = "R.native.jobs") int									nativeJobs;
+
+	/**
+	 * Set it to {@code false} to compile native code without the ccache object cache.
+	 */
+	@Parameter(defaultValue = "true", property = "R.native.cache") boolean							useObjectCache;
+
+	/**
+	 * Maximum size of the object cache, in megabytes.
+	 */
+	@Parameter(defaultValue = "2048", property = "R.native.cacheSize") long							objectCacheSize;
+
+	/**
+	 * The ccache executable, looked up in the PATH if not absolute. The object cache is disabled if it cannot be found.
+	 */
+	@Parameter(defaultValue = "ccache", property = "R.native.ccache") String							ccache;
+
+	/**
+	 * Set it to {@code false} to log the R console output at debug level only. Otherwise, the output is logged as soon
+	 * as R produces it, and R CMD build and R CMD check report their progress.
+	 */
+	@Parameter(defaultValue = "true", property = "R.console") boolean								streamConsole;
+
+	/**
+	 * Maximum number of seconds the R evaluations and R processes of a goal may take overall. When the time is up, R is
+	 * interrupted and the goal fails. Zero means no limit.
+	 */
+	@Parameter(defaultValue = "0", property = "R.goalTimeout") int									goalTimeout;
+
+	/**
+	 * Maximum number of seconds a single R statement or R process may take. When the time is up, R is interrupted and
+	 * the goal fails; if R does not respond, its process is terminated. Zero means no limit.
+	 */
+	@Parameter(defaultValue = "0", property = "R.statementTimeout") int							statementTimeout;
+
+	private BuildProfile.Goal																		profiledGoal;
+	private long																					deadline;
+	private Map<String, String>																		nativeEnvironment;
+	private int																						makeJobs;
+	private final List<ContentCache>																caches	= new ArrayList<>();
+
+	@Override
+	public final void execute() throws MojoExecutionException, MojoFailureException
+	{
+		deadline = goalTimeout > 0 ? System.currentTimeMillis() + goalTimeout * 1000L : 0;
+		try
+		{
+			if (profile)
+				executeProfiled();
+			else
+				executeGoal();
+		}
+		finally
+		{
+			// Caches are trimmed once per goal, as trimming walks the whole cache
+			for (ContentCache cache : caches)
+				try
+				{
+					cache.trim();
+				}
+				catch (IOException e)
+				{
+					getLog().warn("Cannot trim cache: " + e.getMessage());
+				}
+		}
+	}
+
+	private void executeProfiled() throws MojoExecutionException, MojoFailureException
 	{
-		libc INSTANCE = (libc) Native.loadLibrary(Platform.isWindows() ? "msvcrt" : "c", libc.class);
+		BuildProfile report = BuildProfile.get(new File(project.getBuild().getDirectory(), "r-profile.json"), project.getId(),
+				session.getStartTime());
+		profiledGoal = report.startGoal(mojoExecution.getGoal(), mojoExecution.getExecutionId(), backend);
+		String outcome = "success";
+		try
+		{
+			executeGoal();
+		}
+		catch (MojoExecutionException | MojoFailureException | RuntimeException e)
+		{
+			outcome = e.getClass().getSimpleName();
+			throw e;
+		}
+		finally
+		{
+			profiledGoal.end(outcome);
+			profiledGoal = null;
+			try
+			{
+				report.write();
+			}
+			catch (IOException e)
+			{
+				getLog().warn("Cannot write build profile: " + e.getMessage());
+			}
+		}
+	}
 
-		int setenv(String name, String value, int overwrite);
+	/**
+	 * Executes the goal.
+	 * 
+	 * @throws MojoExecutionException if an unexpected problem occurs.
+	 * @throws MojoFailureException if the goal detected a failure of the project.
+	 */
+	protected abstract void executeGoal() throws MojoExecutionException, MojoFailureException;
 
-		int open(String pathname, int flags);
+	/**
+	 * @param name The name of the cache directory.
+	 * @param size The maximum size of the cache, in megabytes.
+	 * @return A local cache, trimmed to its maximum size when the goal completes.
+	 */
+	protected ContentCache getCache(String name, long size)
+	{
+		ContentCache cache = new ContentCache(new File(cacheDirectory, name), size * 1024 * 1024);
+		caches.add(cache);
+		return cache;
 	}
 
-	public synchronized Rengine getEngine() throws MojoExecutionException
+	/**
+	 * Returns the R backend selected for this build.
+	 * 
+	 * @return the backend
+	 * @throws MojoExecutionException if the backend configuration is invalid.
+	 */
+	protected RBackend getBackend() throws MojoExecutionException
 	{
-		if (engine == null)
+		return RBackend.getBackend(this);
+	}
+
+	/**
+	 * Leases an R session from the selected backend. The session must be closed when done.
+	 * 
+	 * @return the session
+	 * @throws MojoExecutionException if R cannot be started.
+	 */
+	protected RSession openSession() throws MojoExecutionException
+	{
+		return openSession(1);
+	}
+
+	/**
+	 * Leases one of several R sessions used concurrently. The session must be closed when done.
+	 * 
+	 * @param processes The number of R sessions or processes compiling native code concurrently.
+	 * @return the session
+	 * @throws MojoExecutionException if R cannot be started.
+	 */
+	protected RSession openSession(int processes) throws MojoExecutionException
+	{
+		RSession session;
+		if (profiledGoal == null)
+			session = getBackend().openSession(getLog(), streamConsole);
+		else
+		{
+			BuildProfile.Step step = profiledGoal.startStep("session", backend, null);
 			try
 			{
-				if (rHome == null || !rHome.exists() || !rHome.isDirectory())
-					throw new MojoExecutionException(
-							"Environment variable R_HOME is not set or invalid. Either set it or use <rHome> property in configuration.");
-
-				File libjri = new File(rHome, "library/rJava/jri/libjri.so");
-				if (!libjri.exists() && !libjri.isFile())
-					throw new MojoExecutionException("Library libjri.so cannot be found. Ensure that rJava package is installed in R.");
-
-				System.setProperty("java.library.path",
-						System.getProperty("java.library.path") + File.pathSeparator + libjri.getParentFile().getAbsolutePath());
-
-				// set LD_LIBRARY_PATH (for *NIX)
-				StringBuilder builder = new StringBuilder();
-				builder.append(libjri.getParentFile().getAbsolutePath()).append(File.pathSeparator);
-				if (sharedLibs != null)
-					for (File sharedLib : sharedLibs)
-						builder.append(sharedLib.getAbsolutePath()).append(File.pathSeparator);
-				builder.append(System.getenv("LD_LIBRARY_PATH"));
-				libc.INSTANCE.setenv("LD_LIBRARY_PATH", builder.toString(), 1);
-
-				// set PATH (for Win)
-				builder.setLength(0);
-				builder.append(libjri.getParentFile().getAbsolutePath()).append(File.pathSeparator);
-				if (sharedLibs != null)
-					for (File sharedLib : sharedLibs)
-						builder.append(sharedLib.getAbsolutePath()).append(File.pathSeparator);
-				builder.append(System.getenv("PATH"));
-				libc.INSTANCE.setenv("PATH", builder.toString(), 1);
-
-				// set java.library.path
-				builder.setLength(0);
-				builder.append(libjri.getParentFile().getAbsolutePath()).append(File.pathSeparator);
-				if (sharedLibs != null)
-					for (File sharedLib : sharedLibs)
-						builder.append(sharedLib.getAbsolutePath()).append(File.pathSeparator);
-				builder.append(System.getProperty("java.library.path"));
-				System.setProperty("java.library.path", builder.toString());
-
-				final Field sysPathsField = ClassLoader.class.getDeclaredField("sys_paths");
-				sysPathsField.setAccessible(true);
-				sysPathsField.set(null, null);
+				session = getBackend().openSession(getLog(), streamConsole);
+			}
+			finally
+			{
+				step.end(null);
+			}
+		}
+
+		// Sessions may be reused by other projects, so the settings of a previous project are dropped first
+		StringBuilder setenv = new StringBuilder("if (identical(Sys.getenv('").append(NativeToolchain.MAKEVARS).append("'), ")
+				.append(RScript.quote(new File(cacheDirectory, "Makevars").getAbsolutePath()))
+				.append(")) Sys.unsetenv(c('R_MAKEVARS_USER', 'CCACHE_DIR', 'CCACHE_MAXSIZE', 'CCACHE_NOHASHDIR'))");
+		StringBuilder vars = new StringBuilder();
+		for (Map.Entry<String, String> var : getNativeEnvironment(processes).entrySet())
+			vars.append(vars.length() > 0 ? ", " : "").append(var.getKey()).append(" = ").append(RScript.quote(var.getValue()));
+		if (vars.length() > 0)
+			setenv.append("; Sys.setenv(").append(vars).append(')');
+		try
+		{
+			session.eval(setenv.toString());
+		}
+		catch (MojoExecutionException | RuntimeException e)
+		{
+			session.close();
+			throw e;
+		}
+		return session;
+	}
+
+	/**
+	 * @return The environment variables controlling the compilation of native code in R processes.
+	 */
+	protected Map<String, String> getNativeEnvironment()
+	{
+		return getNativeEnvironment(1);
+	}
+
+	/**
+	 * @param processes The number of R processes compiling native code concurrently.
+	 * @return The environment variables controlling the compilation of native code in each of the R processes. The make
+	 *         jobs are divided among the processes, so that no more than the configured number of jobs run in total.
+	 */
+	protected Map<String, String> getNativeEnvironment(int processes)
+	{
+		if (nativeEnvironment == null)
+		{
+			makeJobs = nativeJobs > 0 ? nativeJobs : System.getenv("MAKEFLAGS") == null ? getParallelism() : 0;
+			File executable = null;
+			if (useObjectCache)
+			{
+				executable = NativeToolchain.findExecutable(ccache);
+				if (executable == null)
+					getLog().info(ccache + " not found, native code will be compiled without object cache.");
+			}
+
+			nativeEnvironment = NativeToolchain.getEnvironment(makeJobs, executable, cacheDirectory, objectCacheSize, getLog());
+		}
+
+		if (processes <= 1 || makeJobs < 1)
+			return nativeEnvironment;
+		Map<String, String> environment = new HashMap<>(nativeEnvironment);
+		environment.put("MAKEFLAGS", "-j" + Math.max(1, makeJobs / processes));
+		return environment;
+	}
+
+	/**
+	 * @return A runner of R processes, compiling native code as configured and subject to the time limits of the goal.
+	 * @throws MojoExecutionException if the time of the goal is up.
+	 */
+	protected RScript getRScript() throws MojoExecutionException
+	{
+		return getRScript(1);
+	}
+
+	/**
+	 * @param processes The number of R processes run concurrently.
+	 * @return A runner of one of several concurrent R processes, which share the configured make jobs.
+	 * @throws MojoExecutionException if the time of the goal is up.
+	 */
+	protected RScript getRScript(int processes) throws MojoExecutionException
+	{
+		return new RScript(rHome, sharedLibs, getNativeEnvironment(processes), getTimeout(), streamConsole);
+	}
 
+	/**
+	 * @return A runner of R processes as {@link #getRScript()}, which also finds packages in the project libraries,
+	 *         ahead of those in R_LIBS.
+	 * @throws MojoExecutionException if the time of the goal is up.
+	 */
+	protected RScript getRScriptWithProjectLibraries() throws MojoExecutionException
+	{
+		StringBuilder libs = new StringBuilder();
+		for (File library : getProjectLibraries())
+			libs.append(libs.length() > 0 ? File.pathSeparator : "").append(library.getAbsolutePath());
+		String inherited = System.getenv("R_LIBS");
+		if (inherited != null && !inherited.isEmpty())
+			libs.append(libs.length() > 0 ? File.pathSeparator : "").append(inherited);
+
+		Map<String, String> environment = new HashMap<>(getNativeEnvironment());
+		if (libs.length() > 0)
+			environment.put("R_LIBS", libs.toString());
+		return new RScript(rHome, sharedLibs, environment, getTimeout(), streamConsole);
+	}
+
+	public REXP tryCatch(RSession session, String expression) throws MojoExecutionException
+	{
+		getLog().debug(expression);
+		long timeout = getTimeout();
+		long start = System.currentTimeMillis();
+		REXP res;
+		try
+		{
+			if (profiledGoal == null)
+				res = session.eval(expression, timeout);
+			else
+			{
+				BuildProfile.Step step = profiledGoal.startStep("eval", expression, probe(session));
 				try
 				{
-					System.loadLibrary("jri");
-				}
-				catch (UnsatisfiedLinkError e)
-				{
-					if (!e.getMessage().endsWith("already loaded in another classloader"))
-						throw e;
+					res = session.eval(expression, timeout);
 				}
-				libc.INSTANCE.setenv("R_HOME", rHome.getAbsolutePath(), 1);
-
-				getLog().info("");
-				getLog().info("Starting R engine...");
-
-				engine = new Rengine(new String[] { "--vanilla" }, false, null);
-				getLog().info("Querying available R packages...");
-				REXP packages = engine.eval("installed.packages()[,'Package']");
-				if (packages == null || packages.asStringArray() == null)
-					throw new MojoExecutionException("Cannot query R for installed packages.");
-				getLog().debug("Available R packages: " + Arrays.toString(packages.asStringArray()));
-				boolean found = false;
-				for (String packName : packages.asStringArray())
-					if ("devtools".equals(packName))
-					{
-						getLog().debug("Package 'devtools' found.");
-						found = true;
-						break;
-					}
-
-				if (!found)
-					throw new MojoExecutionException("Package devtools is not installed in R.");
-				else
+				finally
 				{
-					getLog().info("Loading required packages...");
-					REXP res = tryCatch("library(devtools)");
-					if (res == null)
-						throw new MojoExecutionException("Unexpected error while loading R. Please check R runtime requirements and try again");
+					step.end(probe(session));
 				}
 			}
-			catch (MojoExecutionException | RuntimeException | Error e)
-			{
-				throw e;
-			}
-			catch (Exception e)
+		}
+		catch (MojoExecutionException e)
+		{
+			if (timeout > 0 && System.currentTimeMillis() - start >= timeout)
 			{
-				throw new MojoExecutionException("Unexpected error", e);
+				String statement = expression.trim().split("\r?\n", 2)[0];
+				throw new MojoExecutionException(e.getMessage() + " Goal time limit: " + goalTimeout + "s, statement time limit: " + statementTimeout
+						+ "s. Timed out statement: " + (statement.length() > 200 ? statement.substring(0, 200) + "..." : statement), e);
 			}
+			throw e;
+		}
+		if (getLog().isDebugEnabled())
+			getLog().debug(RResults.render(res, RResults.RENDER_LIMIT));
+		return res;
+	}
 
-		return engine;
+	/**
+	 * @return The time left to the next R statement or R process, in milliseconds, or zero if there is no limit.
+	 * @throws MojoExecutionException if the time of the goal is up.
+	 */
+	protected long getTimeout() throws MojoExecutionException
+	{
+		long timeout = statementTimeout * 1000L;
+		if (deadline > 0)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				throw new MojoExecutionException("Goal did not complete within " + goalTimeout + " seconds.");
+			timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+		}
+		return timeout;
 	}
 
-	public REXP tryCatch(String expression) throws MojoExecutionException
+	private double[] probe(RSession session)
 	{
-		synchronized (getEngine())
+		try
 		{
-			expression = "tryCatch({ " + expression + "}, error = function(e) { e <- e[1]; attr(e, '" + ERROR_ATTR + "') <- T; e })";
-			getLog().debug(expression);
-			REXP res = engine.eval(expression);
-			getLog().debug(res.toString());
-			if (res != null && res.getAttribute(ERROR_ATTR) != null && res.getAttribute(ERROR_ATTR).asBool() != null
-					&& res.getAttribute(ERROR_ATTR).asBool().isTRUE())
-				throw new MojoExecutionException("R engine threw an error: " + res.asVector().at(0).asString());
-			else
-				return res;
+			REXP probe = session.eval(BuildProfile.R_PROBE);
+			return probe == null ? null : probe.asDoubleArray();
+		}
+		catch (MojoExecutionException | RuntimeException e)
+		{
+			getLog().debug("Cannot probe R memory usage: " + e.getMessage());
+			return null;
 		}
 	}
 
@@ -183,6 +422,104 @@ public abstract class AbstractRMojo extends AbstractMojo
 					+ "\" does not match regular expression \"(\\d+[-.]\\d+([-.]\\d+)?).*\"");
 	}
 
+	/**
+	 * @return The R installation in use, for queries that do not need a running R.
+	 * @throws MojoExecutionException if the R installation directory is not valid.
+	 */
+	protected RInstallation getInstallation() throws MojoExecutionException
+	{
+		return new RInstallation(rHome, cacheDirectory);
+	}
+
+	/**
+	 * Verifies that an R package is installed, using the library inventory instead of querying R.
+	 * 
+	 * @param name The name of the package.
+	 * @param minVersion The minimum required version, or null if any version will do.
+	 * @throws MojoExecutionException if the package is missing or too old.
+	 */
+	protected void requirePackage(String name, String minVersion) throws MojoExecutionException
+	{
+		getInstallation().requirePackage(name, minVersion);
+	}
+
+	/**
+	 * @param name The name of the state.
+	 * @return The file where a goal keeps its incremental build state.
+	 */
+	protected File getStatusFile(String name)
+	{
+		return new File(project.getBuild().getDirectory(), "maven-status" + File.separator + "r-maven-plugin" + File.separator + name + ".properties");
+	}
+
+	/**
+	 * @return The project-private library where the binary goal installs the package.
+	 */
+	protected File getPrivateLibrary()
+	{
+		return getPrivateLibrary(project);
+	}
+
+	private static File getPrivateLibrary(MavenProject project)
+	{
+		return new File(project.getBuild().getDirectory(), "rlib");
+	}
+
+	/**
+	 * @return The libraries where the packages of this project and of its dependencies have been installed: the private
+	 *         library of this project, followed by those of the R modules of the reactor this project depends upon,
+	 *         directly or indirectly.
+	 */
+	protected List<File> getProjectLibraries()
+	{
+		List<File> libraries = new ArrayList<>();
+		if (getPrivateLibrary().isDirectory())
+			libraries.add(getPrivateLibrary());
+		ProjectDependencyGraph graph = session == null ? null : session.getProjectDependencyGraph();
+		if (graph != null)
+			for (MavenProject upstream : graph.getUpstreamProjects(project, true))
+				if ("R".equals(upstream.getPackaging()) && getPrivateLibrary(upstream).isDirectory())
+					libraries.add(getPrivateLibrary(upstream));
+		return libraries;
+	}
+
+	/**
+	 * Makes an R statement see the packages installed in the project libraries.
+	 * 
+	 * @param statement The R statement.
+	 * @return The statement, evaluated with the project libraries prepended to the library search path.
+	 */
+	protected String withProjectLibraries(String statement)
+	{
+		return withLibraries(getProjectLibraries(), statement);
+	}
+
+	/**
+	 * Makes an R statement see the packages installed in some libraries.
+	 * 
+	 * @param libraries The library directories.
+	 * @param statement The R statement.
+	 * @return The statement, evaluated with the libraries prepended to the library search path.
+	 */
+	protected static String withLibraries(List<File> libraries, String statement)
+	{
+		if (libraries.isEmpty())
+			return statement;
+
+		StringBuilder paths = new StringBuilder();
+		for (File library : libraries)
+			paths.append(paths.length() > 0 ? ", " : "").append(RScript.quote(library.getAbsolutePath()));
+		return "local({ libs <- .libPaths(); .libPaths(c(" + paths + ", libs)); on.exit(.libPaths(libs))\n" + statement + "\n})";
+	}
+
+	/**
+	 * @return The number of R processes to run concurrently, as configured by {@link #workers}.
+	 */
+	protected int getParallelism()
+	{
+		return workers < 1 ? Runtime.getRuntime().availableProcessors() : workers;
+	}
+
 	protected void setupDirectories()
 	{
 		new File(project.getBuild().getDirectory()).mkdirs();
@@ -0,0 +1,301 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Timings, R memory usage and I/O volume of the goals of a build, written as a JSON report.
+ *
+ * A report collects all the goals executed on a project during the same Maven session, and is rewritten after each goal.
+ * The R figures are those returned by {@link #R_PROBE}, which is evaluated before and after each statement: cells and
+ * megabytes in use after a garbage collection, and bytes read and written by the R process so far. The I/O of each goal
+ * is measured on the Maven JVM, which includes R when it is embedded through JRI.
+ */
+final class BuildProfile
+{
+	/**
+	 * The R expression returning Ncells used, Vcells used, megabytes used, bytes read and bytes written, as a double
+	 * vector. The I/O counters are NA where <code>/proc</code> is not available.
+	 */
+	static final String							R_PROBE			= "local({ m <- gc(); io <- if (file.exists('/proc/self/io')) "
+			+ "as.double(sub('^[^:]*:\\\\s*', '', readLines('/proc/self/io', n = 2))) else c(NA, NA); c(m[, 1], sum(m[, 2]), io) })";
+
+	private static final int					MAX_EXPRESSION	= 4096;
+	private static final Map<File, BuildProfile>	profiles		= new HashMap<>();
+
+	private final File							report;
+	private final String						project;
+	private final Date							started;
+	private final List<Goal>					goals			= new ArrayList<>();
+
+	private BuildProfile(File report, String project, Date started)
+	{
+		this.report = report;
+		this.project = project;
+		this.started = started;
+	}
+
+	/**
+	 * Returns the profile of a project for the current Maven session, discarding the one of a previous session.
+	 *
+	 * @param report The JSON report file.
+	 * @param project The project identifier.
+	 * @param started The start time of the Maven session.
+	 * @return The profile.
+	 */
+	static synchronized BuildProfile get(File report, String project, Date started)
+	{
+		BuildProfile profile = profiles.get(report);
+		if (profile == null || !profile.started.equals(started))
+		{
+			profile = new BuildProfile(report, project, started);
+			profiles.put(report, profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * Starts profiling a goal.
+	 *
+	 * @param name The goal name.
+	 * @param execution The execution id.
+	 * @param backend The R backend in use.
+	 * @return The goal record, to be ended when the goal completes.
+	 */
+	synchronized Goal startGoal(String name, String execution, String backend)
+	{
+		Goal goal = new Goal(name, execution, backend);
+		goals.add(goal);
+		return goal;
+	}
+
+	/**
+	 * Writes the report.
+	 *
+	 * @throws IOException if the report cannot be written.
+	 */
+	synchronized void write() throws IOException
+	{
+		report.getParentFile().mkdirs();
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(report), Charset.forName("UTF-8")))
+		{
+			writer.write("{\n  \"project\": " + quote(project) + ",\n  \"started\": " + quote(format(started)) + ",\n  \"goals\": [");
+			for (int i = 0; i < goals.size(); i++)
+			{
+				writer.write(i > 0 ? ",\n" : "\n");
+				goals.get(i).write(writer);
+			}
+			writer.write("\n  ]\n}\n");
+		}
+	}
+
+	/**
+	 * A goal execution.
+	 */
+	static final class Goal
+	{
+		private final String		name;
+		private final String		execution;
+		private final String		backend;
+		private final long			start		= System.currentTimeMillis();
+		private final long			ioBefore[]	= readProcessIO();
+		private final List<Step>	steps		= new ArrayList<>();
+		private long				end;
+		private long				ioAfter[];
+		private String				outcome;
+
+		private Goal(String name, String execution, String backend)
+		{
+			this.name = name;
+			this.execution = execution;
+			this.backend = backend;
+		}
+
+		/**
+		 * Starts profiling a step of the goal.
+		 *
+		 * @param kind The kind of step, <code>session</code> for obtaining an R session or <code>eval</code> for an R
+		 *            statement.
+		 * @param text A description of the step.
+		 * @param rBefore The result of {@link BuildProfile#R_PROBE} before the step, or null if not available.
+		 * @return The step record, to be ended when the step completes.
+		 */
+		synchronized Step startStep(String kind, String text, double rBefore[])
+		{
+			Step step = new Step(kind, text, rBefore);
+			steps.add(step);
+			return step;
+		}
+
+		/**
+		 * Ends the goal.
+		 *
+		 * @param outcome <code>success</code> or the name of the exception that stopped the goal.
+		 */
+		synchronized void end(String outcome)
+		{
+			this.end = System.currentTimeMillis();
+			this.ioAfter = readProcessIO();
+			this.outcome = outcome;
+		}
+
+		private synchronized void write(Writer writer) throws IOException
+		{
+			writer.write("    {\n      \"goal\": " + quote(name) + ",\n      \"execution\": " + quote(execution) + ",\n      \"backend\": "
+					+ quote(backend) + ",\n      \"outcome\": " + quote(outcome) + ",\n      \"wallMillis\": " + (end - start)
+					+ ",\n      \"jvmIO\": " + io(ioBefore, ioAfter) + ",\n      \"steps\": [");
+			for (int i = 0; i < steps.size(); i++)
+			{
+				writer.write(i > 0 ? ",\n" : "\n");
+				steps.get(i).write(writer);
+			}
+			writer.write(steps.isEmpty() ? "]\n    }" : "\n      ]\n    }");
+		}
+	}
+
+	/**
+	 * A step of a goal.
+	 */
+	static final class Step
+	{
+		private final String	kind;
+		private final String	text;
+		private final long		start	= System.nanoTime();
+		private final double	rBefore[];
+		private long			elapsed;
+		private double			rAfter[];
+
+		private Step(String kind, String text, double rBefore[])
+		{
+			this.kind = kind;
+			this.text = text.length() > MAX_EXPRESSION ? text.substring(0, MAX_EXPRESSION) + "..." : text;
+			this.rBefore = rBefore;
+		}
+
+		/**
+		 * Ends the step.
+		 *
+		 * @param rAfter The result of {@link BuildProfile#R_PROBE} after the step, or null if not available.
+		 */
+		void end(double rAfter[])
+		{
+			this.elapsed = System.nanoTime() - start;
+			this.rAfter = rAfter;
+		}
+
+		private void write(Writer writer) throws IOException
+		{
+			writer.write("        { \"kind\": " + quote(kind) + ", \"text\": " + quote(text) + ", \"wallMillis\": " + elapsed / 1000000);
+			if (rBefore != null && rAfter != null && rBefore.length == 5 && rAfter.length == 5)
+				writer.write(", \"rMemory\": { \"before\": " + memory(rBefore) + ", \"after\": " + memory(rAfter) + " }, \"rIO\": "
+						+ io(new double[] { rBefore[3], rBefore[4] }, new double[] { rAfter[3], rAfter[4] }));
+			writer.write(" }");
+		}
+	}
+
+	/**
+	 * @return The bytes read and written so far by the current process, or null if not available.
+	 */
+	static long[] readProcessIO()
+	{
+		File io = new File("/proc/self/io");
+		if (!io.canRead())
+			return null;
+
+		long result[] = new long[2];
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(io), Charset.forName("US-ASCII"))))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (line.startsWith("rchar:"))
+					result[0] = Long.parseLong(line.substring(6).trim());
+				else if (line.startsWith("wchar:"))
+					result[1] = Long.parseLong(line.substring(6).trim());
+			return result;
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	private static String memory(double probe[])
+	{
+		return "{ \"ncells\": " + number(probe[0]) + ", \"vcells\": " + number(probe[1]) + ", \"usedMb\": " + number(probe[2]) + " }";
+	}
+
+	private static String io(long before[], long after[])
+	{
+		return before == null || after == null ? "null"
+				: "{ \"readBytes\": " + (after[0] - before[0]) + ", \"writtenBytes\": " + (after[1] - before[1]) + " }";
+	}
+
+	private static String io(double before[], double after[])
+	{
+		return "{ \"readBytes\": " + number(after[0] - before[0]) + ", \"writtenBytes\": " + number(after[1] - before[1]) + " }";
+	}
+
+	private static String number(double value)
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return "null";
+		else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		else
+			return Double.toString(value);
+	}
+
+	private static String format(Date date)
+	{
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+
+	private static String quote(String value)
+	{
+		if (value == null)
+			return "null";
+
+		StringBuilder builder = new StringBuilder("\"");
+		for (char c : value.toCharArray())
+			switch (c)
+			{
+				case '"':
+					builder.append("\\\"");
+					break;
+				case '\\':
+					builder.append("\\\\");
+					break;
+				case '\n':
+					builder.append("\\n");
+					break;
+				case '\r':
+					builder.append("\\r");
+					break;
+				case '\t':
+					builder.append("\\t");
+					break;
+				default:
+					if (c < 0x20)
+						builder.append(String.format("\\u%04x", (int) c));
+					else
+						builder.append(c);
+			}
+		return builder.append('"').toString();
+	}
+}
@@ -0,0 +1,80 @@
+package it.bancaditalia.oss;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Forwards the R console output to the log of the session owner, one line at a time.
+ *
+ * Partial lines are buffered until their end is written, up to a maximum length after which they are split, so that
+ * the memory used does not depend on the R output. Lines are logged at info level when streaming is enabled, and at
+ * debug level otherwise.
+ */
+final class ConsoleLog
+{
+	static final int			MAX_LINE	= 8192;
+
+	private final StringBuilder	partial		= new StringBuilder();
+	private Log					log;
+	private boolean				stream;
+
+	/**
+	 * @param log The log of the session owner.
+	 * @param stream true to log the console output at info level.
+	 */
+	ConsoleLog(Log log, boolean stream)
+	{
+		this.log = log;
+		this.stream = stream;
+	}
+
+	/**
+	 * Redirects the console output to another log. Any pending partial line goes to the previous log.
+	 *
+	 * @param log The log of the new session owner.
+	 * @param stream true to log the console output at info level.
+	 */
+	synchronized void setLog(Log log, boolean stream)
+	{
+		flush();
+		this.log = log;
+		this.stream = stream;
+	}
+
+	/**
+	 * @param text Console output, not necessarily made of whole lines.
+	 */
+	synchronized void write(String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (c == '\n')
+				emit();
+			else if (c != '\r')
+			{
+				partial.append(c);
+				if (partial.length() >= MAX_LINE)
+					emit();
+			}
+		}
+	}
+
+	/**
+	 * Logs the pending partial line, if any.
+	 */
+	synchronized void flush()
+	{
+		if (partial.length() > 0)
+			emit();
+	}
+
+	private void emit()
+	{
+		String line = "[R] " + partial;
+		partial.setLength(0);
+		if (stream)
+			log.info(line);
+		else
+			log.debug(line);
+	}
+}
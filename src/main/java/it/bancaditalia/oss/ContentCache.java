@@ -0,0 +1,148 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A local content-addressed cache. Each entry is a directory named after its key, holding the files stored for that
+ * key. Entries are stored and evicted atomically, so that the cache can be shared by concurrent builds, and the least
+ * recently used ones are evicted when the total size exceeds a limit.
+ */
+final class ContentCache
+{
+	private static final FileFilter	ENTRIES	= new FileFilter() {
+													@Override
+													public boolean accept(File file)
+													{
+														// temporary entries contain a dot
+														return file.isDirectory() && file.getName().indexOf('.') < 0;
+													}
+												};
+
+	private final File					root;
+	private final long					maxSize;
+	private volatile boolean			stored;
+
+	/**
+	 * @param root The cache directory.
+	 * @param maxSize The maximum total size of the cache in bytes.
+	 */
+	ContentCache(File root, long maxSize)
+	{
+		this.root = root;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Looks up an entry, marking it as recently used.
+	 *
+	 * @param key The entry key.
+	 * @return The entry directory, or null if the key is not cached.
+	 */
+	File lookup(String key)
+	{
+		File entry = new File(root, key);
+		if (!entry.isDirectory())
+			return null;
+
+		entry.setLastModified(System.currentTimeMillis());
+		return entry;
+	}
+
+	/**
+	 * Stores copies of files and directories under a key. The cache is not trimmed until {@link #trim()} is called.
+	 *
+	 * @param key The entry key.
+	 * @param files The files and directories to store.
+	 * @return The entry directory.
+	 * @throws IOException if the entry cannot be written.
+	 */
+	File store(String key, File... files) throws IOException
+	{
+		root.mkdirs();
+		File entry = new File(root, key);
+		File temp = Files.createTempDirectory(root.toPath(), key + ".").toFile();
+		try
+		{
+			for (File file : files)
+				FileTree.copy(file, new File(temp, file.getName()));
+
+			try
+			{
+				Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e)
+			{
+				// Another build may have stored the same entry meanwhile
+				if (!entry.isDirectory())
+					throw e;
+			}
+		}
+		finally
+		{
+			FileTree.delete(temp);
+		}
+
+		stored = true;
+		return entry;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache fits its maximum size, if any entry was stored since the
+	 * last trim. Each entry is first renamed to a temporary name, so that no build looks up a partially deleted entry.
+	 *
+	 * @throws IOException if the cache cannot be read.
+	 */
+	void trim() throws IOException
+	{
+		if (!stored)
+			return;
+		stored = false;
+
+		File entries[] = root.listFiles(ENTRIES);
+		if (entries == null)
+			return;
+
+		final long lastUsed[] = new long[entries.length];
+		long sizes[] = new long[entries.length];
+		long total = 0;
+		Integer order[] = new Integer[entries.length];
+		for (int i = 0; i < entries.length; i++)
+		{
+			order[i] = i;
+			lastUsed[i] = entries[i].lastModified();
+			sizes[i] = FileTree.size(entries[i]);
+			total += sizes[i];
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Long.compare(lastUsed[a], lastUsed[b]);
+			}
+		});
+
+		for (int i = 0; i < order.length && total > maxSize; i++)
+		{
+			File entry = entries[order[i]];
+			File evicted = new File(root, entry.getName() + ".evicted" + System.nanoTime());
+			try
+			{
+				Files.move(entry.toPath(), evicted.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e)
+			{
+				// Another build may have evicted or replaced the entry meanwhile
+				continue;
+			}
+			FileTree.delete(evicted);
+			total -= sizes[order[i]];
+		}
+	}
+}
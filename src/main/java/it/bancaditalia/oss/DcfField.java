@@ -0,0 +1,53 @@
+package it.bancaditalia.oss;
+
+/**
+ * A field of a Debian Control File, the format of R DESCRIPTION files.
+ *
+ * The value is kept as written, including the line breaks and the indentation of its continuation lines, so that
+ * fields that are not modified are written back unchanged.
+ */
+final class DcfField
+{
+	private final String	name;
+	private final String	value;
+
+	/**
+	 * @param name The field name.
+	 * @param value The field value. Continuation lines must start with a line break followed by whitespace.
+	 */
+	DcfField(String name, String value)
+	{
+		this.name = name;
+		this.value = value;
+	}
+
+	/**
+	 * @return The field name.
+	 */
+	String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return The field value as written, without the whitespace after the colon.
+	 */
+	String getValue()
+	{
+		return value;
+	}
+
+	/**
+	 * @return The field value with line breaks and runs of whitespace replaced by a single space.
+	 */
+	String getText()
+	{
+		return value.trim().replaceAll("\\s+", " ");
+	}
+
+	@Override
+	public String toString()
+	{
+		return name + ":" + (value.isEmpty() || value.startsWith("\n") ? "" : " ") + value;
+	}
+}
@@ -0,0 +1,65 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the fields of a Debian Control File one at a time, without limits on the file size.
+ *
+ * A field starts with its name, followed by a colon and the value, and continues on the following lines that start
+ * with whitespace. Blank lines are skipped, so the fields of all the records are returned in sequence.
+ */
+final class DcfReader implements Closeable
+{
+	private final BufferedReader	reader;
+	private String					next;
+	private int						lineNumber	= 0;
+
+	/**
+	 * @param reader The source of the file contents.
+	 */
+	DcfReader(Reader reader)
+	{
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+	}
+
+	/**
+	 * @return The next field, or null at the end of the file.
+	 * @throws IOException if the file cannot be read or a line is neither a field nor a continuation.
+	 */
+	DcfField readField() throws IOException
+	{
+		String line = next != null ? next : readLine();
+		next = null;
+		while (line != null && line.trim().isEmpty())
+			line = readLine();
+		if (line == null)
+			return null;
+
+		int colon = line.indexOf(':');
+		if (colon <= 0 || Character.isWhitespace(line.charAt(0)))
+			throw new IOException("Malformed line " + lineNumber + ": " + line);
+
+		StringBuilder value = new StringBuilder(line.substring(colon + 1).replaceFirst("^[ \\t]+", ""));
+		while ((next = readLine()) != null && !next.isEmpty() && Character.isWhitespace(next.charAt(0)) && !next.trim().isEmpty())
+			value.append('\n').append(next);
+
+		return new DcfField(line.substring(0, colon), value.toString());
+	}
+
+	private String readLine() throws IOException
+	{
+		String line = reader.readLine();
+		if (line != null)
+			lineNumber++;
+		return line;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		reader.close();
+	}
+}
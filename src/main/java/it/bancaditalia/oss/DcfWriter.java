@@ -0,0 +1,38 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the fields of a Debian Control File one at a time, with Unix line endings.
+ */
+final class DcfWriter implements Closeable
+{
+	private final Writer writer;
+
+	/**
+	 * @param writer The destination of the file contents.
+	 */
+	DcfWriter(Writer writer)
+	{
+		this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+	}
+
+	/**
+	 * @param field The field to write.
+	 * @throws IOException if the field cannot be written.
+	 */
+	void write(DcfField field) throws IOException
+	{
+		writer.write(field.toString());
+		writer.write('\n');
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		writer.close();
+	}
+}
@@ -0,0 +1,119 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * File system helpers for directory trees.
+ */
+final class FileTree
+{
+	private FileTree()
+	{
+	}
+
+	/**
+	 * @param dir A directory.
+	 * @return All the regular files inside the directory, keyed by their relative path with forward slashes, in
+	 *         lexicographic order. The map is empty if the directory does not exist.
+	 * @throws IOException if the directory cannot be read.
+	 */
+	static Map<String, File> list(File dir) throws IOException
+	{
+		final Map<String, File> files = new TreeMap<>();
+		if (!dir.isDirectory())
+			return files;
+
+		final Path root = dir.toPath();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				if (attrs.isRegularFile())
+					files.put(root.relativize(file).toString().replace(File.separatorChar, '/'), file.toFile());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+
+	/**
+	 * @param dir A directory.
+	 * @return The total size of the regular files inside the directory.
+	 * @throws IOException if the directory cannot be read.
+	 */
+	static long size(File dir) throws IOException
+	{
+		long size = 0;
+		for (File file : list(dir).values())
+			size += file.length();
+		return size;
+	}
+
+	/**
+	 * Copies a file or a directory tree, replacing existing files and keeping timestamps.
+	 *
+	 * @param from The file or directory to copy.
+	 * @param to The destination.
+	 * @throws IOException if the copy fails.
+	 */
+	static void copy(File from, File to) throws IOException
+	{
+		final Path source = from.toPath();
+		final Path target = to.toPath();
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.COPY_ATTRIBUTES);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Deletes a file or a directory tree, if it exists.
+	 *
+	 * @param file The file or directory to delete.
+	 * @throws IOException if the deletion fails.
+	 */
+	static void delete(File file) throws IOException
+	{
+		if (!file.exists())
+			return;
+
+		Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+			{
+				if (exc != null)
+					throw exc;
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,119 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map.Entry;
+
+/**
+ * Accumulates a SHA-256 digest of strings and file contents, used to key incremental build state and caches.
+ */
+final class Fingerprint
+{
+	private static final Charset	UTF8	= Charset.forName("UTF-8");
+	private static final char		HEX[]	= "0123456789abcdef".toCharArray();
+
+	private final MessageDigest		digest;
+	private String					value;
+
+	Fingerprint()
+	{
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds a value to the fingerprint. Values are delimited, so that adding "ab", "c" differs from adding "a", "bc".
+	 *
+	 * @param value The value to add, may be null.
+	 * @return this fingerprint
+	 */
+	Fingerprint add(Object value)
+	{
+		if (value == null)
+			digest.update((byte) 1);
+		else
+		{
+			digest.update(String.valueOf(value).getBytes(UTF8));
+			digest.update((byte) 0);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds the contents of a file to the fingerprint.
+	 *
+	 * @param file The file to add; if it does not exist, a marker is added instead.
+	 * @return this fingerprint
+	 * @throws IOException if the file cannot be read.
+	 */
+	Fingerprint addFile(File file) throws IOException
+	{
+		if (!file.isFile())
+			return add(null);
+
+		try (InputStream is = new FileInputStream(file))
+		{
+			byte buffer[] = new byte[65536];
+			int read;
+			while ((read = is.read(buffer)) >= 0)
+				digest.update(buffer, 0, read);
+		}
+		digest.update((byte) 0);
+		return this;
+	}
+
+	/**
+	 * Adds the relative paths and contents of all the files inside a directory to the fingerprint.
+	 *
+	 * @param dir The directory to add.
+	 * @return this fingerprint
+	 * @throws IOException if the directory cannot be read.
+	 */
+	Fingerprint addTree(File dir) throws IOException
+	{
+		for (Entry<String, File> file : FileTree.list(dir).entrySet())
+			add(file.getKey()).addFile(file.getValue());
+		return this;
+	}
+
+	/**
+	 * @return the hex representation of the digest. No more values can be added afterwards.
+	 */
+	@Override
+	public String toString()
+	{
+		if (value == null)
+		{
+			byte bytes[] = digest.digest();
+			char chars[] = new char[bytes.length * 2];
+			for (int i = 0; i < bytes.length; i++)
+			{
+				chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+				chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+			}
+			value = new String(chars);
+		}
+		return value;
+	}
+
+	/**
+	 * @param file The file to digest.
+	 * @return the hex digest of the file contents.
+	 * @throws IOException if the file cannot be read.
+	 */
+	static String of(File file) throws IOException
+	{
+		return new Fingerprint().addFile(file).toString();
+	}
+}
@@ -0,0 +1,309 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.rosuda.JRI.REXP;
+import org.rosuda.JRI.RMainLoopCallbacks;
+import org.rosuda.JRI.Rengine;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+
+/**
+ * Backend that evaluates R inside the Maven JVM through JRI.
+ *
+ * Since R is single-threaded and can be embedded only once per process, all the sessions share the same engine and
+ * they are handed out one at a time. The console output of the engine goes to the log of the current session owner.
+ *
+ * Evaluations run in a dedicated thread, so that the session owner can give up on an evaluation that does not respond to
+ * an interrupt. Since the embedded R cannot be restarted, the engine is then unusable for the rest of the build.
+ */
+class JRIBackend extends RBackend
+{
+	private static final String	ERROR_ATTR	= "JRIERROR";
+	private static Rengine		engine;
+	private static ConsoleLog	console;
+	private static volatile boolean	hung;
+	private static final ExecutorService	evaluator	= Executors.newSingleThreadExecutor(new ThreadFactory() {
+															@Override
+															public Thread newThread(Runnable r)
+															{
+																Thread thread = new Thread(r, "R engine");
+																thread.setDaemon(true);
+																return thread;
+															}
+														});
+
+	private final ReentrantLock	lock		= new ReentrantLock();
+	private final File			rHome;
+	private final File[]		sharedLibs;
+
+	private interface libc extends Library
+	{
+		libc INSTANCE = Native.loadLibrary(Platform.isWindows() ? "msvcrt" : "c", libc.class);
+
+		int setenv(String name, String value, int overwrite);
+
+		int open(String pathname, int flags);
+	}
+
+	JRIBackend(File rHome, File[] sharedLibs)
+	{
+		this.rHome = rHome;
+		this.sharedLibs = sharedLibs;
+	}
+
+	/**
+	 * Sends the console output of the engine to the console log.
+	 */
+	private static class ConsoleCallbacks implements RMainLoopCallbacks
+	{
+		@Override
+		public void rWriteConsole(Rengine re, String text, int oType)
+		{
+			console.write(text);
+		}
+
+		@Override
+		public void rFlushConsole(Rengine re)
+		{
+			// lines are logged as soon as they are complete
+		}
+
+		@Override
+		public void rShowMessage(Rengine re, String message)
+		{
+			console.write(message + "\n");
+		}
+
+		@Override
+		public void rBusy(Rengine re, int which)
+		{
+		}
+
+		@Override
+		public String rReadConsole(Rengine re, String prompt, int addToHistory)
+		{
+			// the main loop is not run
+			return null;
+		}
+
+		@Override
+		public String rChooseFile(Rengine re, int newFile)
+		{
+			return null;
+		}
+
+		@Override
+		public void rSaveHistory(Rengine re, String filename)
+		{
+		}
+
+		@Override
+		public void rLoadHistory(Rengine re, String filename)
+		{
+		}
+	}
+
+	@Override
+	public RSession openSession(final Log log, boolean stream) throws MojoExecutionException
+	{
+		lock.lock();
+		try
+		{
+			if (hung)
+				throw new MojoExecutionException("The embedded R engine did not respond to an interrupt and cannot be restarted in the same JVM. "
+						+ "Use the \"" + WORKERS + "\" or \"" + DAEMON + "\" backend to recycle hung R processes.");
+			synchronized (JRIBackend.class)
+			{
+				if (console == null)
+					console = new ConsoleLog(log, stream);
+				else
+					console.setLog(log, stream);
+			}
+			final Rengine engine = getEngine(log);
+
+			return new RSession() {
+				private final AtomicBoolean	closed	= new AtomicBoolean();
+
+				@Override
+				public REXP eval(String expression) throws MojoExecutionException
+				{
+					return eval(expression, 0);
+				}
+
+				@Override
+				public REXP eval(final String expression, long timeout) throws MojoExecutionException
+				{
+					final Future<REXP> evaluation = evaluator.submit(new Callable<REXP>() {
+						@Override
+						public REXP call() throws MojoExecutionException
+						{
+							return tryCatch(engine, expression);
+						}
+					});
+
+					Watchdog watchdog = Watchdog.watch(new Watchdog.Target() {
+						@Override
+						public void interrupt()
+						{
+							engine.rniStop(0);
+						}
+
+						@Override
+						public void kill()
+						{
+							hung = true;
+							evaluation.cancel(false);
+						}
+					}, timeout);
+					try
+					{
+						REXP res = evaluation.get();
+						if (watchdog.hasFired())
+							throw new MojoExecutionException("R evaluation was interrupted after " + timeout / 1000 + " seconds.");
+						return res;
+					}
+					catch (CancellationException e)
+					{
+						throw new MojoExecutionException("R evaluation timed out after " + timeout / 1000 + " seconds and did not respond to an interrupt.");
+					}
+					catch (ExecutionException e)
+					{
+						if (watchdog.hasFired())
+							throw new MojoExecutionException("R evaluation was interrupted after " + timeout / 1000 + " seconds.", e.getCause());
+						else if (e.getCause() instanceof MojoExecutionException)
+							throw (MojoExecutionException) e.getCause();
+						else
+							throw new MojoExecutionException("Unexpected error in R engine: " + e.getCause(), e.getCause());
+					}
+					catch (InterruptedException e)
+					{
+						engine.rniStop(0);
+						Thread.currentThread().interrupt();
+						throw new MojoExecutionException("Interrupted while evaluating R code.", e);
+					}
+					finally
+					{
+						watchdog.close();
+					}
+				}
+
+				@Override
+				public void close()
+				{
+					if (!closed.compareAndSet(false, true))
+						return;
+
+					console.flush();
+					lock.unlock();
+				}
+			};
+		}
+		catch (MojoExecutionException | RuntimeException | Error e)
+		{
+			lock.unlock();
+			throw e;
+		}
+	}
+
+	private synchronized Rengine getEngine(Log log) throws MojoExecutionException
+	{
+		if (engine == null)
+			try
+			{
+				File libjri = new File(rHome, "library/rJava/jri/libjri.so");
+				if (!libjri.exists() && !libjri.isFile())
+					throw new MojoExecutionException("Library libjri.so cannot be found. Ensure that rJava package is installed in R.");
+
+				System.setProperty("java.library.path",
+						System.getProperty("java.library.path") + File.pathSeparator + libjri.getParentFile().getAbsolutePath());
+
+				// set LD_LIBRARY_PATH (for *NIX)
+				StringBuilder builder = new StringBuilder();
+				builder.append(libjri.getParentFile().getAbsolutePath()).append(File.pathSeparator);
+				if (sharedLibs != null)
+					for (File sharedLib : sharedLibs)
+						builder.append(sharedLib.getAbsolutePath()).append(File.pathSeparator);
+				builder.append(System.getenv("LD_LIBRARY_PATH"));
+				libc.INSTANCE.setenv("LD_LIBRARY_PATH", builder.toString(), 1);
+
+				// set PATH (for Win)
+				builder.setLength(0);
+				builder.append(libjri.getParentFile().getAbsolutePath()).append(File.pathSeparator);
+				if (sharedLibs != null)
+					for (File sharedLib : sharedLibs)
+						builder.append(sharedLib.getAbsolutePath()).append(File.pathSeparator);
+				builder.append(System.getenv("PATH"));
+				libc.INSTANCE.setenv("PATH", builder.toString(), 1);
+
+				// set java.library.path
+				builder.setLength(0);
+				builder.append(libjri.getParentFile().getAbsolutePath()).append(File.pathSeparator);
+				if (sharedLibs != null)
+					for (File sharedLib : sharedLibs)
+						builder.append(sharedLib.getAbsolutePath()).append(File.pathSeparator);
+				builder.append(System.getProperty("java.library.path"));
+				System.setProperty("java.library.path", builder.toString());
+
+				final Field sysPathsField = ClassLoader.class.getDeclaredField("sys_paths");
+				sysPathsField.setAccessible(true);
+				sysPathsField.set(null, null);
+
+				try
+				{
+					System.loadLibrary("jri");
+				}
+				catch (UnsatisfiedLinkError e)
+				{
+					if (!e.getMessage().endsWith("already loaded in another classloader"))
+						throw e;
+				}
+				libc.INSTANCE.setenv("R_HOME", rHome.getAbsolutePath(), 1);
+
+				log.info("");
+				log.info("Starting R engine...");
+
+				engine = new Rengine(new String[] { "--vanilla" }, false, new ConsoleCallbacks());
+				log.info("Loading required packages...");
+				REXP res = tryCatch(engine, "library(devtools)");
+				if (res == null)
+					throw new MojoExecutionException("Unexpected error while loading R. Please check R runtime requirements and try again");
+			}
+			catch (MojoExecutionException | RuntimeException | Error e)
+			{
+				throw e;
+			}
+			catch (Exception e)
+			{
+				throw new MojoExecutionException("Unexpected error", e);
+			}
+
+		return engine;
+	}
+
+	private static REXP tryCatch(Rengine engine, String expression) throws MojoExecutionException
+	{
+		expression = "tryCatch({ " + expression + "}, error = function(e) { e <- e[1]; attr(e, '" + ERROR_ATTR + "') <- T; e }, "
+				+ "interrupt = function(e) { e <- list('R evaluation interrupted.'); attr(e, '" + ERROR_ATTR + "') <- T; e })";
+		REXP res = engine.eval(expression);
+		if (res != null && res.getAttribute(ERROR_ATTR) != null && res.getAttribute(ERROR_ATTR).asBool() != null
+				&& res.getAttribute(ERROR_ATTR).asBool().isTRUE())
+			throw new MojoExecutionException("R engine threw an error: " + res.asVector().at(0).asString());
+		else
+			return res;
+	}
+}
@@ -0,0 +1,236 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * An index of the packages installed in a list of R libraries.
+ *
+ * Reading every DESCRIPTION in every library is expensive when thousands of packages are installed, so the index is
+ * persisted in the user cache and reused as long as the modification times of the library directories, which change
+ * whenever a package is installed, updated or removed, are the same.
+ */
+final class LibraryInventory
+{
+	private static final Map<File, LibraryInventory>	loaded		= new HashMap<>();
+	private static final FileFilter						PACKAGES	= new FileFilter() {
+																		@Override
+																		public boolean accept(File file)
+																		{
+																			return new File(file, "DESCRIPTION").isFile();
+																		}
+																	};
+
+	/**
+	 * A package installed in a library.
+	 */
+	static final class InstalledPackage
+	{
+		final String	name;
+		final String	version;
+		final File		library;
+
+		InstalledPackage(String name, String version, File library)
+		{
+			this.name = name;
+			this.version = version;
+			this.library = library;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + " " + version + " (" + library + ")";
+		}
+	}
+
+	private final List<File>					libraries;
+	private final long							stamps[];
+	private final Map<String, InstalledPackage>	packages	= new TreeMap<>();
+
+	private LibraryInventory(List<File> libraries, long stamps[])
+	{
+		this.libraries = libraries;
+		this.stamps = stamps;
+	}
+
+	/**
+	 * Returns the inventory of some libraries, from memory or from the persisted index if still valid, and scanning the
+	 * libraries otherwise.
+	 *
+	 * @param libraries The library directories, in search order.
+	 * @param cacheDir The directory where the index is persisted.
+	 * @return The inventory.
+	 */
+	static synchronized LibraryInventory load(List<File> libraries, File cacheDir)
+	{
+		long stamps[] = new long[libraries.size()];
+		for (int i = 0; i < stamps.length; i++)
+			stamps[i] = libraries.get(i).lastModified();
+
+		File index = new File(cacheDir, new Fingerprint().add(libraries).toString() + ".properties");
+		LibraryInventory inventory = loaded.get(index);
+		if (inventory != null && Arrays.equals(stamps, inventory.stamps))
+			return inventory;
+
+		inventory = new LibraryInventory(libraries, stamps);
+		if (!inventory.read(index))
+		{
+			inventory.scan();
+			inventory.write(index);
+		}
+
+		loaded.put(index, inventory);
+		return inventory;
+	}
+
+	/**
+	 * @param name The package name.
+	 * @return The first installed copy of the package in search order, or null if the package is not installed.
+	 */
+	InstalledPackage get(String name)
+	{
+		return packages.get(name);
+	}
+
+	/**
+	 * @return All the visible installed packages, by name.
+	 */
+	Collection<InstalledPackage> getPackages()
+	{
+		return Collections.unmodifiableCollection(packages.values());
+	}
+
+	private boolean read(File index)
+	{
+		if (!index.isFile())
+			return false;
+
+		Properties properties = new Properties();
+		try (InputStream is = new FileInputStream(index))
+		{
+			properties.load(is);
+			for (int i = 0; i < stamps.length; i++)
+				if (!Long.toString(stamps[i]).equals(properties.getProperty("stamp." + i)))
+					return false;
+
+			for (String key : properties.stringPropertyNames())
+				if (key.startsWith("package."))
+				{
+					String value = properties.getProperty(key);
+					int sep = value.lastIndexOf(' ');
+					String name = key.substring("package.".length());
+					packages.put(name, new InstalledPackage(name, value.substring(0, sep), libraries.get(Integer.parseInt(value.substring(sep + 1)))));
+				}
+			return true;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			packages.clear();
+			return false;
+		}
+	}
+
+	private void scan()
+	{
+		for (File library : libraries)
+		{
+			File dirs[] = library.listFiles(PACKAGES);
+			if (dirs != null)
+				for (File dir : dirs)
+					if (!packages.containsKey(dir.getName()))
+					{
+						String version = readVersion(new File(dir, "DESCRIPTION"));
+						if (version != null)
+							packages.put(dir.getName(), new InstalledPackage(dir.getName(), version, library));
+					}
+		}
+	}
+
+	private void write(File index)
+	{
+		Properties properties = new Properties();
+		for (int i = 0; i < stamps.length; i++)
+		{
+			properties.setProperty("library." + i, libraries.get(i).getAbsolutePath());
+			properties.setProperty("stamp." + i, Long.toString(stamps[i]));
+		}
+		for (InstalledPackage pkg : packages.values())
+			properties.setProperty("package." + pkg.name, pkg.version + " " + libraries.indexOf(pkg.library));
+
+		index.getParentFile().mkdirs();
+		try (OutputStream os = new FileOutputStream(index))
+		{
+			properties.store(os, null);
+		}
+		catch (IOException e)
+		{
+			// the index will be rebuilt next time
+		}
+	}
+
+	private static String readVersion(File description)
+	{
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(description), Charset.forName("UTF-8"))))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (line.startsWith("Version:"))
+					return line.substring("Version:".length()).trim();
+		}
+		catch (IOException e)
+		{
+			// not a valid package
+		}
+
+		return null;
+	}
+
+	/**
+	 * Compares two R package versions, made of integers separated by dots or dashes.
+	 *
+	 * @param a A version.
+	 * @param b Another version.
+	 * @return A negative number, zero, or a positive number if the first version is lower, equal, or higher.
+	 */
+	static int compareVersions(String a, String b)
+	{
+		String partsA[] = a.trim().split("[.-]");
+		String partsB[] = b.trim().split("[.-]");
+		for (int i = 0; i < Math.max(partsA.length, partsB.length); i++)
+		{
+			int compare = Integer.compare(i < partsA.length ? parse(partsA[i]) : 0, i < partsB.length ? parse(partsB[i]) : 0);
+			if (compare != 0)
+				return compare;
+		}
+		return 0;
+	}
+
+	private static int parse(String part)
+	{
+		try
+		{
+			return Integer.parseInt(part);
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+}
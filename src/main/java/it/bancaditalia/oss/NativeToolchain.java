@@ -0,0 +1,109 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.logging.Log;
+
+import com.sun.jna.Platform;
+
+/**
+ * Environment of the R processes compiling the native code of packages.
+ *
+ * Compilation runs with the configured number of make jobs, divided among the R processes compiling concurrently. When
+ * ccache is available, the C and C++ compilers of R are wrapped by ccache through a generated user Makevars file, so
+ * that object files are shared by all the builds, checks and installs. ccache keys the objects by the preprocessed
+ * source, which includes the R headers, and by the compiler flags. Since R compiles in temporary directories, the
+ * current directory is left out of the key.
+ */
+final class NativeToolchain
+{
+	static final String					MAKEVARS	= "R_MAKEVARS_USER";
+	private static final List<String>	COMPILERS	= Arrays.asList("CC", "CXX", "CXX11", "CXX14", "CXX17", "CXX20", "CXX23");
+
+	private NativeToolchain()
+	{
+	}
+
+	/**
+	 * @param jobs The number of make jobs, or less than one to keep the MAKEFLAGS of the environment.
+	 * @param ccache The ccache executable, or null to disable the object cache.
+	 * @param cacheDirectory The root of the local caches.
+	 * @param cacheSize The maximum size of the object cache, in megabytes.
+	 * @param log The log.
+	 * @return The environment variables to set in the R processes.
+	 */
+	static Map<String, String> getEnvironment(int jobs, File ccache, File cacheDirectory, long cacheSize, Log log)
+	{
+		Map<String, String> env = new LinkedHashMap<>();
+		if (jobs > 0)
+			env.put("MAKEFLAGS", "-j" + jobs);
+		if (ccache != null)
+			try
+			{
+				env.put(MAKEVARS, writeMakevars(new File(cacheDirectory, "Makevars"), ccache).getAbsolutePath());
+				env.put("CCACHE_DIR", new File(cacheDirectory, "objects").getAbsolutePath());
+				env.put("CCACHE_MAXSIZE", cacheSize + "M");
+				env.put("CCACHE_NOHASHDIR", "true");
+			}
+			catch (IOException e)
+			{
+				log.warn("Cannot set up the object cache: " + e.getMessage());
+			}
+		return env;
+	}
+
+	/**
+	 * @param name The name of an executable, or its path.
+	 * @return The executable, or null if it cannot be found in the PATH.
+	 */
+	static File findExecutable(String name)
+	{
+		File file = new File(name);
+		if (file.isAbsolute())
+			return file.canExecute() ? file : null;
+
+		String path = System.getenv("PATH");
+		if (path != null)
+			for (String dir : path.split(File.pathSeparator))
+				for (String candidate : Platform.isWindows() ? new String[] { name + ".exe", name } : new String[] { name })
+					if (new File(dir, candidate).isFile() && new File(dir, candidate).canExecute())
+						return new File(dir, candidate);
+		return null;
+	}
+
+	/**
+	 * Writes the Makevars wrapping the compilers with ccache. The Makevars of the user, if any, is included first.
+	 */
+	private static File writeMakevars(File file, File ccache) throws IOException
+	{
+		String userMakevars = System.getenv(MAKEVARS);
+		File user = userMakevars != null && !userMakevars.isEmpty() ? new File(userMakevars)
+				: new File(System.getProperty("user.home"), ".R" + File.separator + "Makevars");
+
+		StringBuilder makevars = new StringBuilder("# Generated by r-maven-plugin\n");
+		if (user.isFile() && !user.getAbsoluteFile().equals(file.getAbsoluteFile()))
+			makevars.append("include ").append(user.getAbsolutePath().replace('\\', '/')).append('\n');
+		String wrapper = ccache.getAbsolutePath().replace('\\', '/');
+		for (String compiler : COMPILERS)
+			makevars.append("ifneq ($(strip $(").append(compiler).append(")),)\nifeq ($(findstring ccache,$(").append(compiler).append(")),)\n")
+					.append(compiler).append(" := ").append(wrapper).append(" $(").append(compiler).append(")\nendif\nendif\n");
+
+		byte contents[] = makevars.toString().getBytes(Charset.forName("UTF-8"));
+		if (file.isFile() && Arrays.equals(contents, Files.readAllBytes(file.toPath())))
+			return file;
+
+		file.getParentFile().mkdirs();
+		File temp = File.createTempFile("Makevars", ".tmp", file.getParentFile());
+		Files.write(temp.toPath(), contents);
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+}
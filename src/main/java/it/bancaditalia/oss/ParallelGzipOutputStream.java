@@ -0,0 +1,196 @@
+package it.bancaditalia.oss;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream compressing fixed-size blocks on several threads, in the way of pigz.
+ *
+ * Each block is deflated on its own, primed with the last 32 KiB of the previous block, and ends on a byte boundary, so
+ * that the compressed blocks can be concatenated into a single deflate stream. The output depends only on the data and
+ * on the compression level, not on the number of threads. The gzip header carries no time stamp nor file name.
+ */
+final class ParallelGzipOutputStream extends FilterOutputStream
+{
+	static final int					BLOCK		= 128 * 1024;
+	private static final int			DICTIONARY	= 32 * 1024;
+
+	private final ExecutorService		executor;
+	private final int					level;
+	private final int					maxPending;
+	private final Deque<Future<byte[]>>	pending		= new ArrayDeque<>();
+	private final CRC32					crc			= new CRC32();
+	private byte						block[]		= new byte[BLOCK];
+	private int							length		= 0;
+	private byte						dictionary[]	= null;
+	private long						total		= 0;
+	private boolean						closed		= false;
+
+	/**
+	 * @param out The stream receiving the compressed data.
+	 * @param threads The number of compressing threads.
+	 * @param level The compression level, from 1 to 9.
+	 * @throws IOException if the gzip header cannot be written.
+	 */
+	ParallelGzipOutputStream(OutputStream out, int threads, int level) throws IOException
+	{
+		super(out);
+		this.level = level;
+		this.maxPending = 2 * Math.max(1, threads);
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "gzip");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		out.write(new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, (byte) (level == Deflater.BEST_COMPRESSION ? 2 : 0), (byte) 255 });
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte b[], int off, int len) throws IOException
+	{
+		crc.update(b, off, len);
+		total += len;
+		while (len > 0)
+		{
+			int n = Math.min(len, BLOCK - length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			off += n;
+			len -= n;
+			if (length == BLOCK)
+				submit(false);
+		}
+	}
+
+	/**
+	 * Compresses the remaining data and writes the gzip trailer, without closing the underlying stream.
+	 *
+	 * @throws IOException if the data cannot be written.
+	 */
+	void finish() throws IOException
+	{
+		submit(true);
+		while (!pending.isEmpty())
+			drain();
+
+		long trailer[] = { crc.getValue(), total };
+		for (long value : trailer)
+			for (int i = 0; i < 4; i++)
+				out.write((int) (value >>> 8 * i) & 0xFF);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		try
+		{
+			finish();
+		}
+		finally
+		{
+			executor.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void submit(final boolean last) throws IOException
+	{
+		final byte data[] = block;
+		final int size = length;
+		final byte dict[] = dictionary;
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call()
+			{
+				return deflate(data, size, dict, last, level);
+			}
+		}));
+
+		if (size > 0)
+			dictionary = Arrays.copyOfRange(data, Math.max(0, size - DICTIONARY), size);
+		block = new byte[BLOCK];
+		length = 0;
+		while (pending.size() >= maxPending)
+			drain();
+	}
+
+	private void drain() throws IOException
+	{
+		try
+		{
+			out.write(pending.removeFirst().get());
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Compression failed: " + e.getCause().getMessage(), e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing.");
+		}
+	}
+
+	private static byte[] deflate(byte data[], int size, byte dictionary[], boolean last, int level)
+	{
+		Deflater deflater = new Deflater(level, true);
+		try
+		{
+			if (dictionary != null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(data, 0, size);
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(size / 2 + 64);
+			byte buffer[] = new byte[16384];
+			if (last)
+			{
+				deflater.finish();
+				while (!deflater.finished())
+					compressed.write(buffer, 0, deflater.deflate(buffer));
+			}
+			else
+			{
+				// A sync flush ends the block on a byte boundary, so that the next block can be appended
+				int n;
+				do
+				{
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, n);
+				}
+				while (n == buffer.length);
+			}
+			return compressed.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+}
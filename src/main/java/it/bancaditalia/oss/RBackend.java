@@ -0,0 +1,103 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * An R execution backend, which hands out {@link RSession}s to the mojos.
+ *
+ * Backends are shared by all the mojo executions of the same build, and are created on first use with the
+ * configuration of the first mojo requesting them.
+ */
+public abstract class RBackend
+{
+	/**
+	 * Name of the backend that runs R inside the Maven JVM through JRI.
+	 */
+	public static final String					JRI			= "jri";
+
+	/**
+	 * Name of the backend that runs R in a pool of out-of-process Rscript workers.
+	 */
+	public static final String					WORKERS		= "workers";
+
+	/**
+	 * Name of the backend that runs R in a daemon process shared by subsequent builds.
+	 */
+	public static final String					DAEMON		= "daemon";
+
+	private static final Map<String, RBackend>	backends	= new HashMap<>();
+
+	/**
+	 * Returns the backend configured in a mojo, creating it if needed.
+	 *
+	 * @param mojo The mojo holding the backend configuration.
+	 * @return the backend
+	 * @throws MojoExecutionException if the configuration is invalid.
+	 */
+	public static synchronized RBackend getBackend(AbstractRMojo mojo) throws MojoExecutionException
+	{
+		File rHome = mojo.rHome;
+		File[] sharedLibs = mojo.sharedLibs;
+		String type = mojo.backend == null ? JRI : mojo.backend;
+		int workers = mojo.workers < 1 ? Runtime.getRuntime().availableProcessors() : mojo.workers;
+		RInstallation installation = new RInstallation(rHome, mojo.cacheDirectory);
+
+		// Checked on the library inventory, before any backend spends time starting R
+		installation.requirePackage("devtools", null);
+
+		String key;
+		switch (type)
+		{
+			case JRI:
+				// There can only be one embedded R per JVM
+				key = JRI;
+				break;
+			case WORKERS:
+				key = WORKERS + ":" + rHome.getAbsolutePath() + ":" + (sharedLibs == null ? "" : Arrays.toString(sharedLibs)) + ":" + workers;
+				break;
+			case DAEMON:
+				key = DAEMON + ":" + rHome.getAbsolutePath() + ":" + (sharedLibs == null ? "" : Arrays.toString(sharedLibs)) + ":"
+						+ installation.getLibraryPaths();
+				break;
+			default:
+				throw new MojoExecutionException("Unknown R backend \"" + type + "\". Supported backends are \"" + JRI + "\", \"" + WORKERS
+						+ "\" and \"" + DAEMON + "\".");
+		}
+
+		RBackend backend = backends.get(key);
+		if (backend == null)
+		{
+			switch (type)
+			{
+				case JRI:
+					backend = new JRIBackend(rHome, sharedLibs);
+					break;
+				case WORKERS:
+					backend = new RWorkerPool(rHome, sharedLibs, workers);
+					break;
+				default:
+					backend = new RDaemon(rHome, sharedLibs, new File(mojo.cacheDirectory, "daemon"), new Fingerprint().add(key).toString(),
+							mojo.daemonIdleTimeout);
+			}
+			backends.put(key, backend);
+		}
+
+		return backend;
+	}
+
+	/**
+	 * Leases an R session, waiting for one to become available if needed.
+	 *
+	 * @param log The log where to report backend activity and R console output on behalf of the caller.
+	 * @param stream true to log the R console output at info level, as it is produced; false to log it at debug level.
+	 * @return A session, to be closed when done.
+	 * @throws MojoExecutionException if R cannot be started.
+	 */
+	public abstract RSession openSession(Log log, boolean stream) throws MojoExecutionException;
+}
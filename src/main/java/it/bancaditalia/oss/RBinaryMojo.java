@@ -0,0 +1,200 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Goal which runs R CMD INSTALL --build on the built source package.
+ *
+ * The package is installed into a project-private library under the build directory, and the resulting binary package
+ * is attached to the project with its own classifier. Once installed, the check goal and the R modules that depend on
+ * this project in the reactor load the package from the private library instead of installing it again.
+ *
+ * The package is installed with the private libraries of the upstream R modules ahead of R_LIBS. The installation is
+ * reused as long as the source package, the R version, the platform and the packages in the project libraries are
+ * unchanged. Installed packages are also kept in a local cache, so that byte-compiled code and lazy-load databases
+ * survive a clean build.
+ */
+@Mojo(name = "binary", defaultPhase = LifecyclePhase.PACKAGE, threadSafe = true)
+public class RBinaryMojo extends AbstractRMojo
+{
+	private static final String	KEY		= "key";
+	private static final String	BINARY	= "binary";
+
+	/**
+	 * Classifier of the attached binary package.
+	 */
+	@Parameter(defaultValue = "bin", property = "R.binary.classifier") String	binaryClassifier;
+
+	/**
+	 * Set it to {@code false} to always install the package, without looking up the install cache.
+	 */
+	@Parameter(defaultValue = "true", property = "R.binary.cache") boolean		useBinaryCache;
+
+	/**
+	 * Maximum size of the install cache, in megabytes. Least recently used packages are evicted first.
+	 */
+	@Parameter(defaultValue = "1024", property = "R.binary.cacheSize") long		binaryCacheSize;
+
+	@Override
+	protected void executeGoal() throws MojoExecutionException
+	{
+		Log log = getLog();
+
+		log.info("Binary build started");
+		String version = checkRPackageVersion();
+		setupDirectories();
+
+		String packageName = project.getArtifactId();
+		File targetDir = new File(project.getBuild().getDirectory());
+		File tarball = new File(targetDir, packageName + "_" + version + ".tar.gz");
+		if (!tarball.isFile())
+			throw new MojoExecutionException("Source package " + tarball + " does not exists. Remember to use the 'build' goal.");
+
+		File library = getPrivateLibrary();
+		File installed = new File(library, packageName);
+		File installLog = getInstallLog(project.getBuild().getDirectory(), packageName);
+		try
+		{
+			String key = getInstallKey(this, tarball);
+			StatusFile status = StatusFile.load(getStatusFile("binary"));
+			File binary = status.get(BINARY) == null ? null : new File(targetDir, status.get(BINARY));
+
+			if (key.equals(status.get(KEY)) && installed.isDirectory() && installLog.isFile() && binary != null && binary.isFile())
+				log.info("Installed package is up to date.");
+			else
+			{
+				status.clear();
+				status.save();
+				FileTree.delete(installed);
+				library.mkdirs();
+
+				ContentCache cache = useBinaryCache ? getCache("binary", binaryCacheSize) : null;
+				File entry = cache == null ? null : cache.lookup(key);
+				binary = entry == null ? null : findBinary(entry, packageName + "_" + version);
+				if (binary != null)
+				{
+					FileTree.copy(new File(entry, packageName), installed);
+					FileTree.copy(new File(entry, installLog.getName()), installLog);
+					FileTree.copy(binary, binary = new File(targetDir, binary.getName()));
+					log.info("Installed package restored from install cache.");
+				}
+				else
+				{
+					log.info("Installing " + tarball.getName() + " into " + library + "...");
+					int exitStatus = getRScriptWithProjectLibraries().command(targetDir, installLog, log, "CMD", "INSTALL", "--build",
+							"--library=" + library.getAbsolutePath(), tarball.getAbsolutePath());
+					if (exitStatus != 0)
+						throw new MojoExecutionException("R CMD INSTALL failed with exit status " + exitStatus + ". See " + installLog + " for details.");
+
+					binary = findBinary(targetDir, packageName + "_" + version);
+					if (binary == null)
+						throw new MojoExecutionException("R CMD INSTALL did not produce a binary package in " + targetDir);
+
+					if (cache != null)
+						try
+						{
+							cache.store(key, binary, installed, installLog);
+						}
+						catch (IOException e)
+						{
+							log.warn("Cannot store package in install cache: " + e.getMessage());
+						}
+				}
+
+				status.put(KEY, key);
+				status.put(BINARY, binary.getName());
+				status.save();
+			}
+
+			if (attachArtifact)
+			{
+				String name = binary.getName();
+				String type = name.endsWith(".tar.gz") ? "tar.gz" : name.substring(name.lastIndexOf('.') + 1);
+				log.info("Added artifact " + binary + " to project with classifier " + binaryClassifier + ".");
+				mavenProjectHelper.attachArtifact(project, type, binaryClassifier, binary);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot install package: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param mojo The mojo of the project.
+	 * @param tarball The source package.
+	 * @return The key identifying an installation of the source package: the R version, the platform, the source
+	 *         package and the versions of the other packages in the project libraries.
+	 * @throws MojoExecutionException if the R installation is not valid.
+	 * @throws IOException if the source package cannot be read.
+	 */
+	static String getInstallKey(AbstractRMojo mojo, File tarball) throws MojoExecutionException, IOException
+	{
+		Fingerprint key = new Fingerprint().add(mojo.getInstallation().getVersion()).add(System.getProperty("os.name"))
+				.add(System.getProperty("os.arch")).addFile(tarball);
+
+		Map<String, String> versions = new TreeMap<>();
+		for (LibraryInventory.InstalledPackage installed : LibraryInventory.load(mojo.getProjectLibraries(), new File(mojo.cacheDirectory, "inventory")).getPackages())
+			if (!installed.name.equals(mojo.project.getArtifactId()))
+				versions.put(installed.name, installed.version);
+		return key.add(versions).toString();
+	}
+
+	/**
+	 * Tells whether the package has been installed in the private library from a source package.
+	 *
+	 * @param mojo The mojo of the project.
+	 * @param tarball The source package.
+	 * @return true if the installed package was built from the source package with the current R installation.
+	 * @throws MojoExecutionException if the R installation is not valid.
+	 * @throws IOException if the source package cannot be read.
+	 */
+	static boolean isInstalled(AbstractRMojo mojo, File tarball) throws MojoExecutionException, IOException
+	{
+		File installed = new File(mojo.getPrivateLibrary(), mojo.project.getArtifactId());
+		return installed.isDirectory() && getInstallLog(mojo.project.getBuild().getDirectory(), mojo.project.getArtifactId()).isFile()
+				&& tarball.isFile() && getInstallKey(mojo, tarball).equals(StatusFile.load(mojo.getStatusFile("binary")).get(KEY));
+	}
+
+	/**
+	 * @param targetDir The build directory.
+	 * @param packageName The package name.
+	 * @return The output of R CMD INSTALL.
+	 */
+	static File getInstallLog(String targetDir, String packageName)
+	{
+		return new File(targetDir, packageName + "-install.log");
+	}
+
+	/**
+	 * Finds the binary package built by R CMD INSTALL, which is named differently on each platform.
+	 */
+	private static File findBinary(File dir, final String prefix)
+	{
+		File found = null;
+		File candidates[] = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file)
+			{
+				String name = file.getName();
+				return file.isFile() && (name.startsWith(prefix + "_") && name.endsWith(".tar.gz") || name.equals(prefix + ".tgz")
+						|| name.equals(prefix + ".zip"));
+			}
+		});
+		if (candidates != null)
+			for (File candidate : candidates)
+				if (found == null || candidate.lastModified() > found.lastModified())
+					found = candidate;
+		return found;
+	}
+}
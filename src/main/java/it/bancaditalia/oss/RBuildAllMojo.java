@@ -0,0 +1,314 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.project.MavenProject;
+import org.rosuda.JRI.REXP;
+
+/**
+ * Goal which builds all the R modules of the reactor at once, e.g. with {@code mvn compile r:build-all}.
+ *
+ * The modules are grouped in levels, so that each module is built after the R modules it depends upon, and the modules
+ * of the same level are built in parallel. With the {@code workers} backend each module is built in its own worker;
+ * otherwise the modules of a level are built by a single R statement, forking the R session with the parallel package
+ * where available. The embedded JRI session is never forked, since it lives in the Maven JVM. Packages found in the
+ * build cache are restored without R, and each package is attached to its own module. The packages of each level are
+ * installed in a library under the build directory of the aggregator, which the builds of the next levels search
+ * first, so that vignettes and examples find the R modules they depend upon.
+ */
+@Mojo(name = "build-all", aggregator = true, threadSafe = true)
+public class RBuildAllMojo extends RBuildMojo
+{
+	private static final String BUILD_LEVEL = "local({\n"
+			+ "  pkgs <- c(%s)\n"
+			+ "  paths <- c(%s)\n"
+			+ "  build <- function(i) tryCatch(list(devtools::build(pkg = as.package(pkgs[i]), quiet = %5$s, path = paths[i]%4$s), ''),\n"
+			+ "      error = function(e) list('', conditionMessage(e)))\n"
+			+ "  res <- if (%d > 1 && .Platform$OS.type == 'unix')\n"
+			+ "      parallel::mclapply(seq_along(pkgs), build, mc.cores = %3$d, mc.preschedule = FALSE)\n"
+			+ "    else lapply(seq_along(pkgs), build)\n"
+			+ "  res <- lapply(res, function(r) if (inherits(r, 'try-error')) list('', as.character(r)) else r)\n"
+			+ "  c(vapply(res, function(r) as.character(r[[1]]), ''), vapply(res, function(r) as.character(r[[2]]), ''))\n"
+			+ "})";
+
+	@Override
+	protected void executeGoal() throws MojoExecutionException
+	{
+		Log log = getLog();
+
+		List<List<MavenProject>> levels = planLevels();
+		if (levels.isEmpty())
+		{
+			log.info("No R modules found in the reactor.");
+			return;
+		}
+
+		ContentCache cache = useBuildCache ? getBuildCache() : null;
+		RInstallation installation = getInstallation();
+		File library = new File(project.getBuild().getDirectory(), "build-all-library");
+		try
+		{
+			FileTree.delete(library);
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot clean " + library + ": " + e.getMessage(), e);
+		}
+
+		for (int depth = 0; depth < levels.size(); depth++)
+		{
+			List<MavenProject> level = levels.get(depth);
+			List<File> libraries = library.isDirectory() ? Collections.singletonList(library) : Collections.<File> emptyList();
+			Map<MavenProject, File> built = new LinkedHashMap<>();
+			Map<MavenProject, String> keys = new LinkedHashMap<>();
+			for (MavenProject module : level)
+			{
+				File outputDirectory = new File(module.getBuild().getOutputDirectory());
+				if (!new File(outputDirectory, "DESCRIPTION").isFile())
+					throw new MojoExecutionException("DESCRIPTION file of " + module.getArtifactId() + " does not exists. Remember to use the 'sources' goal.");
+				new File(module.getBuild().getDirectory()).mkdirs();
+
+				String key = null;
+				if (cache != null)
+					try
+					{
+						List<File> seen = new ArrayList<>(libraries);
+						seen.addAll(getProjectLibraries());
+						key = getBuildCacheKey(installation, outputDirectory, module.getArtifactId(), seen);
+						File artifact = restore(cache, key, new File(module.getBuild().getDirectory()));
+						if (artifact != null)
+						{
+							log.info(module.getArtifactId() + ": package restored from build cache.");
+							attach(module, artifact);
+							built.put(module, artifact);
+							continue;
+						}
+					}
+					catch (IOException e)
+					{
+						throw new MojoExecutionException("Cannot access build cache: " + e.getMessage(), e);
+					}
+				keys.put(module, key);
+			}
+
+			// The packages of the last level are not needed by other builds
+			if (keys.isEmpty())
+			{
+				if (depth < levels.size() - 1)
+					install(built, library);
+				continue;
+			}
+
+			List<MavenProject> modules = new ArrayList<>(keys.keySet());
+			log.info("Building " + modules.size() + " R packages...");
+			Map<MavenProject, Object> results = RBackend.WORKERS.equals(backend) ? buildInWorkers(modules, libraries) : buildInSession(modules, libraries);
+
+			int failed = 0;
+			for (MavenProject module : modules)
+			{
+				Object result = results.get(module);
+				if (result instanceof File)
+					try
+					{
+						result = pack((File) result);
+					}
+					catch (MojoExecutionException e)
+					{
+						result = e.getMessage();
+					}
+				if (result instanceof File)
+				{
+					File artifact = (File) result;
+					if (cache != null)
+						try
+						{
+							cache.store(keys.get(module), artifact);
+						}
+						catch (IOException e)
+						{
+							log.warn("Cannot store package in build cache: " + e.getMessage());
+						}
+					attach(module, artifact);
+					built.put(module, artifact);
+				}
+				else
+				{
+					log.error(module.getArtifactId() + ": " + result);
+					failed++;
+				}
+			}
+
+			if (failed > 0)
+				throw new MojoExecutionException("Build failed for " + failed + " R modules.");
+			if (depth < levels.size() - 1)
+				install(built, library);
+		}
+	}
+
+	/**
+	 * Installs the packages of a level in the library searched by the builds of the next levels.
+	 */
+	private void install(Map<MavenProject, File> packages, final File library) throws MojoExecutionException
+	{
+		library.mkdirs();
+		int processes = Math.max(1, Math.min(packages.size(), getParallelism()));
+		final RScript rscript = getRScript(processes);
+		ExecutorService executor = Executors.newFixedThreadPool(processes);
+		try
+		{
+			Map<MavenProject, Future<Integer>> statuses = new LinkedHashMap<>();
+			for (final Map.Entry<MavenProject, File> artifact : packages.entrySet())
+				statuses.put(artifact.getKey(), executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws MojoExecutionException
+					{
+						return rscript.command(library, null, getLog(), "CMD", "INSTALL", "--no-docs", "--no-multiarch",
+								"--library=" + library.getAbsolutePath(), artifact.getValue().getAbsolutePath());
+					}
+				}));
+
+			for (Map.Entry<MavenProject, Future<Integer>> status : statuses.entrySet())
+			{
+				int exitStatus = status.getValue().get();
+				if (exitStatus != 0)
+					throw new MojoExecutionException("Cannot install " + status.getKey().getArtifactId() + " for the dependent R modules: R CMD INSTALL "
+							+ "failed with exit status " + exitStatus + ".");
+			}
+		}
+		catch (ExecutionException e)
+		{
+			throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while installing R packages.", e);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Groups the R modules of the reactor so that each module comes after the R modules it depends upon, directly or
+	 * through other modules.
+	 *
+	 * @return The levels of modules, in build order.
+	 */
+	private List<List<MavenProject>> planLevels()
+	{
+		ProjectDependencyGraph graph = session.getProjectDependencyGraph();
+		Map<MavenProject, Integer> depths = new HashMap<>();
+		List<List<MavenProject>> levels = new ArrayList<>();
+		for (MavenProject module : graph.getSortedProjects())
+			if ("R".equals(module.getPackaging()))
+			{
+				int depth = 0;
+				for (MavenProject upstream : graph.getUpstreamProjects(module, true))
+					if (depths.containsKey(upstream))
+						depth = Math.max(depth, depths.get(upstream) + 1);
+				depths.put(module, depth);
+
+				while (levels.size() <= depth)
+					levels.add(new ArrayList<MavenProject>());
+				levels.get(depth).add(module);
+			}
+
+		return levels;
+	}
+
+	/**
+	 * @return For each module, the built package or the error message.
+	 */
+	private Map<MavenProject, Object> buildInSession(List<MavenProject> modules, List<File> libraries) throws MojoExecutionException
+	{
+		StringBuilder pkgs = new StringBuilder();
+		StringBuilder paths = new StringBuilder();
+		for (MavenProject module : modules)
+		{
+			pkgs.append(pkgs.length() > 0 ? ", " : "").append(RScript.quote(module.getBuild().getOutputDirectory()));
+			paths.append(paths.length() > 0 ? ", " : "").append(RScript.quote(module.getBuild().getDirectory()));
+		}
+		int cores = RBackend.JRI.equals(backend) ? 1 : Math.min(modules.size(), getParallelism());
+
+		Map<MavenProject, Object> results = new HashMap<>();
+		try (RSession session = openSession())
+		{
+			REXP res = tryCatch(session, withLibraries(libraries, String.format(BUILD_LEVEL, pkgs, paths, cores, getBuildArgs(), streamConsole ? "F" : "T")));
+			List<String> values = RResults.strings(res);
+			if (values.size() != 2 * modules.size())
+				throw new MojoExecutionException("R internal error while invoking R CMD build");
+
+			for (int i = 0; i < modules.size(); i++)
+			{
+				String path = values.get(i);
+				results.put(modules.get(i), path != null && !path.isEmpty() ? new File(path) : values.get(modules.size() + i));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return For each module, the built package or the error message.
+	 */
+	private Map<MavenProject, Object> buildInWorkers(List<MavenProject> modules, final List<File> libraries) throws MojoExecutionException
+	{
+		final int processes = Math.min(modules.size(), getParallelism());
+		ExecutorService executor = Executors.newFixedThreadPool(processes);
+		try
+		{
+			Map<MavenProject, Future<File>> futures = new LinkedHashMap<>();
+			for (final MavenProject module : modules)
+				futures.put(module, executor.submit(new Callable<File>() {
+					@Override
+					public File call() throws MojoExecutionException
+					{
+						try (RSession session = openSession(processes))
+						{
+							REXP res = tryCatch(session, withLibraries(libraries, "devtools::build(pkg = as.package(" + RScript.quote(module.getBuild().getOutputDirectory())
+									+ "), quiet = " + (streamConsole ? "F" : "T") + ", path = " + RScript.quote(module.getBuild().getDirectory()) + getBuildArgs() + ")"));
+							return RResults.path(res, "invoking R CMD build");
+						}
+					}
+				}));
+
+			Map<MavenProject, Object> results = new HashMap<>();
+			for (Map.Entry<MavenProject, Future<File>> future : futures.entrySet())
+				try
+				{
+					results.put(future.getKey(), future.getValue().get());
+				}
+				catch (ExecutionException e)
+				{
+					results.put(future.getKey(), e.getCause().getMessage());
+				}
+			return results;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while building R packages.", e);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+}
@@ -1,50 +1,631 @@
 package it.bancaditalia.oss;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
 import org.rosuda.JRI.REXP;
-import org.rosuda.JRI.Rengine;
 
 /**
  * Goal which runs R CMD BUILD.
+ * 
+ * Built packages are kept in a local cache, keyed by the contents of the prepared package directory, by the versions
+ * of R, devtools and roxygen2 and by the versions of the packages in the project libraries, which the vignettes may
+ * use. When the key is found in the cache, the package is restored without starting R.
+ * 
+ * With {@code R.build.reproducible}, R CMD build produces an uncompressed archive which is then rewritten in Java with
+ * sorted entries and normalized times, owners and modes, and compressed on all cores. The archive keeps the name
+ * {@code <package>_<version>.tar.gz}, and its contents do not depend on when and where it was built.
+ * 
+ * Rendered vignettes are kept in a separate cache, keyed by the vignette source, the other files in the vignettes
+ * directory, the package code and the packages in the project libraries. When all the vignettes are cached, their
+ * outputs are copied into inst/doc and R CMD build runs without re-building the vignettes. Otherwise, the missing
+ * vignettes are either rendered by R CMD build or, with {@code R.vignettes.shards}, by several R processes before the
+ * build; the new outputs are then stored in the cache.
  */
-@Mojo(name = "build", defaultPhase = LifecyclePhase.PACKAGE)
+@Mojo(name = "build", defaultPhase = LifecyclePhase.PACKAGE, threadSafe = true)
 public class RBuildMojo extends AbstractRMojo
 {
+	/**
+	 * R program installing the package for rendering its vignettes or its site.
+	 */
+	static final String			INSTALL_SCRIPT	= "pkg <- %s; src <- %s; lib <- c(%s)\n"
+			+ ".libPaths(c(lib, .libPaths()))\n"
+			+ "install.packages(src, lib = lib[1], repos = NULL, type = 'source', INSTALL_opts = c('--no-docs', '--no-multiarch', '--no-test-load', '--clean'))\n"
+			+ "if (!dir.exists(file.path(lib[1], pkg))) quit(status = 1)\n";
+	/**
+	 * R program run by each vignette shard in a copy of the vignettes directory. For each vignette, the names of the
+	 * outputs or the error are written to files named after the vignette.
+	 */
+	private static final String	RENDER_SCRIPT	= "out <- %s\n"
+			+ ".libPaths(c(%s, .libPaths()))\n"
+			+ "for (file in c(%s)) {\n"
+			+ "  res <- tryCatch(tools::buildVignette(file, dir = '.', tangle = TRUE, quiet = TRUE), error = function(e) e)\n"
+			+ "  if (inherits(res, 'error')) writeLines(conditionMessage(res), file.path(out, paste0(file, '.err')))\n"
+			+ "  else writeLines(basename(res), file.path(out, paste0(file, '.out')))\n"
+			+ "}\n";
+	private static final String	TARBALL			= "tarball";
+
+	/**
+	 * Set it to {@code false} to always build the package, without looking up the build cache.
+	 */
+	@Parameter(defaultValue = "true", property = "R.build.cache") boolean	useBuildCache;
+
+	/**
+	 * Maximum size of the build cache, in megabytes. Least recently used packages are evicted first.
+	 */
+	@Parameter(defaultValue = "1024", property = "R.build.cacheSize") long	buildCacheSize;
+
+	/**
+	 * Set it to {@code true} to write the package archive in Java, with reproducible contents and parallel compression.
+	 */
+	@Parameter(defaultValue = "false", property = "R.build.reproducible") boolean	reproducible;
+
+	/**
+	 * Time of the entries of reproducible archives, as an ISO 8601 date or in seconds since the epoch. When not set,
+	 * the {@code SOURCE_DATE_EPOCH} environment variable is used, or else 1980-01-01T00:00:00Z.
+	 */
+	@Parameter(defaultValue = "${project.build.outputTimestamp}", property = "R.build.outputTimestamp") String	outputTimestamp;
+
+	/**
+	 * Set it to {@code false} to always render the vignettes, without looking up the vignette cache.
+	 */
+	@Parameter(defaultValue = "true", property = "R.vignettes.cache") boolean	useVignetteCache;
+
+	/**
+	 * Maximum size of the vignette cache, in megabytes. Least recently used vignettes are evicted first.
+	 */
+	@Parameter(defaultValue = "512", property = "R.vignettes.cacheSize") long	vignetteCacheSize;
+
+	/**
+	 * Number of R processes rendering the vignettes not found in the vignette cache. With a value of one, the vignettes
+	 * are rendered by R CMD build; with a value less than one, the number of workers is used.
+	 */
+	@Parameter(defaultValue = "1", property = "R.vignettes.shards") int		vignetteShards;
+
 	@Override
-	public void execute() throws MojoExecutionException
+	protected void executeGoal() throws MojoExecutionException
 	{
 		Log log = getLog();
 		
 		log.info("Build started");
 		checkRPackageVersion();
 		setupDirectories();
-		
-		Rengine engine;
-		
-		synchronized (engine = getEngine())
-		{
-			String statement = "setwd('" + project.getBuild().getDirectory() + "')";
-			log.debug("Executing R statement: " + statement);
-			REXP res = engine.eval(statement);
-			statement = "devtools::build(pkg = as.package('" + project.getBuild().getOutputDirectory() + "'), quiet = T, "
-					+ "path = '" + project.getBuild().getDirectory() + "')";
-			log.debug("Executing R statement: " + statement);
-			res = tryCatch(statement);
-			if (res == null)
-				throw new MojoExecutionException("R internal error while invoking R CMD build");
-			else if (attachArtifact)
-			{
-				File artifact = new File(res.asString());
-				log.info("Added artifact " + artifact + " to project" + (classifier == null ? "" : " with classifier " + classifier) + ".");
-				mavenProjectHelper.attachArtifact(project, "tar.gz", classifier, artifact);
-			} 
-			else if (classifier != null)
-				log.warn("Classifier specified with artifact attachment disabled.");
+
+		ContentCache cache = null;
+		String key = null;
+		if (useBuildCache)
+			try
+			{
+				cache = getBuildCache();
+				key = getBuildCacheKey(getInstallation(), new File(project.getBuild().getOutputDirectory()));
+				File artifact = restore(cache, key, new File(project.getBuild().getDirectory()));
+				if (artifact != null)
+				{
+					log.info("Package restored from build cache.");
+					markRendered(artifact);
+					attach(project, artifact);
+					return;
+				}
+			}
+			catch (IOException e)
+			{
+				throw new MojoExecutionException("Cannot access build cache: " + e.getMessage(), e);
+			}
+
+		File sources = new File(project.getBuild().getOutputDirectory());
+		ContentCache vignetteCache = null;
+		Map<File, String> vignetteKeys = new LinkedHashMap<>();
+		List<File> injected = new ArrayList<>();
+		try
+		{
+			if (useVignetteCache)
+			{
+				vignetteCache = getCache("vignettes", vignetteCacheSize);
+				vignetteKeys = getVignetteKeys(sources);
+			}
+			boolean prebuilt = !vignetteKeys.isEmpty() && injectVignettes(vignetteCache, vignetteKeys, sources, injected);
+
+			try (RSession session = openSession())
+			{
+				String statement = "setwd('" + project.getBuild().getDirectory() + "')";
+				log.debug("Executing R statement: " + statement);
+				REXP res = tryCatch(session, statement);
+				statement = withProjectLibraries("devtools::build(pkg = as.package('" + project.getBuild().getOutputDirectory() + "'), quiet = " + (streamConsole ? "F" : "T") + ", "
+						+ "path = '" + project.getBuild().getDirectory() + "'" + (prebuilt ? ", vignettes = F" : "") + getBuildArgs() + ")");
+				log.debug("Executing R statement: " + statement);
+				res = tryCatch(session, statement);
+
+				File artifact = pack(RResults.path(res, "invoking R CMD build"));
+				if (cache != null)
+					try
+					{
+						cache.store(key, artifact);
+					}
+					catch (IOException e)
+					{
+						log.warn("Cannot store package in build cache: " + e.getMessage());
+					}
+
+				if (!prebuilt && !vignetteKeys.isEmpty())
+					harvestVignettes(vignetteCache, vignetteKeys, artifact);
+				markRendered(artifact);
+				attach(project, artifact);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot access vignette cache: " + e.getMessage(), e);
+		}
+		finally
+		{
+			for (File file : injected)
+				file.delete();
+		}
+	}
+
+	/**
+	 * Computes the keys of the vignettes in the vignette cache. Each key covers the vignette source, the other files in
+	 * the vignettes directory that are not vignettes themselves, such as data and child documents, the code of the
+	 * package and the versions of R, knitr, rmarkdown and of the packages in the project libraries.
+	 * 
+	 * @param sources The prepared package directory.
+	 * @return The keys of the vignettes, empty if the package has no vignettes.
+	 * @throws IOException if the package directory cannot be read.
+	 * @throws MojoExecutionException if the R installation is not valid.
+	 */
+	private Map<File, String> getVignetteKeys(File sources) throws IOException, MojoExecutionException
+	{
+		Map<File, String> keys = new LinkedHashMap<>();
+		File dir = new File(sources, "vignettes");
+		List<File> vignettes = listVignettes(dir);
+		if (vignettes.isEmpty())
+			return keys;
+
+		RInstallation installation = getInstallation();
+		Fingerprint code = new Fingerprint().add(installation.getVersion()).add(installation.getPackageVersion("knitr"))
+				.add(installation.getPackageVersion("rmarkdown")).addFile(new File(sources, "DESCRIPTION")).addFile(new File(sources, "NAMESPACE"));
+		for (String subdir : new String[] { "R", "src", "data" })
+			code.add(subdir).addTree(new File(sources, subdir));
+		for (Map.Entry<String, File> file : FileTree.list(new File(sources, "inst")).entrySet())
+			if (!file.getKey().startsWith("doc/"))
+				code.add(file.getKey()).addFile(file.getValue());
+		Map<String, String> versions = new TreeMap<>();
+		for (LibraryInventory.InstalledPackage installed : LibraryInventory.load(getProjectLibraries(), new File(cacheDirectory, "inventory")).getPackages())
+			versions.put(installed.name, installed.version);
+		String packageKey = code.add(versions).toString();
+
+		List<String> names = new ArrayList<>();
+		for (File vignette : vignettes)
+			names.add(vignette.getName());
+		Map<String, File> files = FileTree.list(dir);
+		for (File vignette : vignettes)
+		{
+			Fingerprint key = new Fingerprint().add(packageKey).add(vignette.getName()).addFile(vignette);
+			for (Map.Entry<String, File> file : files.entrySet())
+				if (!names.contains(file.getKey()))
+					key.add(file.getKey()).addFile(file.getValue());
+			keys.put(vignette, key.toString());
+			getLog().debug("Vignette cache key for " + vignette.getName() + ": " + keys.get(vignette));
+		}
+		return keys;
+	}
+
+	/**
+	 * Renders the vignettes missing from the vignette cache in parallel, if configured, then copies the cached outputs
+	 * of all the vignettes into inst/doc.
+	 * 
+	 * @param injected Receives the files copied into inst/doc, to be removed after the build.
+	 * @return true if all the vignettes were copied, false if R CMD build has to render them.
+	 */
+	private boolean injectVignettes(ContentCache cache, Map<File, String> keys, File sources, List<File> injected)
+			throws IOException, MojoExecutionException
+	{
+		List<File> missing = new ArrayList<>();
+		for (Map.Entry<File, String> vignette : keys.entrySet())
+			if (cache.lookup(vignette.getValue()) == null)
+				missing.add(vignette.getKey());
+
+		int shards = Math.min(vignetteShards < 1 ? getParallelism() : vignetteShards, missing.size());
+		if (shards > 1)
+			renderVignettes(cache, keys, missing, sources, shards);
+		else if (!missing.isEmpty())
+			return false;
+
+		getLog().info((keys.size() - missing.size()) + " of " + keys.size() + " vignettes restored from vignette cache.");
+		File doc = new File(sources, "inst" + File.separator + "doc");
+		File created = !doc.getParentFile().exists() ? doc.getParentFile() : !doc.exists() ? doc : null;
+		doc.mkdirs();
+		for (String key : keys.values())
+		{
+			File entry = cache.lookup(key);
+			File outputs[] = entry == null ? null : entry.listFiles();
+			if (outputs == null)
+				throw new IOException("Vignette cache entry " + key + " was evicted during the build.");
+			for (File output : outputs)
+			{
+				File target = new File(doc, output.getName());
+				if (!target.exists())
+					injected.add(target);
+				FileTree.copy(output, target);
+			}
+		}
+		if (created != null)
+		{
+			injected.add(doc);
+			if (created != doc)
+				injected.add(created);
+		}
+		return true;
+	}
+
+	/**
+	 * Installs the package in a temporary library and renders vignettes in several R processes, storing the outputs of
+	 * each vignette in the vignette cache.
+	 */
+	private void renderVignettes(ContentCache cache, Map<File, String> keys, List<File> vignettes, final File sources, int shards)
+			throws IOException, MojoExecutionException
+	{
+		Log log = getLog();
+		File results = new File(project.getBuild().getDirectory(), "vignette-shards");
+		File library = new File(results, "library");
+		FileTree.delete(results);
+		library.mkdirs();
+
+		StringBuilder libraries = new StringBuilder(RScript.quote(library.getAbsolutePath()));
+		for (File projectLibrary : getProjectLibraries())
+			libraries.append(", ").append(RScript.quote(projectLibrary.getAbsolutePath()));
+
+		log.info("Rendering " + vignettes.size() + " vignettes in " + shards + " R processes...");
+		if (getRScript().run(sources, String.format(INSTALL_SCRIPT, RScript.quote(project.getArtifactId()), RScript.quote(sources.getAbsolutePath()), libraries), log) != 0)
+			throw new MojoExecutionException("Cannot install package " + project.getArtifactId() + " to render the vignettes.");
+
+		final RScript rscript = getRScript(shards);
+		ExecutorService executor = Executors.newFixedThreadPool(shards);
+		List<Future<Integer>> statuses = new ArrayList<>();
+		for (int shard = 0; shard < shards; shard++)
+		{
+			final File workDir = new File(results, "shard-" + (shard + 1));
+			FileTree.copy(new File(sources, "vignettes"), workDir);
+			StringBuilder files = new StringBuilder();
+			for (int i = shard; i < vignettes.size(); i += shards)
+				files.append(files.length() > 0 ? ", " : "").append(RScript.quote(vignettes.get(i).getName()));
+
+			final String code = String.format(RENDER_SCRIPT, RScript.quote(results.getAbsolutePath()), libraries, files);
+			final RScript shardScript = rscript.shard(shard + 1);
+			statuses.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception
+				{
+					return shardScript.run(workDir, code, getLog());
+				}
+			}));
+		}
+		executor.shutdown();
+
+		List<String> errors = new ArrayList<>();
+		try
+		{
+			for (int shard = 0; shard < statuses.size(); shard++)
+			{
+				int status = statuses.get(shard).get();
+				if (status != 0)
+					errors.add("Vignette shard " + (shard + 1) + " terminated with exit status " + status);
+			}
+
+			for (int i = 0; i < vignettes.size(); i++)
+			{
+				File vignette = vignettes.get(i);
+				File workDir = new File(results, "shard-" + (i % shards + 1));
+				File failure = new File(results, vignette.getName() + ".err");
+				File outputs = new File(results, vignette.getName() + ".out");
+				if (failure.isFile())
+					errors.add(vignette.getName() + ":\n" + new String(Files.readAllBytes(failure.toPath()), "UTF-8").trim());
+				else if (outputs.isFile())
+				{
+					List<File> files = new ArrayList<>();
+					files.add(new File(workDir, vignette.getName()));
+					for (String output : Files.readAllLines(outputs.toPath(), Charset.forName("UTF-8")))
+						if (!output.trim().isEmpty())
+							files.add(new File(workDir, output.trim()));
+					cache.store(keys.get(vignette), files.toArray(new File[files.size()]));
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while rendering vignettes.", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+		}
+
+		for (String error : errors)
+			for (String line : RResults.lines(error))
+				log.error("        " + line);
+		if (errors.size() > 0)
+			throw new MojoExecutionException("Rendering vignettes resulted in errors.");
+	}
+
+	/**
+	 * Stores in the vignette cache the outputs of the vignettes rendered by R CMD build, as found in inst/doc of the
+	 * built package.
+	 */
+	private void harvestVignettes(ContentCache cache, Map<File, String> keys, File artifact)
+	{
+		File harvest = new File(project.getBuild().getDirectory(), "vignette-outputs");
+		try
+		{
+			for (Map.Entry<File, String> vignette : keys.entrySet())
+			{
+				if (cache.lookup(vignette.getValue()) != null)
+					continue;
+
+				String name = vignette.getKey().getName();
+				String base = name.substring(0, name.lastIndexOf('.'));
+				Map<String, byte[]> outputs = TarArchive.readEntries(artifact, Pattern.compile("[^/]+/inst/doc/" + Pattern.quote(base) + "\\.[^/.]+"));
+				if (outputs.size() < 2)
+					continue;
+
+				FileTree.delete(harvest);
+				harvest.mkdirs();
+				List<File> files = new ArrayList<>();
+				for (Map.Entry<String, byte[]> output : outputs.entrySet())
+				{
+					File file = new File(harvest, output.getKey().substring(output.getKey().lastIndexOf('/') + 1));
+					Files.write(file.toPath(), output.getValue());
+					files.add(file);
+				}
+				cache.store(vignette.getValue(), files.toArray(new File[files.size()]));
+			}
+			FileTree.delete(harvest);
+		}
+		catch (IOException e)
+		{
+			getLog().warn("Cannot store vignettes in vignette cache: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Records that the vignette outputs of a built package are up to date, so that R CMD check does not render them
+	 * again.
+	 */
+	private void markRendered(File artifact) throws MojoExecutionException
+	{
+		if (!useVignetteCache)
+			return;
+
+		try
+		{
+			StatusFile status = StatusFile.load(getStatusFile("vignettes"));
+			status.put(TARBALL, Fingerprint.of(artifact));
+			status.save();
+		}
+		catch (IOException e)
+		{
+			getLog().warn("Cannot record rendered vignettes: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Tells whether the vignette outputs of a source package were rendered by the build goal from the current sources.
+	 * 
+	 * @param mojo The mojo of the project.
+	 * @param tarball The source package.
+	 * @return true if the source package is the last one built and its vignettes were rendered or taken from the cache.
+	 * @throws IOException if the source package cannot be read.
+	 */
+	static boolean isRendered(AbstractRMojo mojo, File tarball) throws IOException
+	{
+		return tarball.isFile() && Fingerprint.of(tarball).equals(StatusFile.load(mojo.getStatusFile("vignettes")).get(TARBALL));
+	}
+
+	/**
+	 * @param dir The vignettes directory.
+	 * @return The sorted vignette sources, recognized by their vignette metadata.
+	 * @throws IOException if the directory cannot be read.
+	 */
+	static List<File> listVignettes(File dir) throws IOException
+	{
+		List<File> vignettes = new ArrayList<>();
+		for (Map.Entry<String, File> file : FileTree.list(dir).entrySet())
+			if (file.getKey().matches("[^/]+\\.(Rmd|Rnw|Rtex)") && new String(Files.readAllBytes(file.getValue().toPath()), "ISO-8859-1").contains("\\VignetteIndexEntry"))
+				vignettes.add(file.getValue());
+		return vignettes;
+	}
+
+	/**
+	 * @return The build cache.
+	 */
+	protected ContentCache getBuildCache()
+	{
+		return getCache("build", buildCacheSize);
+	}
+
+	/**
+	 * @param installation The R installation.
+	 * @param outputDirectory The prepared package directory of the project.
+	 * @return The key of the package of the project in the build cache.
+	 * @throws IOException if the package directory cannot be read.
+	 * @throws MojoExecutionException if the time of reproducible archives cannot be parsed.
+	 */
+	protected String getBuildCacheKey(RInstallation installation, File outputDirectory) throws IOException, MojoExecutionException
+	{
+		return getBuildCacheKey(installation, outputDirectory, project.getArtifactId(), getProjectLibraries());
+	}
+
+	/**
+	 * @param installation The R installation.
+	 * @param outputDirectory The prepared package directory.
+	 * @param packageName The name of the package.
+	 * @param libraries The libraries seen by the build, whose packages may be used to render the vignettes.
+	 * @return The key of the package in the build cache.
+	 * @throws IOException if the package directory cannot be read.
+	 * @throws MojoExecutionException if the time of reproducible archives cannot be parsed.
+	 */
+	protected String getBuildCacheKey(RInstallation installation, File outputDirectory, String packageName, List<File> libraries)
+			throws IOException, MojoExecutionException
+	{
+		Fingerprint fingerprint = new Fingerprint().add(installation.getVersion()).add(installation.getPackageVersion("devtools"))
+				.add(installation.getPackageVersion("roxygen2")).addTree(outputDirectory);
+
+		Map<String, String> versions = new TreeMap<>();
+		for (LibraryInventory.InstalledPackage installed : LibraryInventory.load(libraries, new File(cacheDirectory, "inventory")).getPackages())
+			if (!installed.name.equals(packageName))
+				versions.put(installed.name, installed.version);
+		fingerprint.add(versions);
+
+		if (reproducible)
+			fingerprint.add("reproducible " + getOutputTime());
+		String key = fingerprint.toString();
+		getLog().debug("Build cache key for " + outputDirectory + ": " + key);
+		return key;
+	}
+
+	/**
+	 * @return The additional arguments of devtools::build, with a leading comma.
+	 */
+	protected String getBuildArgs()
+	{
+		return reproducible ? ", args = '--compression=none'" : "";
+	}
+
+	/**
+	 * Writes the reproducible archive of a package built by devtools::build with the arguments of
+	 * {@link #getBuildArgs()}. The uncompressed archive made by R is removed.
+	 * 
+	 * @param built The package returned by devtools::build.
+	 * @return The package archive.
+	 * @throws MojoExecutionException if the archive cannot be written.
+	 */
+	protected File pack(File built) throws MojoExecutionException
+	{
+		if (!reproducible)
+			return built;
+
+		String name = built.getName();
+		File tar = name.endsWith(".tar.gz") ? new File(built.getParentFile(), name.substring(0, name.length() - 3)) : built;
+		if (!tar.isFile())
+			throw new MojoExecutionException("Uncompressed package " + tar + " not found.");
+		File artifact = new File(tar.getPath() + ".gz");
+
+		long start = System.currentTimeMillis();
+		try
+		{
+			File temp = File.createTempFile(tar.getName(), ".tmp", tar.getParentFile());
+			try
+			{
+				try (OutputStream out = new ParallelGzipOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536), getParallelism(),
+						Deflater.BEST_COMPRESSION))
+				{
+					TarArchive.normalize(tar, out, getOutputTime());
+				}
+				Files.move(temp.toPath(), artifact.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			finally
+			{
+				Files.deleteIfExists(temp.toPath());
+			}
+			Files.delete(tar.toPath());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot write package " + artifact + ": " + e.getMessage(), e);
+		}
+
+		getLog().debug("Packed " + artifact + " in " + (System.currentTimeMillis() - start) + " ms.");
+		return artifact;
+	}
+
+	/**
+	 * @return The time of the entries of reproducible archives, in seconds since the epoch.
+	 * @throws MojoExecutionException if the configured time cannot be parsed.
+	 */
+	private long getOutputTime() throws MojoExecutionException
+	{
+		String value = outputTimestamp;
+		if (value == null || value.trim().length() < 2)
+			value = System.getenv("SOURCE_DATE_EPOCH");
+		if (value == null || value.trim().isEmpty())
+			return 315532800L;
+
+		value = value.trim();
+		if (value.matches("\\d+"))
+			return Long.parseLong(value);
+		try
+		{
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.ROOT).parse(value).getTime() / 1000;
+		}
+		catch (ParseException e)
+		{
+			throw new MojoExecutionException("Invalid output timestamp: " + value, e);
 		}
 	}
+
+	/**
+	 * Copies a package from the build cache.
+	 * 
+	 * @param cache The build cache.
+	 * @param key The key of the package.
+	 * @param targetDirectory The directory where to copy the package.
+	 * @return The copied package, or null if the package is not in the cache.
+	 * @throws IOException if the package cannot be copied.
+	 */
+	protected File restore(ContentCache cache, String key, File targetDirectory) throws IOException
+	{
+		File entry = cache.lookup(key);
+		File cached[] = entry == null ? null : entry.listFiles();
+		if (cached == null || cached.length != 1)
+			return null;
+
+		File artifact = new File(targetDirectory, cached[0].getName());
+		FileTree.copy(cached[0], artifact);
+		return artifact;
+	}
+
+	/**
+	 * Attaches a built package to a project.
+	 * 
+	 * @param target The project.
+	 * @param artifact The built package.
+	 */
+	protected void attach(MavenProject target, File artifact)
+	{
+		if (attachArtifact)
+		{
+			getLog().info("Added artifact " + artifact + " to project" + (classifier == null ? "" : " with classifier " + classifier) + ".");
+			mavenProjectHelper.attachArtifact(target, "tar.gz", classifier, artifact);
+		} 
+		else if (classifier != null)
+			getLog().warn("Classifier specified with artifact attachment disabled.");
+	}
 }
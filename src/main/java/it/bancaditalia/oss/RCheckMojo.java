@@ -1,27 +1,135 @@
 package it.bancaditalia.oss;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 import org.rosuda.JRI.REXP;
-import org.rosuda.JRI.Rengine;
 
 /**
  * Goal which runs R CMD check on an already built package.
  * 
  * It requires the project to already have packaged with the 'build' goal or by some other means.
  */
-@Mojo(name = "check", defaultPhase = LifecyclePhase.PREPARE_PACKAGE)
+@Mojo(name = "check", defaultPhase = LifecyclePhase.PREPARE_PACKAGE, threadSafe = true)
 public class RCheckMojo extends AbstractRMojo
 {
+	/**
+	 * R program run by each check shard. Failures of a task are written to a file named after the task kind and file.
+	 */
+	private static final String	SHARD_SCRIPT	= "pkg <- %s; lib <- %s; out <- %s\n"
+			+ ".libPaths(c(lib, .libPaths()))\n"
+			+ "suppressPackageStartupMessages(library(pkg, character.only = TRUE))\n"
+			+ "report <- function(kind, file, msg) writeLines(as.character(msg), file.path(out, paste0(kind, '-', basename(file), '.err')))\n"
+			+ "run <- function(kind, file) {\n"
+			+ "  owd <- setwd(dirname(file)); on.exit(setwd(owd))\n"
+			+ "  tryCatch(switch(kind,\n"
+			+ "    testthat = {\n"
+			+ "      res <- as.data.frame(testthat::test_file(file, reporter = 'silent', package = pkg, load_package = 'installed'))\n"
+			+ "      bad <- res$failed > 0 | res$error\n"
+			+ "      if (any(bad)) report(kind, file, paste('Failed test:', res$test[bad]))\n"
+			+ "    },\n"
+			+ "    tests = {\n"
+			+ "      output <- suppressWarnings(system2(file.path(R.home('bin'), 'Rscript'), c('--vanilla', shQuote(file)), stdout = TRUE, stderr = TRUE,\n"
+			+ "        env = paste0('R_LIBS=', paste(.libPaths(), collapse = .Platform$path.sep))))\n"
+			+ "      status <- attr(output, 'status')\n"
+			+ "      if (!is.null(status) && status != 0) report(kind, file, tail(output, 13))\n"
+			+ "    },\n"
+			+ "    examples = {\n"
+			+ "      ex <- tempfile(fileext = '.R')\n"
+			+ "      tools::Rd2ex(file, ex, commentDontrun = TRUE, commentDonttest = TRUE)\n"
+			+ "      if (file.exists(ex)) sys.source(ex, envir = new.env(parent = globalenv()))\n"
+			+ "    },\n"
+			+ "    vignettes = {\n"
+			+ "      dir.create(dir <- tempfile())\n"
+			+ "      tools::buildVignette(file, dir = dir, tangle = FALSE, quiet = TRUE)\n"
+			+ "    }), error = function(e) report(kind, file, conditionMessage(e)))\n"
+			+ "}\n"
+			+ "kinds <- c(%s); files <- c(%s)\n"
+			+ "for (i in seq_along(files)) run(kinds[i], files[i])\n";
+	/**
+	 * R statement running R CMD check until the first ERROR. The output of the failed check is returned as the error.
+	 */
+	private static final String	FAIL_FAST_CHECK	= "local({\n"
+			+ "  px <- rcmdcheck::rcmdcheck_process$new(path = %s, args = c(%s), check_dir = %s)\n"
+			+ "  error <- character(); done <- FALSE\n"
+			+ "  while (!done && (px$is_alive() || px$is_incomplete_output())) {\n"
+			+ "    px$poll_io(1000)\n"
+			+ "    for (line in px$read_output_lines()) {\n"
+			+ "      cat(line, '\\n', sep = '')\n"
+			+ "      if (done) next\n"
+			+ "      if (length(error) > 0 && grepl('^\\\\* ', line)) done <- TRUE\n"
+			+ "      else if (length(error) > 0 || grepl('\\\\.\\\\.\\\\. *ERROR$', line)) error <- c(error, line)\n"
+			+ "    }\n"
+			+ "  }\n"
+			+ "  if (length(error) > 0) {\n"
+			+ "    px$kill()\n"
+			+ "    list(errors = paste(error, collapse = '\\n'), warnings = character(), notes = character())\n"
+			+ "  } else {\n"
+			+ "    res <- px$parse_results()\n"
+			+ "    list(errors = res$errors, warnings = res$warnings, notes = res$notes)\n"
+			+ "  }\n"
+			+ "})";
+	private static final String	RESULTS			= "results.properties";
+	private static final String	ERRORS			= "error.";
+	private static final String	WARNINGS		= "warning.";
+	private static final String	NOTES			= "note.";
+
+	/**
+	 * Number of R processes running the package tests, examples and vignettes. With a value greater than one, R CMD
+	 * check only performs the static checks, while tests, examples and vignettes are split among the processes. Their
+	 * failures are reported as R CMD check does: failed tests and examples as errors, and vignettes that cannot be
+	 * re-built as warnings.
+	 */
+	@Parameter(defaultValue = "1", property = "R.check.shards") int		checkShards;
+
+	/**
+	 * Set it to {@code true} to stop R CMD check as soon as a check results in an ERROR, instead of running the
+	 * remaining checks. The results of a stopped check are not stored in the check cache.
+	 */
+	@Parameter(defaultValue = "false", property = "R.check.failFast") boolean	failFast;
+
+	/**
+	 * Set it to {@code false} to always check the package, without looking up the check cache.
+	 */
+	@Parameter(defaultValue = "true", property = "R.check.cache") boolean	useCheckCache;
+
+	/**
+	 * Set it to {@code true} to check the package even if the results of the same check are found in the check cache.
+	 * The new results replace the cached ones.
+	 */
+	@Parameter(defaultValue = "false", property = "R.check.force") boolean	forceCheck;
+
+	/**
+	 * Maximum size of the check cache, in megabytes. Least recently used results are evicted first.
+	 */
+	@Parameter(defaultValue = "64", property = "R.check.cacheSize") long	checkCacheSize;
+
+	/**
+	 * Set it to {@code false} to always re-build the vignettes in R CMD check, even when their outputs in the package
+	 * were rendered or restored from the vignette cache by the build goal.
+	 */
+	@Parameter(defaultValue = "true", property = "R.vignettes.cache") boolean	useVignetteCache;
+
 	@Override
-	public void execute() throws MojoExecutionException
+	protected void executeGoal() throws MojoExecutionException
 	{
 		Log log = getLog();
 
@@ -29,18 +137,64 @@ public class RCheckMojo extends AbstractRMojo
 		checkRPackageVersion();
 		setupDirectories();
 
-		Rengine engine = getEngine();
+		File packageArchive = new File(new File(project.getBuild().getDirectory()), project.getArtifactId() + "_" + checkRPackageVersion() + ".tar.gz");
 
-		synchronized (engine)
+		// Skip the installation when the binary goal already installed this package
+		List<String> args = new ArrayList<>();
+		boolean preinstalled = isPreinstalled(packageArchive);
+		if (preinstalled)
+		{
+			log.info("Using package installed in " + getPrivateLibrary());
+			args.add("--install=check:" + RBinaryMojo.getInstallLog(project.getBuild().getDirectory(), project.getArtifactId()).getAbsolutePath());
+			args.add("--library=" + getPrivateLibrary().getAbsolutePath());
+		}
+		if (checkShards > 1)
+			args.addAll(Arrays.asList("--no-tests", "--no-examples", "--no-vignettes", "--no-build-vignettes"));
+		else if (useVignetteCache && isRendered(packageArchive))
+		{
+			log.info("Vignette outputs are up to date, skipping their re-building.");
+			args.add("--no-build-vignettes");
+		}
+
+		ContentCache cache = null;
+		String key = null;
+		if (useCheckCache && packageArchive.isFile())
+		{
+			cache = getCache("check", checkCacheSize);
+			key = getCheckCacheKey(this, packageArchive, checkShards, args);
+			List<String> errors = new ArrayList<>();
+			List<String> warnings = new ArrayList<>();
+			List<String> notes = new ArrayList<>();
+			if (!forceCheck && restoreResults(cache, key, errors, warnings, notes))
+			{
+				log.info("Check results restored from check cache.");
+				report(log, errors, warnings, notes);
+				return;
+			}
+		}
+
+		List<String> errors = new ArrayList<>();
+		List<String> warnings = new ArrayList<>();
+		List<String> notes = new ArrayList<>();
+		try (RSession session = openSession())
 		{
 			String statement = "setwd('" + project.getBuild().getDirectory() + "')";
 			log.debug("Executing R statement: " + statement);
-			REXP res = tryCatch(statement);
-			File packageArchive = new File(new File(project.getBuild().getDirectory()), project.getArtifactId() + "_" + checkRPackageVersion() + ".tar.gz");
-			statement = "devtools::check_built(path = '" + packageArchive.toString().replaceAll("\\\\", "\\\\")  + "', quiet = T, " 
-					+ "check_dir = '" + project.getBuild().getDirectory().replaceAll("\\\\", "\\\\") + "')";
+			REXP res = tryCatch(session, statement);
+
+			StringBuilder argsVector = new StringBuilder();
+			for (String arg : args)
+				argsVector.append(argsVector.length() > 0 ? ", " : "").append(RScript.quote(arg));
+
+			if (failFast)
+				statement = withProjectLibraries(String.format(FAIL_FAST_CHECK, RScript.quote(packageArchive.getAbsolutePath()), argsVector,
+						RScript.quote(project.getBuild().getDirectory())));
+			else
+				statement = withProjectLibraries("devtools::check_built(path = '" + packageArchive.toString().replaceAll("\\\\", "\\\\")  + "', quiet = "
+						+ (streamConsole ? "F" : "T") + ", check_dir = '" + project.getBuild().getDirectory().replaceAll("\\\\", "\\\\") + "'"
+						+ (args.isEmpty() ? "" : ", args = c(" + argsVector + ")") + ")");
 			log.debug("Executing R statement: " + statement);
-			res = tryCatch(statement);
+			res = tryCatch(session, statement);
 			if (res == null)
 				throw new MojoExecutionException("R internal error while invoking R CMD check");
 			else if (res.asStringArray() != null)
@@ -53,27 +207,290 @@ public class RCheckMojo extends AbstractRMojo
 				throw new MojoExecutionException("R internal error while invoking R CMD check: " + res.asString());
 			else if (res.getType() != REXP.XT_NULL)
 			{
-				List<String> errors = new ArrayList<>(Arrays.asList(res.asVector().at("errors").asStringArray()));
-				List<String> warnings = new ArrayList<>(Arrays.asList(res.asVector().at("warnings").asStringArray()));
-				List<String> notes = new ArrayList<>(Arrays.asList(res.asVector().at("notes").asStringArray()));
-				
-				log.info("Check completed.");
-	
-				for (String error : errors)
-					for (String line : error.split("\\r\\n|\\n"))
-						log.error("        " + line);
-				for (String warning : warnings)
-					for (String line : warning.split("\\r\\n|\\n"))
-						log.warn("        " + line);
-				for (String note : notes)
-					for (String line : note.split("\\r\\n|\\n"))
-						log.info("        " + line);
-	
-				if (errors.size() > 0)
-					throw new MojoExecutionException("Checking R package resulted in errors.");
+				RResults.CheckResults results = RResults.CheckResults.of(res);
+				errors.addAll(results.errors);
+				warnings.addAll(results.warnings);
+				notes.addAll(results.notes);
+
+				if (checkShards > 1 && !(failFast && errors.size() > 0))
+					runShards(preinstalled, errors, warnings);
 			}
-			else
-				log.info("Check completed.");
 		}
+
+		if (cache != null && !(failFast && errors.size() > 0))
+			storeResults(this, cache, key, errors, warnings, notes);
+
+		report(log, errors, warnings, notes);
+	}
+
+	/**
+	 * Logs the check results, failing if there are errors.
+	 * 
+	 * @param log The log.
+	 * @param errors The check errors.
+	 * @param warnings The check warnings.
+	 * @param notes The check notes.
+	 * @throws MojoExecutionException if there are errors.
+	 */
+	static void report(Log log, List<String> errors, List<String> warnings, List<String> notes) throws MojoExecutionException
+	{
+		log.info("Check completed.");
+
+		for (String error : errors)
+			for (String line : RResults.lines(error))
+				log.error("        " + line);
+		for (String warning : warnings)
+			for (String line : RResults.lines(warning))
+				log.warn("        " + line);
+		for (String note : notes)
+			for (String line : RResults.lines(note))
+				log.info("        " + line);
+
+		if (errors.size() > 0)
+			throw new MojoExecutionException("Checking R package resulted in errors.");
+	}
+
+	/**
+	 * @param mojo The mojo of the project.
+	 * @param packageArchive The built package.
+	 * @param shards The number of check shards.
+	 * @param args The arguments of R CMD check.
+	 * @return The key of the check results in the check cache: the package, the R installation, the packages in the
+	 *         project libraries, the check options and the R CMD check environment variables.
+	 * @throws MojoExecutionException if the package cannot be read.
+	 */
+	static String getCheckCacheKey(AbstractRMojo mojo, File packageArchive, int shards, List<String> args) throws MojoExecutionException
+	{
+		try
+		{
+			RInstallation installation = mojo.getInstallation();
+			Fingerprint key = new Fingerprint().add(installation.getVersion()).add(installation.getPackageVersion("devtools"))
+					.add(System.getProperty("os.name")).add(System.getProperty("os.arch")).addFile(packageArchive).add(shards).add(args);
+
+			Map<String, String> versions = new TreeMap<>();
+			for (LibraryInventory.InstalledPackage installed : LibraryInventory.load(mojo.getProjectLibraries(), new File(mojo.cacheDirectory, "inventory")).getPackages())
+				versions.put(installed.name, installed.version);
+			key.add(versions);
+
+			Map<String, String> environment = new TreeMap<>();
+			for (Map.Entry<String, String> var : System.getenv().entrySet())
+				if (var.getKey().startsWith("_R_CHECK_"))
+					environment.put(var.getKey(), var.getValue());
+			key.add(environment);
+
+			mojo.getLog().debug("Check cache key for " + packageArchive + ": " + key);
+			return key.toString();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read package " + packageArchive + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads check results from the check cache.
+	 * 
+	 * @return true if the results were found.
+	 */
+	static boolean restoreResults(ContentCache cache, String key, List<String> errors, List<String> warnings, List<String> notes)
+	{
+		File entry = cache.lookup(key);
+		if (entry == null || !new File(entry, RESULTS).isFile())
+			return false;
+
+		StatusFile results = StatusFile.load(new File(entry, RESULTS));
+		errors.addAll(getResults(results, ERRORS));
+		warnings.addAll(getResults(results, WARNINGS));
+		notes.addAll(getResults(results, NOTES));
+		return true;
+	}
+
+	/**
+	 * Stores check results in the check cache.
+	 */
+	static void storeResults(AbstractRMojo mojo, ContentCache cache, String key, List<String> errors, List<String> warnings, List<String> notes)
+	{
+		try
+		{
+			File results = new File(mojo.project.getBuild().getDirectory(), "check-results" + File.separator + RESULTS);
+			FileTree.delete(results);
+			StatusFile status = StatusFile.load(results);
+			putResults(status, ERRORS, errors);
+			putResults(status, WARNINGS, warnings);
+			putResults(status, NOTES, notes);
+			status.save();
+			cache.store(key, results);
+		}
+		catch (IOException e)
+		{
+			mojo.getLog().warn("Cannot store results in check cache: " + e.getMessage());
+		}
+	}
+
+	private static List<String> getResults(StatusFile results, String kind)
+	{
+		List<String> list = new ArrayList<>();
+		for (int i = 0; results.get(kind + i) != null; i++)
+			list.add(results.get(kind + i));
+		return list;
+	}
+
+	private static void putResults(StatusFile results, String kind, List<String> list)
+	{
+		for (int i = 0; i < list.size(); i++)
+			results.put(kind + i, list.get(i));
+	}
+
+	/**
+	 * Runs tests, examples and vignettes of the package installed by R CMD check, split among several R processes.
+	 * 
+	 * @param preinstalled Whether the package was installed in the private library instead of the check directory.
+	 * @param errors Receives the failures of tests and examples, formatted as R CMD check errors.
+	 * @param warnings Receives the failures of vignettes, formatted as R CMD check warnings.
+	 */
+	private void runShards(boolean preinstalled, List<String> errors, List<String> warnings) throws MojoExecutionException
+	{
+		Log log = getLog();
+		String packageName = project.getArtifactId();
+		File checkDir = new File(project.getBuild().getDirectory(), packageName + ".Rcheck");
+		File sources = new File(checkDir, "00_pkg_src" + File.separator + packageName);
+		File results = new File(project.getBuild().getDirectory(), "check-shards");
+
+		List<String[]> tasks = new ArrayList<>();
+		try
+		{
+			FileTree.delete(results);
+			results.mkdirs();
+
+			File testthat = new File(sources, "tests" + File.separator + "testthat");
+			for (File test : listFiles(testthat, "test.*\\.[rR]"))
+				tasks.add(new String[] { "testthat", test.getAbsolutePath() });
+			if (!tasks.isEmpty())
+				// load_package argument of test_file
+				requirePackage("testthat", "3.0.0");
+			for (File test : listFiles(new File(sources, "tests"), ".*\\.[rR]"))
+				// drivers of testthat tests have already been split
+				if (!testthat.isDirectory() || !new String(Files.readAllBytes(test.toPath()), "ISO-8859-1").contains("test_check("))
+					tasks.add(new String[] { "tests", test.getAbsolutePath() });
+			for (File rd : listFiles(new File(sources, "man"), ".*\\.Rd"))
+				tasks.add(new String[] { "examples", rd.getAbsolutePath() });
+			for (File vignette : listFiles(new File(sources, "vignettes"), ".*\\.(Rmd|Rnw|Rtex)"))
+				tasks.add(new String[] { "vignettes", vignette.getAbsolutePath() });
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot prepare check shards: " + e.getMessage(), e);
+		}
+
+		StringBuilder libraries = new StringBuilder("c(").append(RScript.quote((preinstalled ? getPrivateLibrary() : checkDir).getAbsolutePath()));
+		for (File library : getProjectLibraries())
+			libraries.append(", ").append(RScript.quote(library.getAbsolutePath()));
+		libraries.append(')');
+
+		int shards = Math.min(checkShards, tasks.size());
+		log.info("Running " + tasks.size() + " tests, examples and vignettes in " + shards + " R processes...");
+
+		final RScript rscript = getRScript(shards);
+		final File workDir = sources;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(shards, 1));
+		List<Future<Integer>> statuses = new ArrayList<>();
+		for (int shard = 0; shard < shards; shard++)
+		{
+			StringBuilder kinds = new StringBuilder();
+			StringBuilder files = new StringBuilder();
+			for (int i = shard; i < tasks.size(); i += shards)
+			{
+				kinds.append(kinds.length() > 0 ? ", " : "").append(RScript.quote(tasks.get(i)[0]));
+				files.append(files.length() > 0 ? ", " : "").append(RScript.quote(tasks.get(i)[1]));
+			}
+
+			final String code = String.format(SHARD_SCRIPT, RScript.quote(packageName), libraries,
+					RScript.quote(results.getAbsolutePath()), kinds, files);
+			final RScript shardScript = rscript.shard(shard + 1);
+			statuses.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception
+				{
+					return shardScript.run(workDir, code, getLog());
+				}
+			}));
+		}
+		executor.shutdown();
+
+		try
+		{
+			for (int shard = 0; shard < statuses.size(); shard++)
+			{
+				int status = statuses.get(shard).get();
+				if (status != 0)
+					errors.add("checking shard " + (shard + 1) + " ... ERROR\nR terminated with exit status " + status);
+			}
+
+			for (File failure : listFiles(results, ".*\\.err"))
+			{
+				String name = failure.getName();
+				String kind = name.substring(0, name.indexOf('-'));
+				String file = name.substring(name.indexOf('-') + 1, name.length() - 4);
+				String message = new String(Files.readAllBytes(failure.toPath()), "UTF-8");
+				// R CMD check reports vignettes that cannot be re-built as a warning
+				if ("vignettes".equals(kind))
+					warnings.add("checking re-building of vignette outputs in " + file + " ... WARNING\n" + message);
+				else
+					errors.add("checking " + kind + " in " + file + " ... ERROR\n" + message);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while checking R package.", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read check results: " + e.getMessage(), e);
+		}
+	}
+
+	private boolean isPreinstalled(File packageArchive) throws MojoExecutionException
+	{
+		try
+		{
+			return RBinaryMojo.isInstalled(this, packageArchive);
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read package " + packageArchive + ": " + e.getMessage(), e);
+		}
+	}
+
+	private boolean isRendered(File packageArchive) throws MojoExecutionException
+	{
+		try
+		{
+			return RBuildMojo.isRendered(this, packageArchive);
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read package " + packageArchive + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static List<File> listFiles(File dir, final String pattern)
+	{
+		File files[] = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file)
+			{
+				return file.isFile() && file.getName().matches(pattern);
+			}
+		});
+
+		List<File> list = files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+		Collections.sort(list);
+		return list;
 	}
 }
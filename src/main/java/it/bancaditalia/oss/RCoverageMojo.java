@@ -0,0 +1,414 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Goal which measures the code coverage of the testthat tests with covr.
+ *
+ * The prepared package directory is loaded with pkgload in several R processes, and the test files are split among
+ * them as in the test goal. The coverage of each test file is measured separately and kept in a local cache, keyed by
+ * the package code and data, the test file, the other files of the testthat directory and the versions of the packages
+ * in the project libraries, so that only the tests whose inputs changed are run again. The coverage of all the test
+ * files is merged into a Cobertura XML report, and summarized in the build log.
+ */
+@Mojo(name = "coverage", defaultPhase = LifecyclePhase.VERIFY, threadSafe = true)
+public class RCoverageMojo extends AbstractRMojo
+{
+	/**
+	 * R program run by each coverage shard. The testthat helpers are loaded by pkgload, and the setup and teardown files
+	 * are sourced with each test file in the traced environment, as testthat does. For each test file, the hits of each
+	 * line of the package code are written as tab-separated file, line and hits; the failures are written to a file
+	 * named after the test file.
+	 */
+	private static final String	SHARD_SCRIPT	= "pkg <- %s; src <- %s; out <- %s\n"
+			+ ".libPaths(c(%s, .libPaths()))\n"
+			+ "suppressPackageStartupMessages({ library(testthat); pkgload::load_all(src, export_all = TRUE, quiet = TRUE) })\n"
+			+ "prefix <- paste0(normalizePath(src, winslash = '/'), '/')\n"
+			+ "setups <- c(%7$s); teardowns <- c(%8$s)\n"
+			+ "run <- function(file, result) {\n"
+			+ "  owd <- setwd(dirname(file)); on.exit(setwd(owd))\n"
+			+ "  cov <- covr::environment_coverage(asNamespace(pkg), test_files = c(setups, file, teardowns))\n"
+			+ "  lines <- if (length(cov) > 0) covr::tally_coverage(cov, by = 'line')\n"
+			+ "    else data.frame(filename = character(), functions = character(), line = integer(), value = integer())\n"
+			+ "  lines$filename <- normalizePath(as.character(lines$filename), winslash = '/', mustWork = FALSE)\n"
+			+ "  lines <- lines[startsWith(lines$filename, prefix), ]\n"
+			+ "  lines$filename <- substring(lines$filename, nchar(prefix) + 1)\n"
+			+ "  write.table(lines[c('filename', 'line', 'value')], result, sep = '\\t', quote = FALSE, row.names = FALSE, col.names = FALSE)\n"
+			+ "}\n"
+			+ "files <- c(%s); results <- c(%s)\n"
+			+ "for (i in seq_along(files)) tryCatch(run(files[i], results[i]),\n"
+			+ "  error = function(e) writeLines(conditionMessage(e), file.path(out, paste0(basename(files[i]), '.err'))))\n";
+
+	/**
+	 * Number of R processes running the instrumented tests. With a value less than one, the number of workers is used.
+	 */
+	@Parameter(defaultValue = "0", property = "R.coverage.shards") int				coverageShards;
+
+	/**
+	 * The Cobertura XML coverage report.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/coverage/cobertura.xml", property = "R.coverage.report") File	coverageReport;
+
+	/**
+	 * Set it to {@code false} to always run all the tests, without looking up the coverage cache.
+	 */
+	@Parameter(defaultValue = "true", property = "R.coverage.cache") boolean		useCoverageCache;
+
+	/**
+	 * Maximum size of the coverage cache, in megabytes. Least recently used entries are evicted first.
+	 */
+	@Parameter(defaultValue = "256", property = "R.coverage.cacheSize") long		coverageCacheSize;
+
+	@Override
+	protected void executeGoal() throws MojoExecutionException
+	{
+		Log log = getLog();
+
+		final File sources = new File(project.getBuild().getOutputDirectory());
+		File testthat = new File(sources, "tests" + File.separator + "testthat");
+		List<File> tests = RTestMojo.listTests(testthat);
+		if (tests.isEmpty())
+		{
+			log.info("No tests to measure coverage of.");
+			return;
+		}
+
+		requirePackage("testthat", "3.0.0");
+		requirePackage("covr", null);
+		String packageName = project.getArtifactId();
+		File results = new File(project.getBuild().getDirectory(), "coverage-shards");
+		ContentCache cache = useCoverageCache ? getCache("coverage", coverageCacheSize) : null;
+
+		// Restore the coverage of unchanged test files
+		Map<File, String> keys = new LinkedHashMap<>();
+		List<File> pending = new ArrayList<>();
+		try
+		{
+			FileTree.delete(results);
+			results.mkdirs();
+
+			RInstallation installation = getInstallation();
+			Fingerprint common = new Fingerprint().add(installation.getVersion()).add(installation.getPackageVersion("covr"))
+					.add(installation.getPackageVersion("testthat")).addFile(new File(sources, "DESCRIPTION"));
+			for (String dir : Arrays.asList("R", "src", "inst", "data"))
+				common.add(dir).addTree(new File(sources, dir));
+			// Helpers, setup files, fixtures and snapshots, but not the other test files
+			for (Map.Entry<String, File> file : FileTree.list(testthat).entrySet())
+				if (!file.getKey().matches("test[^/]*\\.[rR]"))
+					common.add(file.getKey()).addFile(file.getValue());
+
+			Map<String, String> versions = new TreeMap<>();
+			for (LibraryInventory.InstalledPackage installed : LibraryInventory.load(getProjectLibraries(), new File(cacheDirectory, "inventory")).getPackages())
+				if (!installed.name.equals(project.getArtifactId()))
+					versions.put(installed.name, installed.version);
+			String packageKey = common.add(versions).toString();
+
+			for (File test : tests)
+			{
+				String key = new Fingerprint().add(packageKey).add(test.getName()).addFile(test).toString();
+				keys.put(test, key);
+
+				File entry = cache == null ? null : cache.lookup(key);
+				if (entry != null && new File(entry, getResult(results, test).getName()).isFile())
+					FileTree.copy(new File(entry, getResult(results, test).getName()), getResult(results, test));
+				else
+					pending.add(test);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot prepare coverage shards: " + e.getMessage(), e);
+		}
+
+		if (pending.size() < tests.size())
+			log.info("Coverage of " + (tests.size() - pending.size()) + " test files restored from coverage cache.");
+
+		List<String> errors = new ArrayList<>();
+		if (!pending.isEmpty())
+			errors.addAll(runShards(packageName, sources, results, pending));
+
+		if (!errors.isEmpty())
+		{
+			for (String error : errors)
+				for (String line : RResults.lines(error))
+					log.error("        " + line);
+			throw new MojoExecutionException("There are test failures, coverage cannot be measured.");
+		}
+
+		if (cache != null)
+			for (File test : pending)
+				try
+				{
+					cache.store(keys.get(test), getResult(results, test));
+				}
+				catch (IOException e)
+				{
+					log.warn("Cannot store coverage in coverage cache: " + e.getMessage());
+				}
+
+		// Merge the coverage of all the test files
+		Map<String, Map<Integer, long[]>> hits = new TreeMap<>();
+		try
+		{
+			for (File test : tests)
+				try (BufferedReader reader = Files.newBufferedReader(getResult(results, test).toPath(), Charset.forName("UTF-8")))
+				{
+					String line;
+					while ((line = reader.readLine()) != null)
+					{
+						String fields[] = line.split("\t");
+						if (fields.length < 3)
+							continue;
+						if (!hits.containsKey(fields[0]))
+							hits.put(fields[0], new TreeMap<Integer, long[]>());
+						Integer number = Integer.valueOf(fields[1]);
+						if (!hits.get(fields[0]).containsKey(number))
+							hits.get(fields[0]).put(number, new long[1]);
+						hits.get(fields[0]).get(number)[0] += Long.parseLong(fields[2]);
+					}
+				}
+
+			writeCobertura(packageName, sources, hits);
+		}
+		catch (IOException | NumberFormatException | XMLStreamException e)
+		{
+			throw new MojoExecutionException("Cannot merge coverage results: " + e.getMessage(), e);
+		}
+
+		long covered = 0, valid = 0;
+		log.info("Coverage of package " + packageName + ":");
+		for (Map.Entry<String, Map<Integer, long[]>> file : hits.entrySet())
+		{
+			long fileCovered = 0;
+			for (long count[] : file.getValue().values())
+				if (count[0] > 0)
+					fileCovered++;
+			covered += fileCovered;
+			valid += file.getValue().size();
+			log.info(String.format("    %6.2f%%  %s", percent(fileCovered, file.getValue().size()), file.getKey()));
+		}
+		log.info(String.format("    %6.2f%%  total (%d of %d lines)", percent(covered, valid), covered, valid));
+		log.info("Coverage report written to " + coverageReport);
+	}
+
+	/**
+	 * Runs the instrumented tests, split among several R processes.
+	 *
+	 * @return The failures.
+	 */
+	private List<String> runShards(String packageName, final File sources, File results, List<File> tests) throws MojoExecutionException
+	{
+		List<List<File>> shards = RTestMojo.balance(tests, StatusFile.load(getStatusFile("test")),
+				coverageShards < 1 ? getParallelism() : coverageShards);
+		getLog().info("Running " + tests.size() + " instrumented test files in " + shards.size() + " R processes...");
+
+		StringBuilder libraries = new StringBuilder();
+		for (File library : getProjectLibraries())
+			libraries.append(libraries.length() > 0 ? ", " : "").append(RScript.quote(library.getAbsolutePath()));
+
+		StringBuilder setups = new StringBuilder();
+		StringBuilder teardowns = new StringBuilder();
+		for (File helper : listHelpers(new File(sources, "tests" + File.separator + "testthat")))
+			if (helper.getName().startsWith("setup"))
+				setups.append(setups.length() > 0 ? ", " : "").append(RScript.quote(helper.getAbsolutePath()));
+			else if (helper.getName().startsWith("teardown"))
+				teardowns.append(teardowns.length() > 0 ? ", " : "").append(RScript.quote(helper.getAbsolutePath()));
+
+		final RScript rscript = getRScript(shards.size());
+		ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+		List<Future<Integer>> statuses = new ArrayList<>();
+		for (List<File> shard : shards)
+		{
+			StringBuilder files = new StringBuilder();
+			StringBuilder outputs = new StringBuilder();
+			for (File test : shard)
+			{
+				files.append(files.length() > 0 ? ", " : "").append(RScript.quote(test.getAbsolutePath()));
+				outputs.append(outputs.length() > 0 ? ", " : "").append(RScript.quote(getResult(results, test).getAbsolutePath()));
+			}
+
+			final String code = String.format(SHARD_SCRIPT, RScript.quote(packageName), RScript.quote(sources.getAbsolutePath()),
+					RScript.quote(results.getAbsolutePath()), libraries.length() > 0 ? libraries : "character()", files, outputs, setups, teardowns);
+			final RScript shardScript = rscript.shard(statuses.size() + 1);
+			statuses.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception
+				{
+					return shardScript.run(sources, code, getLog());
+				}
+			}));
+		}
+		executor.shutdown();
+
+		List<String> errors = new ArrayList<>();
+		try
+		{
+			for (int shard = 0; shard < statuses.size(); shard++)
+			{
+				int status = statuses.get(shard).get();
+				if (status != 0)
+					errors.add("Coverage shard " + (shard + 1) + " terminated with exit status " + status);
+			}
+
+			for (File test : tests)
+			{
+				File failure = new File(results, test.getName() + ".err");
+				if (failure.isFile())
+					errors.add(test.getName() + ":\n" + new String(Files.readAllBytes(failure.toPath()), "UTF-8").trim());
+				else if (!getResult(results, test).isFile())
+					errors.add(test.getName() + ": no coverage was recorded.");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while measuring coverage.", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read coverage results: " + e.getMessage(), e);
+		}
+
+		return errors;
+	}
+
+	private void writeCobertura(String packageName, File sources, Map<String, Map<Integer, long[]>> hits) throws IOException, XMLStreamException
+	{
+		long covered = 0, valid = 0;
+		for (Map<Integer, long[]> lines : hits.values())
+			for (long count[] : lines.values())
+			{
+				valid++;
+				if (count[0] > 0)
+					covered++;
+			}
+
+		coverageReport.getAbsoluteFile().getParentFile().mkdirs();
+		try (OutputStream os = new FileOutputStream(coverageReport))
+		{
+			XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeDTD("\n<!DOCTYPE coverage SYSTEM \"http://cobertura.sourceforge.net/xml/coverage-04.dtd\">\n");
+			xml.writeStartElement("coverage");
+			xml.writeAttribute("line-rate", rate(covered, valid));
+			xml.writeAttribute("branch-rate", "0");
+			xml.writeAttribute("lines-covered", String.valueOf(covered));
+			xml.writeAttribute("lines-valid", String.valueOf(valid));
+			xml.writeAttribute("branches-covered", "0");
+			xml.writeAttribute("branches-valid", "0");
+			xml.writeAttribute("complexity", "0");
+			xml.writeAttribute("version", "1.9");
+			xml.writeAttribute("timestamp", String.valueOf(System.currentTimeMillis()));
+			xml.writeStartElement("sources");
+			xml.writeStartElement("source");
+			xml.writeCharacters(sources.getAbsolutePath());
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeStartElement("packages");
+			xml.writeStartElement("package");
+			xml.writeAttribute("name", packageName);
+			xml.writeAttribute("line-rate", rate(covered, valid));
+			xml.writeAttribute("branch-rate", "0");
+			xml.writeAttribute("complexity", "0");
+			xml.writeStartElement("classes");
+			for (Map.Entry<String, Map<Integer, long[]>> file : hits.entrySet())
+			{
+				long fileCovered = 0;
+				for (long count[] : file.getValue().values())
+					if (count[0] > 0)
+						fileCovered++;
+
+				xml.writeStartElement("class");
+				xml.writeAttribute("name", new File(file.getKey()).getName());
+				xml.writeAttribute("filename", file.getKey());
+				xml.writeAttribute("line-rate", rate(fileCovered, file.getValue().size()));
+				xml.writeAttribute("branch-rate", "0");
+				xml.writeAttribute("complexity", "0");
+				xml.writeEmptyElement("methods");
+				xml.writeStartElement("lines");
+				for (Map.Entry<Integer, long[]> line : file.getValue().entrySet())
+				{
+					xml.writeEmptyElement("line");
+					xml.writeAttribute("number", String.valueOf(line.getKey()));
+					xml.writeAttribute("hits", String.valueOf(line.getValue()[0]));
+					xml.writeAttribute("branch", "false");
+				}
+				xml.writeEndElement();
+				xml.writeEndElement();
+			}
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndDocument();
+			xml.close();
+		}
+	}
+
+	private static File getResult(File results, File test)
+	{
+		return new File(results, test.getName() + ".tsv");
+	}
+
+	private static String rate(long covered, long valid)
+	{
+		return valid == 0 ? "1" : String.valueOf((double) covered / valid);
+	}
+
+	private static double percent(long covered, long valid)
+	{
+		return valid == 0 ? 100.0 : 100.0 * covered / valid;
+	}
+
+	/**
+	 * @return The testthat helper, setup and teardown files, which are sourced with every test file.
+	 */
+	private static List<File> listHelpers(File dir)
+	{
+		File files[] = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file)
+			{
+				return file.isFile() && file.getName().matches("(helper|setup|teardown).*\\.[rR]");
+			}
+		});
+
+		List<File> list = files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+		Collections.sort(list);
+		return list;
+	}
+}
@@ -0,0 +1,194 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.rosuda.JRI.REXP;
+
+/**
+ * Backend that evaluates R in a daemon process, which outlives the build and is reused by subsequent builds with the
+ * same R installation and library paths.
+ *
+ * The daemon is started on first use, with devtools already loaded. Its port and the token that clients must present
+ * are kept in a state file readable only by the current user. Each session is a connection to the daemon, which
+ * serves one connection at a time and resets the R session state when a connection ends. The daemon exits by itself
+ * after an idle timeout; its console output goes to a log file next to the state file.
+ */
+class RDaemon extends RBackend
+{
+	private static final int	STARTUP_TIMEOUT	= 120000;
+
+	private final File			rHome;
+	private final File[]		sharedLibs;
+	private final File			stateFile;
+	private final File			lockFile;
+	private final File			logFile;
+	private final int			idleTimeout;
+
+	/**
+	 * @param rHome The R installation directory.
+	 * @param sharedLibs Additional directories containing shared libraries needed by R.
+	 * @param dir The directory holding the state of the daemons.
+	 * @param key The key identifying the daemon among the others in the same directory.
+	 * @param idleTimeout Seconds of inactivity after which a newly started daemon exits.
+	 */
+	RDaemon(File rHome, File[] sharedLibs, File dir, String key, int idleTimeout)
+	{
+		this.rHome = rHome;
+		this.sharedLibs = sharedLibs;
+		this.stateFile = new File(dir, key + ".properties");
+		this.lockFile = new File(dir, key + ".lock");
+		this.logFile = new File(dir, key + ".log");
+		this.idleTimeout = idleTimeout;
+	}
+
+	@Override
+	public RSession openSession(Log log, boolean stream) throws MojoExecutionException
+	{
+		RWorker worker = connect(log);
+		if (worker == null)
+		{
+			stateFile.getParentFile().mkdirs();
+			try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+			{
+				FileLock lock = channel.lock();
+				try
+				{
+					// Another build may have started the daemon meanwhile
+					worker = connect(log);
+					if (worker == null)
+						worker = start(log);
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+			catch (IOException e)
+			{
+				throw new MojoExecutionException("Cannot start R daemon: " + e.getMessage(), e);
+			}
+		}
+		else
+			log.info("Connected to R daemon.");
+
+		worker.setLog(log, stream);
+		final RWorker connected = worker;
+		return new RSession() {
+			@Override
+			public REXP eval(String expression) throws MojoExecutionException
+			{
+				return connected.eval(expression);
+			}
+
+			@Override
+			public REXP eval(String expression, long timeout) throws MojoExecutionException
+			{
+				return connected.eval(expression, timeout);
+			}
+
+			@Override
+			public void close()
+			{
+				connected.destroy();
+			}
+		};
+	}
+
+	/**
+	 * @return A connection to the running daemon, or null if there is no daemon running.
+	 */
+	private RWorker connect(Log log)
+	{
+		if (!stateFile.isFile())
+			return null;
+
+		Properties state = new Properties();
+		try (InputStream is = new FileInputStream(stateFile))
+		{
+			state.load(is);
+			InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(state.getProperty("port")));
+			return RWorker.connect(address, state.getProperty("token"), log);
+		}
+		catch (IOException | MojoExecutionException | RuntimeException e)
+		{
+			// missing, stale or foreign
+			log.debug("R daemon not reachable: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private RWorker start(Log log) throws IOException, MojoExecutionException
+	{
+		int port;
+		try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+		{
+			port = probe.getLocalPort();
+		}
+		String token = new BigInteger(130, new SecureRandom()).toString(32);
+
+		Properties state = new Properties();
+		state.setProperty("port", Integer.toString(port));
+		state.setProperty("token", token);
+		Files.deleteIfExists(stateFile.toPath());
+		try
+		{
+			Files.createFile(stateFile.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// not a POSIX file system
+		}
+		try (OutputStream os = new FileOutputStream(stateFile))
+		{
+			state.store(os, "R daemon for " + rHome);
+		}
+
+		ProcessBuilder builder = new ProcessBuilder(RScript.getExecutable(rHome).getAbsolutePath(), "--vanilla",
+				RWorker.getScript().getAbsolutePath(), "daemon", Integer.toString(port), Integer.toString(idleTimeout));
+		RScript.configure(builder, rHome, sharedLibs);
+		builder.environment().put("R_MAVEN_DAEMON_TOKEN", token);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile));
+
+		log.info("Starting R daemon...");
+		builder.start().getOutputStream().close();
+
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (System.currentTimeMillis() < deadline)
+		{
+			RWorker worker = connect(log);
+			if (worker != null)
+				return worker;
+
+			try
+			{
+				Thread.sleep(250);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new MojoExecutionException("Interrupted while starting R daemon.", e);
+			}
+		}
+
+		throw new MojoExecutionException("R daemon did not start within " + STARTUP_TIMEOUT / 1000 + " seconds. See " + logFile + " for details.");
+	}
+}
@@ -0,0 +1,309 @@
+package it.bancaditalia.oss;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Goal which installs the R packages the project depends upon, declared as Maven dependencies of type {@code R}.
+ *
+ * The packages are installed with R CMD INSTALL into the project-private library, where the other goals find them. The
+ * install order follows the Depends, Imports and LinkingTo fields of their DESCRIPTION files, and the packages that do
+ * not depend on each other are installed in parallel. Installed packages are kept in a local cache shared by all the
+ * builds, keyed by the checksum of the source package, of those it links to and depends upon, and by the R version, so
+ * that the same package is never compiled twice. Dependencies on modules of the same reactor are not installed, since
+ * their private libraries are used instead.
+ */
+@Mojo(name = "dependencies", defaultPhase = LifecyclePhase.GENERATE_SOURCES, requiresDependencyResolution = ResolutionScope.TEST, threadSafe = true)
+public class RDependenciesMojo extends AbstractRMojo
+{
+	private static final Pattern	DESCRIPTION	= Pattern.compile("[^/]+/DESCRIPTION");
+	private static final List<String>	FIELDS	= Arrays.asList("Depends", "Imports", "LinkingTo");
+	private static final String			PACKAGE	= "package.";
+
+	/**
+	 * Set it to {@code false} to always install the dependencies, without looking up the install cache.
+	 */
+	@Parameter(defaultValue = "true", property = "R.dependencies.cache") boolean	useInstallCache;
+
+	/**
+	 * Maximum size of the install cache, in megabytes. Least recently used packages are evicted first.
+	 */
+	@Parameter(defaultValue = "4096", property = "R.dependencies.cacheSize") long	installCacheSize;
+
+	/**
+	 * You can skip the execution of the plugin if you need to.
+	 */
+	@Parameter(defaultValue = "false", property = "R.dependencies.skip") boolean	skipDependencies;
+
+	/**
+	 * A source package to install.
+	 */
+	private static final class Dependency
+	{
+		final String		name;
+		final File			tarball;
+		final Set<String>	requires	= new LinkedHashSet<>();
+		String				key;
+
+		Dependency(String name, File tarball)
+		{
+			this.name = name;
+			this.tarball = tarball;
+		}
+	}
+
+	@Override
+	protected void executeGoal() throws MojoExecutionException
+	{
+		Log log = getLog();
+
+		if (skipDependencies)
+		{
+			log.info("Skipping the execution.");
+			return;
+		}
+
+		Map<String, Dependency> dependencies = new LinkedHashMap<>();
+		for (Artifact artifact : project.getArtifacts())
+			if ("R".equals(artifact.getType()) && artifact.getFile() != null && artifact.getFile().isFile())
+			{
+				Dependency dependency = readDependency(artifact.getFile());
+				dependencies.put(dependency.name, dependency);
+			}
+			else if ("R".equals(artifact.getType()))
+				log.debug("Skipping reactor dependency " + artifact);
+
+		if (dependencies.isEmpty())
+			return;
+
+		List<List<Dependency>> levels = planLevels(dependencies);
+		RInstallation installation = getInstallation();
+		for (List<Dependency> level : levels)
+			for (Dependency dependency : level)
+			{
+				Fingerprint key = new Fingerprint().add(installation.getVersion()).add(System.getProperty("os.name"))
+						.add(System.getProperty("os.arch")).add(dependency.name);
+				try
+				{
+					key.addFile(dependency.tarball);
+				}
+				catch (IOException e)
+				{
+					throw new MojoExecutionException("Cannot read " + dependency.tarball + ": " + e.getMessage(), e);
+				}
+				// Base and repository packages are not installed by this goal
+				for (String required : dependency.requires)
+					if (dependencies.containsKey(required))
+						key.add(dependencies.get(required).key);
+				dependency.key = key.toString();
+			}
+
+		File library = getPrivateLibrary();
+		library.mkdirs();
+		final StatusFile status = StatusFile.load(getStatusFile("dependencies"));
+		final ContentCache cache = useInstallCache ? getCache("install", installCacheSize) : null;
+		ExecutorService executor = Executors.newFixedThreadPool(getParallelism());
+		int installed = 0;
+		try
+		{
+			for (List<Dependency> level : levels)
+			{
+				List<Dependency> stale = new ArrayList<>();
+				for (Dependency dependency : level)
+					if (!dependency.key.equals(status.get(PACKAGE + dependency.name)) || !new File(library, dependency.name).isDirectory())
+						stale.add(dependency);
+
+				final int processes = Math.min(stale.size(), getParallelism());
+				List<Future<String>> installs = new ArrayList<>();
+				for (final Dependency dependency : stale)
+					installs.add(executor.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception
+						{
+							install(dependency, cache, processes);
+							return dependency.name;
+						}
+					}));
+
+				for (Future<String> install : installs)
+				{
+					String name = install.get();
+					synchronized (status)
+					{
+						status.put(PACKAGE + name, dependencies.get(name).key);
+					}
+					installed++;
+				}
+			}
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof MojoExecutionException)
+				throw (MojoExecutionException) e.getCause();
+			throw new MojoExecutionException("Cannot install R dependencies: " + e.getCause().getMessage(), e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while installing R dependencies.", e);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			try
+			{
+				status.save();
+			}
+			catch (IOException e)
+			{
+				log.warn("Cannot save dependency status: " + e.getMessage());
+			}
+		}
+
+		if (installed > 0)
+			log.info(installed + " of " + dependencies.size() + " R dependencies installed in " + library);
+		else
+			log.info("R dependencies are up to date.");
+	}
+
+	/**
+	 * Installs a package into the private library, from the install cache if possible.
+	 *
+	 * @param processes The number of packages installed concurrently.
+	 */
+	private void install(Dependency dependency, ContentCache cache, int processes) throws MojoExecutionException, IOException
+	{
+		Log log = getLog();
+		File library = getPrivateLibrary();
+		File installed = new File(library, dependency.name);
+		FileTree.delete(installed);
+
+		File entry = cache == null ? null : cache.lookup(dependency.key);
+		if (entry != null && new File(entry, dependency.name).isDirectory())
+		{
+			FileTree.copy(new File(entry, dependency.name), installed);
+			log.info("Package " + dependency.name + " restored from install cache.");
+			return;
+		}
+
+		log.info("Installing package " + dependency.name + "...");
+		File installLog = new File(project.getBuild().getDirectory(), dependency.name + "-install.log");
+		int exitStatus = getRScript(processes).command(library, installLog, log, "CMD", "INSTALL", "--library=" + library.getAbsolutePath(),
+				dependency.tarball.getAbsolutePath());
+		if (exitStatus != 0)
+			throw new MojoExecutionException("Installation of package " + dependency.name + " failed with exit status " + exitStatus + ". See "
+					+ installLog + " for details.");
+
+		if (cache != null)
+			try
+			{
+				cache.store(dependency.key, installed);
+			}
+			catch (IOException e)
+			{
+				log.warn("Cannot store package " + dependency.name + " in install cache: " + e.getMessage());
+			}
+	}
+
+	/**
+	 * Reads the name and the requirements of a source package from its DESCRIPTION.
+	 */
+	private static Dependency readDependency(File tarball) throws MojoExecutionException
+	{
+		try
+		{
+			byte description[] = TarArchive.readEntry(tarball, DESCRIPTION);
+			if (description == null)
+				throw new MojoExecutionException("Dependency " + tarball + " is not an R source package.");
+
+			Map<String, String> fields = new HashMap<>();
+			try (DcfReader reader = new DcfReader(new InputStreamReader(new ByteArrayInputStream(description), Charset.forName("ISO-8859-1"))))
+			{
+				DcfField field;
+				while ((field = reader.readField()) != null)
+					fields.put(field.getName(), field.getText());
+			}
+
+			if (fields.get("Package") == null)
+				throw new MojoExecutionException("Dependency " + tarball + " has no package name.");
+			Dependency dependency = new Dependency(fields.get("Package"), tarball);
+			for (String name : FIELDS)
+				if (fields.get(name) != null)
+					for (String entry : fields.get(name).split(","))
+					{
+						String required = entry.replaceAll("\\(.*", "").trim();
+						if (!required.isEmpty() && !"R".equals(required))
+							dependency.requires.add(required);
+					}
+			return dependency;
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read " + tarball + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Groups the packages so that each package comes after the packages it requires among those to install.
+	 */
+	private static List<List<Dependency>> planLevels(Map<String, Dependency> dependencies) throws MojoExecutionException
+	{
+		Map<String, Integer> depths = new HashMap<>();
+		List<List<Dependency>> levels = new ArrayList<>();
+		for (Dependency dependency : dependencies.values())
+			depth(dependency, dependencies, depths, new LinkedHashSet<String>());
+		for (Dependency dependency : dependencies.values())
+		{
+			int depth = depths.get(dependency.name);
+			while (levels.size() <= depth)
+				levels.add(new ArrayList<Dependency>());
+			levels.get(depth).add(dependency);
+		}
+
+		return levels;
+	}
+
+	private static int depth(Dependency dependency, Map<String, Dependency> dependencies, Map<String, Integer> depths, Set<String> visiting)
+			throws MojoExecutionException
+	{
+		Integer known = depths.get(dependency.name);
+		if (known != null)
+			return known;
+		if (!visiting.add(dependency.name))
+			throw new MojoExecutionException("Circular dependency among R packages: " + visiting);
+
+		int depth = 0;
+		for (String required : dependency.requires)
+			if (dependencies.containsKey(required))
+				depth = Math.max(depth, depth(dependencies.get(required), dependencies, depths, visiting) + 1);
+
+		visiting.remove(dependency.name);
+		depths.put(dependency.name, depth);
+		return depth;
+	}
+}
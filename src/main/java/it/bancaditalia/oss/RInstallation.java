@@ -0,0 +1,267 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Facts about an R installation that can be read from the file system, without starting R. Only the library paths
+ * are asked to R, once for each configuration of R startup.
+ */
+class RInstallation
+{
+	private static final Pattern					VERSION_DEFINE	= Pattern.compile("#define\\s+R_(MAJOR|MINOR)\\s+\"([^\"]*)\"");
+	private static final Charset					UTF8			= Charset.forName("UTF-8");
+	private static final String						MARKER			= "-- library paths --";
+	/**
+	 * R code printing the library paths of a session, including the user and site libraries not created yet.
+	 */
+	private static final String						LIBRARY_PATHS	= "p <- unlist(strsplit(Sys.getenv(c('R_LIBS', 'R_LIBS_USER')), .Platform$path.sep, fixed = TRUE)); "
+			+ "cat('" + MARKER + "', unique(c(path.expand(p[nzchar(p)]), .libPaths(), .Library.site, .Library)), sep = '\\n')";
+	/**
+	 * Environment variables and files that R reads at startup to set its library paths.
+	 */
+	private static final String						STARTUP_VARS[]	= { "R_LIBS", "R_LIBS_USER", "R_LIBS_SITE", "R_ENVIRON", "R_ENVIRON_USER", "R_PROFILE",
+			"R_PROFILE_USER", "HOME" };
+	private static final String						STARTUP_FILES[]	= { "etc", "etc/Renviron", "etc/Renviron.site", "etc/Rprofile.site" };
+	private static final Map<String, List<File>>	candidates		= new HashMap<>();
+
+	private final File								rHome;
+	private final File								cacheDirectory;
+
+	/**
+	 * @param rHome The R installation directory.
+	 * @param cacheDirectory The directory of the local caches, where the library inventory is kept.
+	 * @throws MojoExecutionException if the directory is not valid.
+	 */
+	RInstallation(File rHome, File cacheDirectory) throws MojoExecutionException
+	{
+		if (rHome == null || !rHome.exists() || !rHome.isDirectory())
+			throw new MojoExecutionException("Environment variable R_HOME is not set or invalid. Either set it or use <rHome> property in configuration.");
+
+		this.rHome = rHome;
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * @return The R version, as found in the R headers, or the installation path if the headers are missing.
+	 */
+	String getVersion()
+	{
+		String major = null;
+		String minor = null;
+		File header = new File(rHome, "include" + File.separator + "Rversion.h");
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(header), Charset.forName("US-ASCII"))))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				Matcher matcher = VERSION_DEFINE.matcher(line);
+				if (matcher.find())
+					if ("MAJOR".equals(matcher.group(1)))
+						major = matcher.group(2);
+					else
+						minor = matcher.group(2);
+			}
+		}
+		catch (IOException e)
+		{
+			// fall through
+		}
+
+		return major != null && minor != null ? major + "." + minor : rHome.getAbsolutePath();
+	}
+
+	/**
+	 * The library paths are asked to R once, and kept in the cache directory until the R installation, the R startup
+	 * files or the environment variables affecting them change. If R cannot be run, the paths are taken from R_LIBS,
+	 * R_LIBS_USER and R_LIBS_SITE, followed by the default library.
+	 *
+	 * @return The existing library directories searched by an R session, in search order.
+	 */
+	List<File> getLibraryPaths()
+	{
+		return getLibraryPaths(false);
+	}
+
+	private List<File> getLibraryPaths(boolean refresh)
+	{
+		StringBuilder stamp = new StringBuilder(rHome.getAbsolutePath());
+		for (String var : STARTUP_VARS)
+			stamp.append('\n').append(var).append('=').append(System.getenv(var));
+		for (String file : STARTUP_FILES)
+			stamp.append('\n').append(file).append('=').append(new File(rHome, file).lastModified());
+		String home = System.getProperty("user.home");
+		for (String file : new String[] { ".Renviron", ".Rprofile" })
+			stamp.append('\n').append(file).append('=').append(new File(home, file).lastModified());
+
+		List<File> paths;
+		synchronized (candidates)
+		{
+			paths = refresh ? null : candidates.get(stamp.toString());
+			if (paths == null)
+			{
+				File index = new File(cacheDirectory, "inventory" + File.separator + "libpaths-" + new Fingerprint().add(stamp).toString() + ".txt");
+				paths = refresh ? null : readPaths(index);
+				if (paths == null)
+				{
+					paths = queryPaths();
+					if (paths != null)
+						writePaths(index, paths);
+					else
+						paths = getEnvironmentPaths();
+				}
+				candidates.put(stamp.toString(), paths);
+			}
+		}
+
+		// User and site libraries may be created after the paths were asked to R
+		List<File> existing = new ArrayList<>();
+		for (File path : paths)
+			if (path.isDirectory())
+				existing.add(path);
+		return existing;
+	}
+
+	/**
+	 * @return The library paths printed by R, or null if R cannot be run.
+	 */
+	private List<File> queryPaths()
+	{
+		try
+		{
+			ProcessBuilder builder = new ProcessBuilder(RScript.getExecutable(rHome).getAbsolutePath(), "-e", LIBRARY_PATHS);
+			builder.redirectErrorStream(true);
+			RScript.configure(builder, rHome, null);
+			Process process = builder.start();
+			process.getOutputStream().close();
+
+			List<File> paths = new ArrayList<>();
+			boolean found = false;
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream())))
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+					if (found && !line.isEmpty() && !paths.contains(new File(line)))
+						paths.add(new File(line));
+					else
+						found |= MARKER.equals(line);
+			}
+			return process.waitFor() == 0 && found ? paths : null;
+		}
+		catch (IOException | MojoExecutionException e)
+		{
+			return null;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private List<File> getEnvironmentPaths()
+	{
+		List<File> paths = new ArrayList<>();
+		for (String var : new String[] { "R_LIBS", "R_LIBS_USER", "R_LIBS_SITE" })
+		{
+			String value = System.getenv(var);
+			if (value != null)
+				for (String path : value.split(File.pathSeparator))
+				{
+					File dir = new File(path);
+					if (!path.isEmpty() && !paths.contains(dir))
+						paths.add(dir);
+				}
+		}
+		paths.add(new File(rHome, "library"));
+		return paths;
+	}
+
+	private static List<File> readPaths(File index)
+	{
+		if (!index.isFile())
+			return null;
+		try
+		{
+			List<File> paths = new ArrayList<>();
+			for (String line : Files.readAllLines(index.toPath(), UTF8))
+				if (!line.isEmpty())
+					paths.add(new File(line));
+			return paths;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private static void writePaths(File index, List<File> paths)
+	{
+		List<String> lines = new ArrayList<>();
+		for (File path : paths)
+			lines.add(path.getPath());
+		try
+		{
+			index.getParentFile().mkdirs();
+			Files.write(index.toPath(), lines, UTF8);
+		}
+		catch (IOException e)
+		{
+			// asked again to R next time
+		}
+	}
+
+	/**
+	 * @return The inventory of the packages installed in the library paths.
+	 */
+	LibraryInventory getInventory()
+	{
+		return LibraryInventory.load(getLibraryPaths(), new File(cacheDirectory, "inventory"));
+	}
+
+	/**
+	 * @param name The name of an R package.
+	 * @return The version of the first installed copy of the package found in the library paths, or null if the
+	 *         package is not installed.
+	 */
+	String getPackageVersion(String name)
+	{
+		LibraryInventory.InstalledPackage installed = getInventory().get(name);
+		return installed == null ? null : installed.version;
+	}
+
+	/**
+	 * Verifies that an R package is installed.
+	 *
+	 * @param name The name of the package.
+	 * @param minVersion The minimum required version, or null if any version will do.
+	 * @throws MojoExecutionException if the package is missing or too old.
+	 */
+	void requirePackage(String name, String minVersion) throws MojoExecutionException
+	{
+		String version = getPackageVersion(name);
+		if (version == null)
+		{
+			// The package may be in a library that was added since the paths were asked to R
+			LibraryInventory.InstalledPackage installed = LibraryInventory.load(getLibraryPaths(true), new File(cacheDirectory, "inventory")).get(name);
+			version = installed == null ? null : installed.version;
+		}
+		if (version == null)
+			throw new MojoExecutionException("Package " + name + " is not installed in R.");
+		if (minVersion != null && LibraryInventory.compareVersions(version, minVersion) < 0)
+			throw new MojoExecutionException("Package " + name + " " + minVersion + " or later is required, but version " + version + " is installed in R.");
+	}
+}
@@ -1,25 +1,56 @@
 package it.bancaditalia.oss;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Map.Entry;
+import java.util.Set;
+
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.rosuda.JRI.Rengine;
 
 /**
  * Goal which runs <code>devtools::document.</code>
+ *
+ * The goal is incremental: it keeps a fingerprint of the roxygen blocks and of the signatures of the documented objects
+ * in each R file, and of the roxygen templates, and R is not invoked at all if none of them changed since the last run.
+ * Files using <code>@eval</code> or R6 classes, whose documentation may depend on any of their code, are fingerprinted
+ * as a whole, as are all files with <code>-DR.document.wholeFiles</code>. Otherwise the documentation is updated in
+ * place, and roxygen rewrites only the Rd files whose content changed. Documentation computed from anything else, such
+ * as <code>@eval</code> code reading other files or <code>@inheritParams</code> from other packages, is not tracked:
+ * use <code>-DR.document.force</code> to update it.
  */
-@Mojo(name = "document", defaultPhase = LifecyclePhase.COMPILE)
+@Mojo(name = "document", defaultPhase = LifecyclePhase.COMPILE, threadSafe = true)
 public class ROxygenizeMojo extends AbstractRMojo
 {
+	private static final Charset	LATIN1		= Charset.forName("ISO-8859-1");
+	private static final String		SETTINGS	= "settings";
+	private static final String		FILE		= "file.";
+
 	/**
 	 * A comma-separated list of unquoted roclet names to be passed to ROxygen.
 	 */
-	@Parameter(defaultValue = "") String roclets;
+	@Parameter(defaultValue = "") String									roclets;
+
+	/**
+	 * Set it to {@code true} to update the documentation even if no R file or roxygen template changed.
+	 */
+	@Parameter(defaultValue = "false", property = "R.document.force") boolean	forceDocument;
+
+	/**
+	 * Set it to {@code true} to update the documentation when any code of an R file changed, not only its roxygen
+	 * blocks and signatures.
+	 */
+	@Parameter(defaultValue = "false", property = "R.document.wholeFiles") boolean	wholeFiles;
 
 	@Override
-	public void execute() throws MojoExecutionException
+	protected void executeGoal() throws MojoExecutionException
 	{
 		Log log = getLog();
 
@@ -47,19 +78,174 @@ public class ROxygenizeMojo extends AbstractRMojo
 				roclets = rocletArray.toString();
 			}
 
-		Rengine engine;
+		File packageDir = new File(project.getBuild().getOutputDirectory());
+		StatusFile status = StatusFile.load(getStatusFile("document"));
+		try
+		{
+			if (!updateFingerprints(this, roclets, wholeFiles, status, packageDir) && !forceDocument && new File(packageDir, "NAMESPACE").isFile())
+			{
+				log.info("Documentation is up to date.");
+				return;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read R sources: " + e.getMessage(), e);
+		}
 
-		synchronized (engine = getEngine())
+		try (RSession session = openSession())
 		{
 			String statement = "setwd('" + project.getBuild().getDirectory() + "')";
 			log.debug("Executing R statement: " + statement);
-			engine.eval(statement);
-			statement = "devtools::document(pkg = as.package('" + project.getBuild().getOutputDirectory() + "'), clean = T"
-					+ (roclets != null ? ", roclets = " + roclets : "") + ")";
+			tryCatch(session, statement);
+			statement = withProjectLibraries("devtools::document(pkg = as.package('" + project.getBuild().getOutputDirectory() + "')"
+					+ (roclets != null ? ", roclets = " + roclets : "") + ")");
 			log.debug("Executing R statement: " + statement);
-			tryCatch(statement);
+			tryCatch(session, statement);
+		}
+
+		try
+		{
+			status.save();
+		}
+		catch (IOException e)
+		{
+			log.warn("Cannot save documentation status: " + e.getMessage());
 		}
-		
+
 		log.info("ROxygenize completed.");
 	}
+
+	/**
+	 * Updates the fingerprints of everything that contributes to the generated documentation.
+	 *
+	 * @param mojo The mojo of the project.
+	 * @param roclets The R vector of the roclets, or null for the default ones.
+	 * @param wholeFiles Whether R files are fingerprinted as a whole.
+	 * @param status The status of the document goal.
+	 * @param packageDir The prepared package directory.
+	 * @return true if any fingerprint changed.
+	 * @throws IOException if the R sources cannot be read.
+	 * @throws MojoExecutionException if the R installation is not valid.
+	 */
+	static boolean updateFingerprints(AbstractRMojo mojo, String roclets, boolean wholeFiles, StatusFile status, File packageDir) throws IOException, MojoExecutionException
+	{
+		Log log = mojo.getLog();
+		boolean changed = false;
+
+		String settings = new Fingerprint().add(roclets).add(mojo.getInstallation().getPackageVersion("roxygen2"))
+				.addFile(new File(packageDir, "DESCRIPTION")).addTree(new File(packageDir, "man-roxygen"))
+				.addTree(new File(packageDir, "man" + File.separator + "roxygen")).toString();
+		if (!settings.equals(status.get(SETTINGS)))
+		{
+			log.debug("Roclets, DESCRIPTION or roxygen templates changed.");
+			status.clear();
+			status.put(SETTINGS, settings);
+			changed = true;
+		}
+
+		Set<String> removed = status.keys(FILE);
+		for (Entry<String, File> source : FileTree.list(new File(packageDir, "R")).entrySet())
+		{
+			String name = source.getKey();
+			if (!name.endsWith(".R") && !name.endsWith(".r"))
+				continue;
+
+			removed.remove(name);
+			String fingerprint = fingerprintRoxygen(source.getValue(), wholeFiles);
+			if (!fingerprint.equals(status.get(FILE + name)))
+			{
+				log.debug("Documentation changed in " + name);
+				status.put(FILE + name, fingerprint);
+				changed = true;
+			}
+		}
+
+		for (String name : removed)
+		{
+			log.debug("R source removed: " + name);
+			status.remove(FILE + name);
+			changed = true;
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Fingerprints the parts of an R source that roxygen uses: the roxygen comment blocks, and the first expression
+	 * following each block up to the end of its first line with balanced parentheses, i.e. the object name and the
+	 * function signature. Function bodies and undocumented code are not part of the fingerprint, unless the file uses
+	 * <code>@eval</code> tags or R6 classes, or whole files are requested: then the whole file is fingerprinted.
+	 *
+	 * @param source The R source file.
+	 * @param whole Whether the file is fingerprinted as a whole anyway.
+	 * @return The fingerprint.
+	 * @throws IOException if the file cannot be read.
+	 */
+	static String fingerprintRoxygen(File source, boolean whole) throws IOException
+	{
+		if (whole)
+			return Fingerprint.of(source);
+
+		Fingerprint fingerprint = new Fingerprint();
+
+		// Latin-1 maps bytes one to one, so that any encoding is fingerprinted consistently
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), LATIN1)))
+		{
+			boolean afterBlock = false;
+			int depth = 0;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String trimmed = line.trim();
+				// Evaluated tags and R6 methods may be documented from any code of the file
+				if (trimmed.startsWith("#'") ? trimmed.contains("@eval") : trimmed.contains("R6Class("))
+					return Fingerprint.of(source);
+
+				if (trimmed.startsWith("#'"))
+				{
+					fingerprint.add(trimmed);
+					afterBlock = true;
+					depth = 0;
+				}
+				else if (afterBlock || depth > 0)
+				{
+					if (depth == 0 && (trimmed.isEmpty() || trimmed.startsWith("#")))
+						continue;
+
+					fingerprint.add(trimmed);
+					depth += parenthesesBalance(trimmed);
+					afterBlock = false;
+				}
+			}
+		}
+
+		return fingerprint.toString();
+	}
+
+	private static int parenthesesBalance(String line)
+	{
+		int balance = 0;
+		char quote = 0;
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (quote != 0)
+			{
+				if (c == '\\')
+					i++;
+				else if (c == quote)
+					quote = 0;
+			}
+			else if (c == '"' || c == '\'' || c == '`')
+				quote = c;
+			else if (c == '#')
+				break;
+			else if (c == '(')
+				balance++;
+			else if (c == ')')
+				balance--;
+		}
+		return balance;
+	}
 }
@@ -0,0 +1,258 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.rosuda.JRI.REXP;
+import org.rosuda.JRI.RVector;
+
+/**
+ * Goal which runs document, validate, build and check as a single R evaluation, e.g. with
+ * {@code mvn process-resources r:pipeline}.
+ *
+ * The steps are planned in Java first: documentation is skipped when the roxygen fingerprints are unchanged, the
+ * metadata is validated in Java, and the package and the check results are restored from their caches when their keys
+ * are already known. The remaining steps run in one R program that parses the package once and returns the outcome
+ * and the elapsed time of each step, stopping at the first failure. When the archive is written in Java with
+ * {@code R.build.reproducible}, the check runs in a second evaluation after the archive is written.
+ */
+@Mojo(name = "pipeline", threadSafe = true)
+public class RPipelineMojo extends RBuildMojo
+{
+	private static final List<String>	STEPS		= Arrays.asList("document", "validate", "build", "check");
+	/**
+	 * R program running the planned steps on the package parsed once.
+	 */
+	private static final String			PIPELINE	= "local({\n"
+			+ "  pkg <- devtools::as.package(%s)\n"
+			+ "  out <- list(steps = character(), failures = character(), times = numeric(), problems = character(), artifact = %s,\n"
+			+ "    errors = character(), warnings = character(), notes = character())\n"
+			+ "  for (step in c(%s)) {\n"
+			+ "    started <- proc.time()[['elapsed']]\n"
+			+ "    failure <- tryCatch({\n"
+			+ "      switch(step,\n"
+			+ "        document = devtools::document(pkg = pkg),\n"
+			+ "        validate = out$problems <- as.character(unlist(tools:::.check_package_description(file.path(pkg$path, 'DESCRIPTION')))),\n"
+			+ "        build = out$artifact <- devtools::build(pkg = pkg, path = %s, quiet = %s%s),\n"
+			+ "        check = {\n"
+			+ "          res <- devtools::check_built(path = out$artifact, quiet = %5$s, check_dir = %4$s)\n"
+			+ "          out$errors <- as.character(res$errors); out$warnings <- as.character(res$warnings); out$notes <- as.character(res$notes)\n"
+			+ "        })\n"
+			+ "      ''\n"
+			+ "    }, error = function(e) conditionMessage(e))\n"
+			+ "    out$steps <- c(out$steps, step); out$failures <- c(out$failures, failure)\n"
+			+ "    out$times <- c(out$times, proc.time()[['elapsed']] - started)\n"
+			+ "    if (nzchar(failure) || length(out$problems) > 0) break\n"
+			+ "  }\n"
+			+ "  out\n"
+			+ "})";
+
+	/**
+	 * Comma-separated steps to run, among document, validate, build and check. Steps always run in this order.
+	 */
+	@Parameter(defaultValue = "document,validate,build,check", property = "R.pipeline.steps") String	steps;
+
+	/**
+	 * The encoding of the DESCRIPTION file.
+	 */
+	@Parameter(defaultValue = "${project.build.sourceEncoding}") String								encoding;
+
+	/**
+	 * Set it to {@code false} to always check the package, without looking up the check cache.
+	 */
+	@Parameter(defaultValue = "true", property = "R.check.cache") boolean								useCheckCache;
+
+	/**
+	 * Maximum size of the check cache, in megabytes. Least recently used results are evicted first.
+	 */
+	@Parameter(defaultValue = "64", property = "R.check.cacheSize") long								checkCacheSize;
+
+	/**
+	 * Set it to {@code true} to update the documentation even if no R file or roxygen template changed.
+	 */
+	@Parameter(defaultValue = "false", property = "R.document.force") boolean							forceDocument;
+
+	/**
+	 * Set it to {@code true} to update the documentation when any code of an R file changed, not only its roxygen
+	 * blocks and signatures.
+	 */
+	@Parameter(defaultValue = "false", property = "R.document.wholeFiles") boolean						wholeFiles;
+
+	@Override
+	protected void executeGoal() throws MojoExecutionException
+	{
+		Log log = getLog();
+
+		String version = checkRPackageVersion();
+		setupDirectories();
+		File packageDir = new File(project.getBuild().getOutputDirectory());
+		File description = new File(packageDir, "DESCRIPTION");
+		if (!description.isFile())
+			throw new MojoExecutionException("DESCRIPTION file does not exists. Remember to use the 'sources' goal.");
+
+		List<String> requested = Arrays.asList(steps.trim().split("\\s*,\\s*"));
+		List<String> plan = new ArrayList<>();
+		for (String step : requested)
+			if (!STEPS.contains(step))
+				throw new MojoExecutionException("Unknown pipeline step '" + step + "', valid steps are " + STEPS);
+		for (String step : STEPS)
+			if (requested.contains(step))
+				plan.add(step);
+
+		File artifact = new File(project.getBuild().getDirectory(), project.getArtifactId() + "_" + version + ".tar.gz");
+		StatusFile documentStatus = StatusFile.load(getStatusFile("document"));
+		ContentCache buildCache = useBuildCache ? getBuildCache() : null;
+		ContentCache checkCache = useCheckCache ? getCache("check", checkCacheSize) : null;
+		List<String> errors = new ArrayList<>();
+		List<String> warnings = new ArrayList<>();
+		List<String> notes = new ArrayList<>();
+		boolean checked = false;
+		try
+		{
+			if (plan.contains("document") && !ROxygenizeMojo.updateFingerprints(this, null, wholeFiles, documentStatus, packageDir) && !forceDocument
+					&& new File(packageDir, "NAMESPACE").isFile())
+			{
+				log.info("Documentation is up to date.");
+				plan.remove("document");
+			}
+
+			if (plan.contains("validate"))
+			{
+				List<String> problems = RValidate.checkDescription(description, encoding);
+				for (String problem : problems)
+					log.error(problem);
+				if (!problems.isEmpty())
+					throw new MojoExecutionException("Project metadata contains errors.");
+			}
+
+			// The package directory is final only if it is not documented again
+			if (plan.contains("build") && !plan.contains("document") && buildCache != null)
+			{
+				File restored = restore(buildCache, getBuildCacheKey(getInstallation(), packageDir), artifact.getParentFile());
+				if (restored != null)
+				{
+					log.info("Package restored from build cache.");
+					artifact = restored;
+					attach(project, artifact);
+					plan.remove("build");
+				}
+			}
+
+			if (plan.contains("check") && !plan.contains("build") && checkCache != null && artifact.isFile()
+					&& RCheckMojo.restoreResults(checkCache, RCheckMojo.getCheckCacheKey(this, artifact, 1, Collections.<String> emptyList()), errors, warnings, notes))
+			{
+				log.info("Check results restored from check cache.");
+				plan.remove("check");
+				checked = true;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot plan the pipeline: " + e.getMessage(), e);
+		}
+
+		// The check must see the archive written in Java
+		List<List<String>> batches = new ArrayList<>();
+		if (reproducible && plan.contains("build") && plan.contains("check"))
+		{
+			batches.add(plan.subList(0, plan.indexOf("check")));
+			batches.add(Collections.singletonList("check"));
+		}
+		else if (!plan.isEmpty())
+			batches.add(plan);
+
+		if (!batches.isEmpty())
+			try (RSession session = openSession())
+			{
+				for (List<String> batch : batches)
+				{
+					log.info("Running " + batch + "...");
+					artifact = run(session, batch, artifact, documentStatus, buildCache, checkCache, errors, warnings, notes);
+				}
+				checked |= plan.contains("check");
+			}
+
+		if (checked)
+			RCheckMojo.report(log, errors, warnings, notes);
+		log.info("Pipeline completed.");
+	}
+
+	/**
+	 * Runs a batch of steps in a single R evaluation, then processes their results.
+	 *
+	 * @return The package archive.
+	 */
+	private File run(RSession session, List<String> batch, File artifact, StatusFile documentStatus, ContentCache buildCache, ContentCache checkCache,
+			List<String> errors, List<String> warnings, List<String> notes) throws MojoExecutionException
+	{
+		Log log = getLog();
+		String quiet = streamConsole ? "F" : "T";
+		StringBuilder names = new StringBuilder();
+		for (String step : batch)
+			names.append(names.length() > 0 ? ", " : "").append(RScript.quote(step));
+
+		REXP res = tryCatch(session, withProjectLibraries(String.format(PIPELINE, RScript.quote(project.getBuild().getOutputDirectory()),
+				RScript.quote(artifact.getAbsolutePath()), names, RScript.quote(project.getBuild().getDirectory()), quiet, getBuildArgs())));
+		RVector out = res == null ? null : res.asVector();
+		if (out == null || out.at("steps") == null)
+			throw new MojoExecutionException("R internal error while running the pipeline");
+
+		List<String> executed = RResults.strings(out.at("steps"));
+		List<String> failures = RResults.strings(out.at("failures"));
+		double times[] = out.at("times").asDoubleArray();
+		if (times == null)
+			times = new double[] { out.at("times").asDouble() };
+		for (int i = 0; i < executed.size(); i++)
+		{
+			log.info(String.format("  %-10s %8.2f s  %s", executed.get(i), times[i], failures.get(i).isEmpty() ? "OK" : "FAILED"));
+			if (!failures.get(i).isEmpty())
+				throw new MojoExecutionException("Step " + executed.get(i) + " failed: " + failures.get(i));
+
+			try
+			{
+				switch (executed.get(i))
+				{
+					case "document":
+						documentStatus.save();
+						break;
+					case "validate":
+						List<String> problems = RResults.strings(out.at("problems"));
+						for (String problem : problems)
+							log.error(problem);
+						if (!problems.isEmpty())
+							throw new MojoExecutionException("Project metadata contains errors.");
+						break;
+					case "build":
+						artifact = pack(RResults.path(out.at("artifact"), "running the pipeline"));
+						if (buildCache != null)
+							buildCache.store(getBuildCacheKey(getInstallation(), new File(project.getBuild().getOutputDirectory())), artifact);
+						attach(project, artifact);
+						break;
+					case "check":
+						RResults.CheckResults results = RResults.CheckResults.of(res);
+						errors.addAll(results.errors);
+						warnings.addAll(results.warnings);
+						notes.addAll(results.notes);
+						if (checkCache != null)
+							RCheckMojo.storeResults(this, checkCache, RCheckMojo.getCheckCacheKey(this, artifact, 1, Collections.<String> emptyList()), errors,
+									warnings, notes);
+						break;
+				}
+			}
+			catch (IOException e)
+			{
+				log.warn("Cannot store the results of step " + executed.get(i) + ": " + e.getMessage());
+			}
+		}
+
+		return artifact;
+	}
+}
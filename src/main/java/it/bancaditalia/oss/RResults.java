@@ -0,0 +1,240 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.rosuda.JRI.REXP;
+import org.rosuda.JRI.RVector;
+
+/**
+ * Typed views of the results of R evaluations.
+ *
+ * The views read the values of the results when accessed, without copying character vectors, and messages are split
+ * into lines while they are iterated. Results are rendered for the log up to a maximum length, so that large results
+ * cost nothing when debug logging is off and little when it is on.
+ */
+final class RResults
+{
+	/**
+	 * Maximum length of a result rendered for the log.
+	 */
+	static final int	RENDER_LIMIT	= 2000;
+
+	private RResults()
+	{
+	}
+
+	/**
+	 * The errors, warnings and notes of R CMD check, as returned by devtools::check_built.
+	 */
+	static final class CheckResults
+	{
+		final List<String>	errors;
+		final List<String>	warnings;
+		final List<String>	notes;
+
+		private CheckResults(RVector results)
+		{
+			errors = strings(results.at("errors"));
+			warnings = strings(results.at("warnings"));
+			notes = strings(results.at("notes"));
+		}
+
+		/**
+		 * @param res The result of the check.
+		 * @return The check results.
+		 * @throws MojoExecutionException if the result is not a list of check results.
+		 */
+		static CheckResults of(REXP res) throws MojoExecutionException
+		{
+			RVector results = res == null ? null : res.asVector();
+			if (results == null || results.at("errors") == null)
+				throw new MojoExecutionException("R internal error while invoking R CMD check");
+			return new CheckResults(results);
+		}
+	}
+
+	/**
+	 * @param value A character vector, a string or NULL.
+	 * @return An unmodifiable view of the strings, empty if the value is NULL or not a string.
+	 */
+	static List<String> strings(REXP value)
+	{
+		if (value == null || value.getType() == REXP.XT_NULL)
+			return Collections.emptyList();
+		String values[] = value.asStringArray();
+		if (values != null)
+			return Collections.unmodifiableList(Arrays.asList(values));
+		return value.asString() != null ? Collections.singletonList(value.asString()) : Collections.<String> emptyList();
+	}
+
+	/**
+	 * @param res The result of a statement returning a file path.
+	 * @param action The action of the statement, for the error message.
+	 * @return The file.
+	 * @throws MojoExecutionException if the result is not a string.
+	 */
+	static File path(REXP res, String action) throws MojoExecutionException
+	{
+		String path = res == null ? null : res.asString();
+		if (path == null || path.isEmpty())
+			throw new MojoExecutionException("R internal error while " + action);
+		return new File(path);
+	}
+
+	/**
+	 * @param res The result of tools:::.check_package_description, a list of messages.
+	 * @return A view of the problems found.
+	 */
+	static List<String> problems(REXP res)
+	{
+		final RVector problems = res == null ? null : res.asVector();
+		if (problems == null)
+			return strings(res);
+
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index)
+			{
+				return problems.at(index).asString();
+			}
+
+			@Override
+			public int size()
+			{
+				return problems.size();
+			}
+		};
+	}
+
+	/**
+	 * @param text A message.
+	 * @return The lines of the message, ended by LF or CR LF, split while iterated. Trailing empty lines are omitted.
+	 */
+	static Iterable<String> lines(final String text)
+	{
+		int length = text.length();
+		while (length > 0 && (text.charAt(length - 1) == '\n' || text.charAt(length - 1) == '\r'))
+			length--;
+		final int end = length;
+
+		return new Iterable<String>() {
+			@Override
+			public Iterator<String> iterator()
+			{
+				return new Iterator<String>() {
+					private int	start	= 0;
+
+					@Override
+					public boolean hasNext()
+					{
+						return start < end || start == 0 && text.isEmpty();
+					}
+
+					@Override
+					public String next()
+					{
+						if (!hasNext())
+							throw new NoSuchElementException();
+						int next = text.indexOf('\n', start);
+						if (next < 0)
+							next = text.length();
+						String line = text.substring(start, next > start && text.charAt(next - 1) == '\r' ? next - 1 : next);
+						start = next + 1;
+						return line;
+					}
+
+					@Override
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * @param res A result.
+	 * @param limit The maximum length of the rendering.
+	 * @return A rendering of the result, truncated after the given length.
+	 */
+	static String render(REXP res, int limit)
+	{
+		StringBuilder out = new StringBuilder();
+		render(out, res, limit);
+		if (out.length() > limit)
+		{
+			out.setLength(limit);
+			out.append("...");
+		}
+		return out.toString();
+	}
+
+	private static void render(StringBuilder out, REXP value, int limit)
+	{
+		if (value == null)
+		{
+			out.append("null");
+			return;
+		}
+
+		switch (value.getType())
+		{
+			case REXP.XT_NULL:
+				out.append("NULL");
+				break;
+			case REXP.XT_STR:
+			case REXP.XT_ARRAY_STR:
+				List<String> strings = strings(value);
+				out.append("chr[").append(strings.size()).append(']');
+				for (int i = 0; i < strings.size() && out.length() <= limit; i++)
+				{
+					String string = strings.get(i);
+					out.append(i > 0 ? ", " : " ");
+					if (string == null)
+						out.append("NA");
+					else
+						// Appending past the limit only marks the truncation
+						out.append('"').append(string, 0, Math.max(0, Math.min(string.length(), limit - out.length() + 1))).append('"');
+				}
+				break;
+			case REXP.XT_INT:
+			case REXP.XT_ARRAY_INT:
+			case REXP.XT_ARRAY_BOOL_INT:
+				int ints[] = value.asIntArray();
+				out.append(value.getType() == REXP.XT_ARRAY_BOOL_INT ? "logi[" : "int[").append(ints.length).append(']');
+				for (int i = 0; i < ints.length && out.length() <= limit; i++)
+					out.append(i > 0 ? ", " : " ").append(ints[i]);
+				break;
+			case REXP.XT_DOUBLE:
+			case REXP.XT_ARRAY_DOUBLE:
+				double doubles[] = value.asDoubleArray();
+				out.append("num[").append(doubles.length).append(']');
+				for (int i = 0; i < doubles.length && out.length() <= limit; i++)
+					out.append(i > 0 ? ", " : " ").append(doubles[i]);
+				break;
+			case REXP.XT_VECTOR:
+				RVector vector = value.asVector();
+				List<?> names = vector.getNames();
+				out.append("list[").append(vector.size()).append("] (");
+				for (int i = 0; i < vector.size() && out.length() <= limit; i++)
+				{
+					out.append(i > 0 ? ", " : "");
+					if (names != null && names.get(i) != null)
+						out.append(names.get(i)).append(" = ");
+					render(out, vector.at(i), limit);
+				}
+				out.append(')');
+				break;
+			default:
+				out.append(REXP.xtName(value.getType()));
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import com.sun.jna.Platform;
+
+/**
+ * Runs R code in a fresh, isolated Rscript process.
+ */
+final class RScript
+{
+	private final File					rHome;
+	private final File[]				sharedLibs;
+	private final Map<String, String>	environment;
+	private final long					timeout;
+	private final boolean				stream;
+	private final String				prefix;
+
+	/**
+	 * @param rHome The R installation directory.
+	 * @param sharedLibs Additional directories containing shared libraries needed by R.
+	 */
+	RScript(File rHome, File[] sharedLibs)
+	{
+		this(rHome, sharedLibs, Collections.<String, String> emptyMap(), 0, false);
+	}
+
+	/**
+	 * @param rHome The R installation directory.
+	 * @param sharedLibs Additional directories containing shared libraries needed by R.
+	 * @param environment Additional environment variables of the R processes.
+	 * @param timeout The time limit of each R process in milliseconds, or zero for no limit.
+	 * @param stream Whether the console output is sent to the log at info level instead of debug level.
+	 */
+	RScript(File rHome, File[] sharedLibs, Map<String, String> environment, long timeout, boolean stream)
+	{
+		this(rHome, sharedLibs, environment, timeout, stream, "[R] ");
+	}
+
+	private RScript(File rHome, File[] sharedLibs, Map<String, String> environment, long timeout, boolean stream, String prefix)
+	{
+		this.rHome = rHome;
+		this.sharedLibs = sharedLibs;
+		this.environment = environment;
+		this.timeout = timeout;
+		this.stream = stream;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @param index The index of a shard, starting from 1.
+	 * @return A copy of this runner whose console output is prefixed with the index of the shard, so that the output of
+	 *         concurrent processes can be told apart.
+	 */
+	RScript shard(int index)
+	{
+		return new RScript(rHome, sharedLibs, environment, timeout, stream, "[R " + index + "] ");
+	}
+
+	/**
+	 * @param rHome The R installation directory.
+	 * @return The Rscript executable.
+	 * @throws MojoExecutionException if Rscript cannot be found.
+	 */
+	static File getExecutable(File rHome) throws MojoExecutionException
+	{
+		File rscript = new File(rHome, "bin" + File.separator + (Platform.isWindows() ? "Rscript.exe" : "Rscript"));
+		if (!rscript.canExecute())
+			throw new MojoExecutionException("Rscript cannot be found in " + rscript.getParent() + ". Please check R installation.");
+		return rscript;
+	}
+
+	/**
+	 * @param rHome The R installation directory.
+	 * @return The R front-end executable.
+	 * @throws MojoExecutionException if R cannot be found.
+	 */
+	static File getR(File rHome) throws MojoExecutionException
+	{
+		File r = new File(rHome, "bin" + File.separator + (Platform.isWindows() ? "R.exe" : "R"));
+		if (!r.canExecute())
+			throw new MojoExecutionException("R cannot be found in " + r.getParent() + ". Please check R installation.");
+		return r;
+	}
+
+	/**
+	 * Sets up the environment of an R process.
+	 *
+	 * @param builder The builder of the process.
+	 * @param rHome The R installation directory.
+	 * @param sharedLibs Additional directories containing shared libraries needed by R.
+	 */
+	static void configure(ProcessBuilder builder, File rHome, File[] sharedLibs)
+	{
+		Map<String, String> env = builder.environment();
+		env.put("R_HOME", rHome.getAbsolutePath());
+		if (sharedLibs != null && sharedLibs.length > 0)
+		{
+			StringBuilder paths = new StringBuilder();
+			for (File sharedLib : sharedLibs)
+				paths.append(sharedLib.getAbsolutePath()).append(File.pathSeparator);
+			String var = Platform.isWindows() ? "PATH" : "LD_LIBRARY_PATH";
+			env.put(var, paths.toString() + (env.get(var) == null ? "" : env.get(var)));
+		}
+	}
+
+	/**
+	 * Quotes a string as an R character literal.
+	 *
+	 * @param value The string.
+	 * @return The R literal.
+	 */
+	static String quote(String value)
+	{
+		return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+	}
+
+	/**
+	 * Runs R code and waits for its completion. The console output is sent to the log at info level when streamed,
+	 * at debug level otherwise.
+	 * 
+	 * @param workDir The working directory of the process.
+	 * @param code The R code to run.
+	 * @param log The log.
+	 * @return The exit status of the process.
+	 * @throws MojoExecutionException if the process cannot be run.
+	 */
+	int run(File workDir, String code, Log log) throws MojoExecutionException
+	{
+		File script = null;
+		try
+		{
+			script = File.createTempFile("rscript", ".R");
+			try (Writer writer = new OutputStreamWriter(new FileOutputStream(script), Charset.forName("UTF-8")))
+			{
+				writer.write(code);
+			}
+
+			return execute(workDir, null, log, getExecutable(rHome).getAbsolutePath(), "--vanilla", "--encoding=UTF-8", script.getAbsolutePath());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot run Rscript: " + e.getMessage(), e);
+		}
+		finally
+		{
+			if (script != null)
+				script.delete();
+		}
+	}
+
+	/**
+	 * Runs an R command, such as <code>CMD INSTALL</code>, and waits for its completion. The console output is sent to
+	 * the log at info level when streamed, at debug level otherwise.
+	 * 
+	 * @param workDir The working directory of the process.
+	 * @param output A file where to write also the console output, or null.
+	 * @param log The log.
+	 * @param args The arguments of the R front-end.
+	 * @return The exit status of the process.
+	 * @throws MojoExecutionException if the process cannot be run.
+	 */
+	int command(File workDir, File output, Log log, String... args) throws MojoExecutionException
+	{
+		String command[] = new String[args.length + 1];
+		command[0] = getR(rHome).getAbsolutePath();
+		System.arraycopy(args, 0, command, 1, args.length);
+		return execute(workDir, output, log, command);
+	}
+
+	private int execute(File workDir, File output, Log log, String... command) throws MojoExecutionException
+	{
+		try
+		{
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.directory(workDir);
+			builder.redirectErrorStream(true);
+			configure(builder, rHome, sharedLibs);
+			builder.environment().putAll(environment);
+
+			final Process process = builder.start();
+			process.getOutputStream().close();
+			Watchdog.Target target = new Watchdog.Target() {
+				private final Set<String>	tree	= new LinkedHashSet<>();
+
+				@Override
+				public void interrupt()
+				{
+					signal(process, tree, "-TERM");
+					process.destroy();
+				}
+
+				@Override
+				public void kill()
+				{
+					signal(process, tree, "-KILL");
+					process.destroy();
+					try
+					{
+						process.getInputStream().close();
+					}
+					catch (IOException e)
+					{
+						// The console is being closed anyway
+					}
+				}
+			};
+			try (Watchdog watchdog = Watchdog.watch(target, timeout);
+					BufferedReader console = new BufferedReader(new InputStreamReader(process.getInputStream()));
+					Writer copy = output == null ? null : new OutputStreamWriter(new FileOutputStream(output), Charset.defaultCharset()))
+			{
+				try
+				{
+					String line;
+					while ((line = console.readLine()) != null)
+					{
+						if (stream)
+							log.info(prefix + line);
+						else
+							log.debug(prefix + line);
+						if (copy != null)
+							copy.write(line + System.lineSeparator());
+					}
+				}
+				catch (IOException e)
+				{
+					// The console is closed when the process is killed
+					if (!watchdog.hasFired())
+						throw e;
+				}
+
+				int status = process.waitFor();
+				if (watchdog.hasFired())
+					throw new MojoExecutionException(command[0] + " did not complete within " + timeout / 1000 + " seconds and was terminated.");
+				return status;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot run " + command[0] + ": " + e.getMessage(), e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while running " + command[0] + ".", e);
+		}
+	}
+
+	/**
+	 * Signals the processes started by an R process, such as the shells, make and compilers of R CMD INSTALL, which
+	 * would otherwise keep its console open after it is terminated. The descendants are collected with ps before the R
+	 * process is terminated, since they are orphaned afterwards, and are signalled again when killed. Windows is not
+	 * supported, and there the console may stay open until the descendants complete.
+	 *
+	 * @param process The R process.
+	 * @param tree The descendants found so far, updated with the current ones.
+	 * @param signal The option of kill naming the signal.
+	 */
+	private static void signal(Process process, Set<String> tree, String signal)
+	{
+		String pid = getPid(process);
+		if (Platform.isWindows() || pid == null)
+			return;
+
+		try
+		{
+			Process ps = new ProcessBuilder("ps", "-A", "-o", "pid=", "-o", "ppid=").redirectErrorStream(true).start();
+			ps.getOutputStream().close();
+			Map<String, List<String>> children = new HashMap<>();
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(ps.getInputStream())))
+			{
+				for (String line = reader.readLine(); line != null; line = reader.readLine())
+				{
+					String[] fields = line.trim().split("\\s+");
+					if (fields.length != 2)
+						continue;
+					if (!children.containsKey(fields[1]))
+						children.put(fields[1], new ArrayList<String>());
+					children.get(fields[1]).add(fields[0]);
+				}
+			}
+			ps.waitFor();
+
+			List<String> pending = new ArrayList<>(Collections.singletonList(pid));
+			while (!pending.isEmpty())
+			{
+				List<String> found = children.get(pending.remove(pending.size() - 1));
+				if (found != null)
+					for (String child : found)
+						if (tree.add(child))
+							pending.add(child);
+			}
+
+			if (!tree.isEmpty())
+			{
+				List<String> kill = new ArrayList<>(Arrays.asList("kill", signal));
+				kill.addAll(tree);
+				Process killer = new ProcessBuilder(kill).redirectErrorStream(true).start();
+				killer.getOutputStream().close();
+				killer.getInputStream().close();
+				killer.waitFor();
+			}
+		}
+		catch (IOException e)
+		{
+			// The R process itself is still terminated
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The id of a process, or null if it cannot be found: Process.pid() is only available from Java 9, and the
+	 *         pid field of the implementation class is used before.
+	 */
+	private static String getPid(Process process)
+	{
+		try
+		{
+			return String.valueOf(Process.class.getMethod("pid").invoke(process));
+		}
+		catch (ReflectiveOperationException e)
+		{
+			try
+			{
+				Field field = process.getClass().getDeclaredField("pid");
+				field.setAccessible(true);
+				return String.valueOf(field.getInt(process));
+			}
+			catch (ReflectiveOperationException | RuntimeException e1)
+			{
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package it.bancaditalia.oss;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.rosuda.JRI.REXP;
+
+/**
+ * A lease on an R evaluation context obtained from an {@link RBackend}.
+ *
+ * Statements evaluated through the same session share the same global environment and working directory. Closing the
+ * session gives the context back to its backend, so it must be used inside a try-with-resources block.
+ */
+public interface RSession extends AutoCloseable
+{
+	/**
+	 * Evaluates an R expression.
+	 *
+	 * @param expression The R code to evaluate.
+	 * @return The value of the expression.
+	 * @throws MojoExecutionException if R signalled an error or if the evaluation could not be performed.
+	 */
+	public REXP eval(String expression) throws MojoExecutionException;
+
+	/**
+	 * Evaluates an R expression within a time limit. When the time is up the evaluation is interrupted, and if R does
+	 * not respond the R process is recycled.
+	 *
+	 * @param expression The R code to evaluate.
+	 * @param timeout The time limit in milliseconds, or zero for no limit.
+	 * @return The value of the expression.
+	 * @throws MojoExecutionException if R signalled an error, if the evaluation timed out or if it could not be
+	 *             performed.
+	 */
+	public REXP eval(String expression, long timeout) throws MojoExecutionException;
+
+	@Override
+	public void close();
+}
@@ -0,0 +1,353 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Goal which renders the pkgdown site of the package in the site phase, e.g. with {@code mvn site}.
+ *
+ * Each reference page is named after its Rd file and rendered by the topic in the {@code \name} of the Rd file. It is
+ * keyed by its Rd file, which includes the examples, and by the site configuration, the
+ * templates, the figures and the versions of R and of the packages in the project libraries. Pages whose key is
+ * unchanged since the last run, as recorded under the target directory, are not rendered again; changes to the R code
+ * alone do not re-render the examples, unless {@code R.site.force} is set. The stale pages are rendered by several R
+ * processes with the package installed in a temporary library, or in the R session when a single process is used.
+ * Then home page, reference index, articles and news are updated in the R session, articles only if changed.
+ */
+@Mojo(name = "site", defaultPhase = LifecyclePhase.SITE, threadSafe = true)
+public class RSiteMojo extends AbstractRMojo
+{
+	/**
+	 * R statement loading the site configuration with the destination directory.
+	 */
+	private static final String	SITE			= "pkgdown::as_pkgdown(%s, override = list(destination = %s))";
+	/**
+	 * R program updating the pages other than the topic pages.
+	 */
+	private static final String	FINISH			= "local({\n"
+			+ "  pkg <- " + SITE + "\n"
+			+ "  pkgdown::build_home(pkg, preview = FALSE)\n"
+			+ "  pkgdown::build_reference_index(pkg)\n"
+			+ "  pkgdown::build_articles(pkg, lazy = TRUE, preview = FALSE)\n"
+			+ "  pkgdown::build_news(pkg, preview = FALSE)\n"
+			+ "  pkgdown::build_search(pkg)\n"
+			+ "  invisible()\n"
+			+ "})";
+	/**
+	 * R statement rendering topic pages in the current session, with the package loaded by pkgload.
+	 */
+	private static final String	RENDER			= "pkgdown::build_reference(" + SITE + ", topics = c(%s), examples = %s, devel = TRUE, preview = FALSE)";
+	/**
+	 * R program run by each reference shard, with the package installed in the first library. The shards write the
+	 * reference index too, and the last shard to finish wins: it is written again afterwards.
+	 */
+	private static final String	SHARD_SCRIPT	= ".libPaths(c(%s, .libPaths()))\n"
+			+ "pkgdown::build_reference(" + SITE + ", topics = c(%s), examples = %s, devel = FALSE, preview = FALSE)\n";
+	private static final String	PAGE			= "page.";
+	private static final Pattern	NAME			= Pattern.compile("^\\\\name\\{(.*)\\}\\s*$");
+
+	/**
+	 * Directory where the site is rendered.
+	 */
+	@Parameter(defaultValue = "${project.reporting.outputDirectory}/pkgdown", property = "R.site.directory") File	siteDirectory;
+
+	/**
+	 * Number of R processes rendering the reference pages. With a value less than one, the number of workers is used.
+	 */
+	@Parameter(defaultValue = "0", property = "R.site.shards") int													siteShards;
+
+	/**
+	 * Set it to {@code false} to render the reference pages without running the examples.
+	 */
+	@Parameter(defaultValue = "true", property = "R.site.examples") boolean										runExamples;
+
+	/**
+	 * Set it to {@code true} to render all the reference pages, even if unchanged since the last run.
+	 */
+	@Parameter(defaultValue = "false", property = "R.site.force") boolean											forceSite;
+
+	@Override
+	protected void executeGoal() throws MojoExecutionException
+	{
+		Log log = getLog();
+
+		File sources = new File(project.getBuild().getOutputDirectory());
+		if (!new File(sources, "DESCRIPTION").isFile())
+			throw new MojoExecutionException("DESCRIPTION file does not exists. Remember to use the 'sources' goal.");
+		requirePackage("pkgdown", "2.0.0");
+
+		File reference = new File(siteDirectory, "reference");
+		StatusFile pages = StatusFile.load(getStatusFile("site"));
+		Map<String, String> keys = getPageKeys(sources);
+		Map<String, String> names = getTopicNames(sources, keys.keySet());
+		List<String> stale = new ArrayList<>();
+		try
+		{
+			// Pages of removed topics
+			for (String topic : pages.keys(PAGE))
+				if (!keys.containsKey(topic))
+				{
+					Files.deleteIfExists(new File(reference, topic + ".html").toPath());
+					pages.remove(PAGE + topic);
+				}
+			pages.save();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot remove stale reference pages: " + e.getMessage(), e);
+		}
+
+		for (Map.Entry<String, String> page : keys.entrySet())
+			if (forceSite || !page.getValue().equals(pages.get(PAGE + page.getKey())) || !new File(reference, page.getKey() + ".html").isFile())
+				stale.add(page.getKey());
+		log.info((keys.size() - stale.size()) + " of " + keys.size() + " reference pages are up to date.");
+		try
+		{
+			// A page found after rendering is then known to be rendered
+			for (String page : stale)
+				Files.deleteIfExists(new File(reference, page + ".html").toPath());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot remove stale reference pages: " + e.getMessage(), e);
+		}
+
+		String source = RScript.quote(sources.getAbsolutePath());
+		String destination = RScript.quote(siteDirectory.getAbsolutePath());
+		String examples = runExamples ? "TRUE" : "FALSE";
+		int shards = Math.min(siteShards < 1 ? getParallelism() : siteShards, stale.size());
+		try (RSession session = openSession())
+		{
+			tryCatch(session, withProjectLibraries("pkgdown::init_site(" + String.format(SITE, source, destination) + ")"));
+
+			List<String> errors = new ArrayList<>();
+			if (shards > 1)
+				errors.addAll(renderShards(stale, names, shards, sources, pages, keys));
+			else if (!stale.isEmpty())
+			{
+				log.info("Rendering " + stale.size() + " reference pages...");
+				tryCatch(session, withProjectLibraries(String.format(RENDER, source, destination, topics(stale, names), examples)));
+				errors.addAll(recordPages(stale, pages, keys));
+			}
+			savePages(pages);
+
+			for (String error : errors)
+				for (String line : RResults.lines(error))
+					log.error("        " + line);
+			if (errors.size() > 0)
+				throw new MojoExecutionException("Rendering the reference pages resulted in errors.");
+
+			log.info("Updating home page, reference index, articles and news...");
+			tryCatch(session, withProjectLibraries(String.format(FINISH, source, destination)));
+		}
+
+		log.info("Site rendered in " + siteDirectory + ".");
+	}
+
+	/**
+	 * Installs the package in a temporary library and renders the reference pages in several R processes. The pages of
+	 * the shards that complete are recorded as up to date.
+	 *
+	 * @return The failures of the shards.
+	 */
+	private List<String> renderShards(List<String> stale, Map<String, String> names, int shards, final File sources, StatusFile pages,
+			Map<String, String> keys)
+			throws MojoExecutionException
+	{
+		Log log = getLog();
+		File results = new File(project.getBuild().getDirectory(), "site-shards");
+		File library = new File(results, "library");
+		try
+		{
+			FileTree.delete(results);
+			library.mkdirs();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot prepare site shards: " + e.getMessage(), e);
+		}
+
+		StringBuilder libraries = new StringBuilder(RScript.quote(library.getAbsolutePath()));
+		for (File projectLibrary : getProjectLibraries())
+			libraries.append(", ").append(RScript.quote(projectLibrary.getAbsolutePath()));
+
+		log.info("Rendering " + stale.size() + " reference pages in " + shards + " R processes...");
+		if (getRScript().run(sources, String.format(RBuildMojo.INSTALL_SCRIPT, RScript.quote(project.getArtifactId()), RScript.quote(sources.getAbsolutePath()),
+				libraries), log) != 0)
+			throw new MojoExecutionException("Cannot install package " + project.getArtifactId() + " to render the site.");
+
+		final RScript rscript = getRScript(shards);
+		ExecutorService executor = Executors.newFixedThreadPool(shards);
+		Map<List<String>, Future<Integer>> statuses = new LinkedHashMap<>();
+		for (int shard = 0; shard < shards; shard++)
+		{
+			List<String> topics = new ArrayList<>();
+			for (int i = shard; i < stale.size(); i += shards)
+				topics.add(stale.get(i));
+
+			final String code = String.format(SHARD_SCRIPT, libraries, RScript.quote(sources.getAbsolutePath()), RScript.quote(siteDirectory.getAbsolutePath()),
+					topics(topics, names), runExamples ? "TRUE" : "FALSE");
+			final RScript shardScript = rscript.shard(shard + 1);
+			statuses.put(topics, executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception
+				{
+					return shardScript.run(sources, code, getLog());
+				}
+			}));
+		}
+		executor.shutdown();
+
+		List<String> errors = new ArrayList<>();
+		try
+		{
+			int shard = 0;
+			for (Map.Entry<List<String>, Future<Integer>> status : statuses.entrySet())
+			{
+				shard++;
+				int exitStatus = status.getValue().get();
+				if (exitStatus != 0)
+					errors.add("Site shard " + shard + " terminated with exit status " + exitStatus + " rendering " + status.getKey());
+				else
+					errors.addAll(recordPages(status.getKey(), pages, keys));
+			}
+		}
+		catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while rendering the site.", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+		}
+		return errors;
+	}
+
+	/**
+	 * @return The key of each reference page, by topic: the Rd file, the site configuration, templates and figures, the
+	 *         examples option and the versions of R and of the packages in the project libraries.
+	 */
+	private Map<String, String> getPageKeys(File sources) throws MojoExecutionException
+	{
+		Map<String, String> keys = new TreeMap<>();
+		try
+		{
+			RInstallation installation = getInstallation();
+			Fingerprint site = new Fingerprint().add(installation.getVersion()).add(installation.getPackageVersion("pkgdown")).add(runExamples)
+					.addTree(new File(sources, "pkgdown")).addTree(new File(sources, "man" + File.separator + "figures"))
+					.addFile(new File(sources, "DESCRIPTION"));
+			for (String config : new String[] { "_pkgdown.yml", "_pkgdown.yaml" })
+				if (new File(sources, config).isFile())
+					site.add(config).addFile(new File(sources, config));
+
+			Map<String, String> versions = new TreeMap<>();
+			for (LibraryInventory.InstalledPackage installed : LibraryInventory.load(getProjectLibraries(), new File(cacheDirectory, "inventory")).getPackages())
+				versions.put(installed.name, installed.version);
+			String siteKey = site.add(versions).toString();
+
+			for (Map.Entry<String, File> rd : FileTree.list(new File(sources, "man")).entrySet())
+				if (rd.getKey().matches("[^/]*\\.Rd"))
+					keys.put(rd.getKey().substring(0, rd.getKey().length() - 3), new Fingerprint().add(siteKey).addFile(rd.getValue()).toString());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read package sources: " + e.getMessage(), e);
+		}
+		return keys;
+	}
+
+	/**
+	 * @param sources The package directory.
+	 * @param pages The names of the reference pages.
+	 * @return The topic of each reference page, from the {@code \name} of its Rd file, or the page name if missing.
+	 */
+	private static Map<String, String> getTopicNames(File sources, Iterable<String> pages) throws MojoExecutionException
+	{
+		Map<String, String> names = new TreeMap<>();
+		for (String page : pages)
+		{
+			File rd = new File(sources, "man" + File.separator + page + ".Rd");
+			String name = page;
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(rd), Charset.forName("UTF-8"))))
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					Matcher matcher = NAME.matcher(line.trim());
+					if (matcher.matches())
+					{
+						name = matcher.group(1).replaceAll("\\\\([%{}\\\\])", "$1");
+						break;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				throw new MojoExecutionException("Cannot read " + rd + ": " + e.getMessage(), e);
+			}
+			names.put(page, name);
+		}
+		return names;
+	}
+
+	/**
+	 * Records as up to date the rendered pages.
+	 *
+	 * @return The pages that were not rendered.
+	 */
+	private List<String> recordPages(List<String> rendered, StatusFile pages, Map<String, String> keys)
+	{
+		List<String> missing = new ArrayList<>();
+		for (String page : rendered)
+			if (new File(siteDirectory, "reference" + File.separator + page + ".html").isFile())
+				pages.put(PAGE + page, keys.get(page));
+			else
+				missing.add("Reference page " + page + ".html was not rendered.");
+		return missing;
+	}
+
+	private void savePages(StatusFile pages) throws MojoExecutionException
+	{
+		try
+		{
+			pages.save();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot save site status: " + e.getMessage(), e);
+		}
+	}
+
+	private static String topics(List<String> pages, Map<String, String> names)
+	{
+		StringBuilder topics = new StringBuilder();
+		for (String page : pages)
+			topics.append(topics.length() > 0 ? ", " : "").append(RScript.quote(names.get(page)));
+		return topics.toString();
+	}
+}
@@ -1,23 +1,31 @@
 package it.bancaditalia.oss;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.maven.model.Developer;
 import org.apache.maven.model.License;
 import org.apache.maven.model.Resource;
+import org.apache.maven.model.io.xpp3.MavenXpp3Writer;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Component;
@@ -35,11 +43,15 @@ import org.codehaus.plexus.util.ReaderFactory;
 /**
  * <p>Goal that prepares R sources. Standard location for R package sources is inside src/main/R.</p>
  * 
+ * <p>The goal is incremental: a manifest of the source contents and of the filtering settings is kept under the build
+ * directory, and only the sources that changed since the last build are copied again. Output files of removed sources
+ * are deleted, while untouched outputs are left alone, timestamps included.</p>
+ * 
  * <p>This class uses code extracted from <a href="https://maven.apache.org/plugins/maven-resources-plugin/">Maven Resources Plugin</a>.</p>
  * 
  * <p>Maven Resources Plugin is licensed under the <a href="http://www.apache.org/licenses/">Apache License</a>.</p>
  */
-@Mojo(name = "sources", defaultPhase = LifecyclePhase.PROCESS_SOURCES)
+@Mojo(name = "sources", defaultPhase = LifecyclePhase.PROCESS_SOURCES, threadSafe = true)
 public class RSourcesMojo extends AbstractRMojo
 {
 	/**
@@ -186,8 +198,11 @@ public class RSourcesMojo extends AbstractRMojo
 	 */
 	@Parameter(property = "R.sources.skip", defaultValue = "false") private boolean							skip;
 
+	private static final String																				SETTINGS					= "settings";
+	private static final String																				FILE						= "file.";
+
 	@Override
-	public void execute() throws MojoExecutionException
+	protected void executeGoal() throws MojoExecutionException
 	{
 		Log log = getLog();
 
@@ -197,19 +212,10 @@ public class RSourcesMojo extends AbstractRMojo
 			return;
 		}
 
-		log.info("Copying R sources...");
-
 		Resource sourceResourceDirectory = new Resource();
-		String sourceDirectory = project.getBuild().getSourceDirectory();
-
-		if (sourceDirectory == null || sourceDirectory.matches("(.*/)?src/main/java"))
-			sourceResourceDirectory.setDirectory(new File(project.getBasedir(), "src/main/R").getAbsolutePath());
-		else
-			sourceResourceDirectory.setDirectory(sourceDirectory);
+		sourceResourceDirectory.setDirectory(getSourceDirectory().getAbsolutePath());
 		sourceResourceDirectory.setFiltering(filterSources);
 
-		List<Resource> resources = Collections.singletonList(sourceResourceDirectory);
-
 		if (StringUtils.isEmpty(encoding))
 		{
 			getLog().warn("File encoding has not been set, using platform encoding " + ReaderFactory.FILE_ENCODING + ", i.e. build is platform dependent!");
@@ -220,6 +226,58 @@ public class RSourcesMojo extends AbstractRMojo
 
 		try
 		{
+			// Find out which sources changed since last build
+			StatusFile manifest = StatusFile.load(getStatusFile("sources"));
+			String settings = getSettingsFingerprint();
+			boolean full = fileNameFiltering || !settings.equals(manifest.get(SETTINGS));
+			Set<String> removed = manifest.keys(FILE);
+			if (full)
+			{
+				manifest.clear();
+				manifest.put(SETTINGS, settings);
+			}
+
+			File sourceDir = new File(sourceResourceDirectory.getDirectory());
+			List<String> changed = new ArrayList<>();
+			for (Entry<String, File> source : FileTree.list(sourceDir).entrySet())
+			{
+				String path = source.getKey();
+				File file = source.getValue();
+				removed.remove(path);
+
+				// Avoid hashing files whose size and timestamp did not change
+				String stamp = file.length() + " " + file.lastModified();
+				String recorded[] = StringUtils.split(StringUtils.defaultString(manifest.get(FILE + path)), " ", 2);
+				String hash = recorded.length == 2 && stamp.equals(recorded[1]) ? recorded[0] : Fingerprint.of(file);
+				if (full || recorded.length < 2 || !hash.equals(recorded[0]) || !new File(outputDirectory, path).exists())
+					changed.add(path);
+				manifest.put(FILE + path, hash + " " + stamp);
+			}
+
+			for (String path : removed)
+			{
+				log.debug("Removing " + path);
+				new File(outputDirectory, path).delete();
+				manifest.remove(FILE + path);
+			}
+
+			if (changed.isEmpty() && !full)
+			{
+				log.info("R sources are up to date.");
+				manifest.save();
+				return;
+			}
+			else if (full)
+				log.info("Copying R sources...");
+			else
+			{
+				log.info("Copying " + changed.size() + " changed R source files...");
+				sourceResourceDirectory.setIncludes(changed);
+				createDirectories(sourceDir, outputDirectory);
+			}
+
+			List<Resource> resources = Collections.singletonList(sourceResourceDirectory);
+
 			MavenResourcesExecution mavenResourcesExecution = new MavenResourcesExecution(resources, getOutputDirectory(), project, encoding,
 					getCombinedFiltersList(), Collections.<String>emptyList(), session);
 
@@ -248,47 +306,12 @@ public class RSourcesMojo extends AbstractRMojo
 			executeUserFilterComponents(mavenResourcesExecution);
 
 			File description = new File(outputDirectory, "DESCRIPTION");
-			if (description.canRead())
+			if (description.canRead() && (full || changed.contains("DESCRIPTION")))
 			{
-				if (description.length() > 100000)
-					throw new MojoExecutionException("DESCRIPTION file is too big.");
-
-				// This will patch DESCRIPTION file to use pom values.
-				List<String> lines = new LinkedList<>();
-				try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(description), encoding)))
-				{
-					String line;
-
-					while ((line = reader.readLine()) != null)
-					{
-						if (line.startsWith("Version:"))
-							line = "Version: " + checkRPackageVersion();
-						else if (line.startsWith("License:"))
-						{
-							line = "License:";
-							for (License license: project.getLicenses())
-								line += " " + license.getName();
-						}
-						else if (line.startsWith("Author:"))
-						{
-							line = "Author:";
-							for (Developer dev: project.getDevelopers())
-								line += " " + dev.getName();
-						}
-						else if (line.startsWith("Maintainer:") && project.getDevelopers().size() > 0)
-							line = "Maintainer: " + project.getDevelopers().get(0).getName() + " <" + project.getDevelopers().get(0).getEmail() + ">";
-
-						lines.add(line);
-					}
-				}
-
-				try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(description), encoding)))
-				{
-					// Fix Windows paths
-					for (String line : lines)
-						writer.println(line.replaceAll("\\\\", "\\\\"));
-				}
+				patchDescription(description);
 			}
+
+			manifest.save();
 		}
 		catch (MavenFilteringException | IOException e)
 		{
@@ -296,6 +319,114 @@ public class RSourcesMojo extends AbstractRMojo
 		}
 	}
 
+	/**
+	 * Patches DESCRIPTION to use the version, licenses and developers of the project. The file is streamed field by
+	 * field, and the fields that are not patched are written back unchanged.
+	 * 
+	 * @param description The DESCRIPTION file.
+	 * @throws MojoExecutionException if the project version is not valid.
+	 * @throws IOException if the file cannot be read or written.
+	 */
+	void patchDescription(File description) throws MojoExecutionException, IOException
+	{
+		Map<String, String> patches = new HashMap<>();
+		patches.put("Version", checkRPackageVersion());
+
+		StringBuilder licenses = new StringBuilder();
+		for (License license : project.getLicenses())
+			licenses.append(licenses.length() > 0 ? " " : "").append(license.getName());
+		patches.put("License", licenses.toString());
+
+		StringBuilder authors = new StringBuilder();
+		for (Developer dev : project.getDevelopers())
+			authors.append(authors.length() > 0 ? " " : "").append(dev.getName());
+		patches.put("Author", authors.toString());
+
+		if (project.getDevelopers().size() > 0)
+			patches.put("Maintainer", project.getDevelopers().get(0).getName() + " <" + project.getDevelopers().get(0).getEmail() + ">");
+
+		// This will patch DESCRIPTION file to use pom values.
+		File patched = new File(description.getParentFile(), description.getName() + ".tmp");
+		try (DcfReader reader = new DcfReader(new InputStreamReader(new FileInputStream(description), encoding));
+				DcfWriter writer = new DcfWriter(new OutputStreamWriter(new FileOutputStream(patched), encoding)))
+		{
+			DcfField field;
+			while ((field = reader.readField()) != null)
+				writer.write(patches.containsKey(field.getName()) ? new DcfField(field.getName(), patches.get(field.getName())) : field);
+		}
+		catch (IOException e)
+		{
+			patched.delete();
+			throw new IOException("Cannot patch " + description + ": " + e.getMessage(), e);
+		}
+
+		Files.move(patched.toPath(), description.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Computes a fingerprint of everything, other than the sources themselves, that affects the copied files: filtering
+	 * settings, filter property values and the project metadata patched into DESCRIPTION. When filtering is on, the
+	 * system properties, the environment and the whole project model are included too, as any of them may be
+	 * interpolated.
+	 * 
+	 * @return The fingerprint.
+	 * @throws IOException if a filters file cannot be read.
+	 */
+	protected String getSettingsFingerprint() throws IOException
+	{
+		Fingerprint fingerprint = new Fingerprint().add(project.getVersion()).add(encoding).add(filterSources).add(escapeString)
+				.add(escapeWindowsPaths).add(delimiters).add(useDefaultDelimiters).add(nonFilteredFileExtensions).add(supportMultiLineFiltering)
+				.add(mavenFilteringHints);
+
+		List<String> combinedFilters = getCombinedFiltersList();
+		if (combinedFilters != null)
+			for (String filter : combinedFilters)
+			{
+				File filterFile = new File(filter);
+				fingerprint.add(filter).addFile(filterFile.isAbsolute() ? filterFile : new File(project.getBasedir(), filter));
+			}
+
+		for (Properties properties : Arrays.asList(project.getProperties(), session.getUserProperties()))
+			for (String key : new TreeSet<>(properties.stringPropertyNames()))
+				fingerprint.add(key).add(properties.getProperty(key));
+
+		for (License license : project.getLicenses())
+			fingerprint.add(license.getName());
+		for (Developer dev : project.getDevelopers())
+			fingerprint.add(dev.getName()).add(dev.getEmail());
+
+		if (filterSources)
+		{
+			// The system properties of the session include the environment as env.* properties
+			Properties system = session.getSystemProperties();
+			for (String key : new TreeSet<>(system.stringPropertyNames()))
+				fingerprint.add(key).add(system.getProperty(key));
+
+			StringWriter model = new StringWriter();
+			new MavenXpp3Writer().write(model, project.getModel());
+			fingerprint.add(model.toString());
+		}
+
+		return fingerprint.toString();
+	}
+
+	/**
+	 * Mirrors the directory structure of the sources, so that empty directories are created also when copying only
+	 * the changed files.
+	 */
+	private static void createDirectories(File sourceDir, File outputDir)
+	{
+		File children[] = sourceDir.listFiles();
+		if (children != null)
+			for (File child : children)
+				if (child.isDirectory())
+				{
+					File target = new File(outputDir, child.getName());
+					target.mkdirs();
+					createDirectories(child, target);
+				}
+	}
+
 	/**
 	 * @param mavenResourcesExecution {@link MavenResourcesExecution}
 	 * @throws MojoExecutionException in case of wrong lookup.
@@ -360,6 +491,19 @@ public class RSourcesMojo extends AbstractRMojo
 		}
 	}
 
+	/**
+	 * @return The directory of the R sources: the source directory of the project, or src/main/R if it is the default
+	 *         Java one.
+	 */
+	protected File getSourceDirectory()
+	{
+		String sourceDirectory = project.getBuild().getSourceDirectory();
+		if (sourceDirectory == null || sourceDirectory.matches("(.*/)?src/main/java"))
+			return new File(project.getBasedir(), "src/main/R");
+		else
+			return new File(sourceDirectory);
+	}
+
 	/**
 	 * @return {@link #outputDirectory}
 	 */
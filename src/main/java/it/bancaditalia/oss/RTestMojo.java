@@ -0,0 +1,273 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Goal which runs the testthat tests of the package, without building it.
+ *
+ * The test files in tests/testthat are split among several R processes, each loading the package sources with
+ * pkgload. Files are assigned to the processes by their durations in the previous run, longest first, so that the
+ * processes finish at about the same time. A JUnit XML report is written for each test file in the reports directory,
+ * with the same naming of the Surefire plugin.
+ */
+@Mojo(name = "test", defaultPhase = LifecyclePhase.TEST, threadSafe = true)
+public class RTestMojo extends AbstractRMojo
+{
+	/**
+	 * R program run by each test shard. For each test file, the elapsed time and the failures are written to files
+	 * named after the test file.
+	 */
+	private static final String	SHARD_SCRIPT	= "pkg <- %s; src <- %s; out <- %s\n"
+			+ ".libPaths(c(%s, .libPaths()))\n"
+			+ "suppressPackageStartupMessages(pkgload::load_all(src, export_all = TRUE, helpers = FALSE, quiet = TRUE))\n"
+			+ "files <- c(%s); reports <- c(%s)\n"
+			+ "for (i in seq_along(files)) {\n"
+			+ "  name <- basename(files[i])\n"
+			+ "  started <- proc.time()[['elapsed']]\n"
+			+ "  res <- tryCatch(as.data.frame(testthat::test_file(files[i], reporter = testthat::JunitReporter$new(file = reports[i]),\n"
+			+ "      package = pkg, load_package = 'none')), error = function(e) conditionMessage(e))\n"
+			+ "  writeLines(format(proc.time()[['elapsed']] - started), file.path(out, paste0(name, '.time')))\n"
+			+ "  if (is.character(res)) writeLines(res, file.path(out, paste0(name, '.err')))\n"
+			+ "  else if (any(bad <- res$failed > 0 | res$error)) writeLines(paste('Failed test:', res$test[bad]), file.path(out, paste0(name, '.err')))\n"
+			+ "}\n";
+	private static final String	TIME			= "time.";
+
+	/**
+	 * Number of R processes running the tests. With a value less than one, the number of workers is used.
+	 */
+	@Parameter(defaultValue = "0", property = "R.test.shards") int			testShards;
+
+	/**
+	 * Directory where the JUnit XML reports are written.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/surefire-reports", property = "R.test.reportsDirectory") File	reportsDirectory;
+
+	/**
+	 * Set it to {@code true} to skip the tests, as with the Surefire plugin.
+	 */
+	@Parameter(defaultValue = "false", property = "skipTests") boolean		skipTests;
+
+	/**
+	 * Set it to {@code true} to skip the tests, as with {@code maven.test.skip} in the Surefire plugin.
+	 */
+	@Parameter(defaultValue = "false", property = "maven.test.skip") boolean	skip;
+
+	@Override
+	protected void executeGoal() throws MojoExecutionException
+	{
+		Log log = getLog();
+
+		if (skipTests || skip)
+		{
+			log.info("Tests are skipped.");
+			return;
+		}
+
+		final File sources = new File(project.getBuild().getOutputDirectory());
+		File testthat = new File(sources, "tests" + File.separator + "testthat");
+		List<File> tests = listTests(testthat);
+		if (tests.isEmpty())
+		{
+			log.info("No tests to run.");
+			return;
+		}
+
+		requirePackage("testthat", "3.0.0");
+		String packageName = project.getArtifactId();
+		File results = new File(project.getBuild().getDirectory(), "test-shards");
+		try
+		{
+			FileTree.delete(results);
+			results.mkdirs();
+			reportsDirectory.mkdirs();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot prepare test shards: " + e.getMessage(), e);
+		}
+
+		StatusFile timings = StatusFile.load(getStatusFile("test"));
+		List<List<File>> shards = balance(tests, timings, testShards < 1 ? getParallelism() : testShards);
+		log.info("Running " + tests.size() + " test files in " + shards.size() + " R processes...");
+
+		StringBuilder libraries = new StringBuilder();
+		for (File library : getProjectLibraries())
+			libraries.append(libraries.length() > 0 ? ", " : "").append(RScript.quote(library.getAbsolutePath()));
+
+		final RScript rscript = getRScript(shards.size());
+		ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+		List<Future<Integer>> statuses = new ArrayList<>();
+		for (List<File> shard : shards)
+		{
+			StringBuilder files = new StringBuilder();
+			StringBuilder reports = new StringBuilder();
+			for (File test : shard)
+			{
+				files.append(files.length() > 0 ? ", " : "").append(RScript.quote(test.getAbsolutePath()));
+				reports.append(reports.length() > 0 ? ", " : "").append(RScript.quote(getReport(packageName, test).getAbsolutePath()));
+			}
+
+			final String code = String.format(SHARD_SCRIPT, RScript.quote(packageName), RScript.quote(sources.getAbsolutePath()),
+					RScript.quote(results.getAbsolutePath()), libraries.length() > 0 ? libraries : "character()", files, reports);
+			final RScript shardScript = rscript.shard(statuses.size() + 1);
+			statuses.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception
+				{
+					return shardScript.run(sources, code, getLog());
+				}
+			}));
+		}
+		executor.shutdown();
+
+		List<String> errors = new ArrayList<>();
+		try
+		{
+			for (int shard = 0; shard < statuses.size(); shard++)
+			{
+				int status = statuses.get(shard).get();
+				if (status != 0)
+					errors.add("Test shard " + (shard + 1) + " terminated with exit status " + status);
+			}
+
+			for (File test : tests)
+			{
+				File time = new File(results, test.getName() + ".time");
+				if (time.isFile())
+					timings.put(TIME + test.getName(), new String(Files.readAllBytes(time.toPath()), "UTF-8").trim());
+				File failure = new File(results, test.getName() + ".err");
+				if (failure.isFile())
+					errors.add(test.getName() + ":\n" + new String(Files.readAllBytes(failure.toPath()), "UTF-8").trim());
+			}
+			timings.save();
+		}
+		catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while testing R package.", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read test results: " + e.getMessage(), e);
+		}
+
+		log.info("Tests completed.");
+		for (String error : errors)
+			for (String line : RResults.lines(error))
+				log.error("        " + line);
+
+		if (errors.size() > 0)
+			throw new MojoExecutionException("There are test failures. See " + reportsDirectory + " for the individual test results.");
+	}
+
+	/**
+	 * Splits the test files among the shards, assigning the longest files first to the least loaded shard. Files
+	 * without a previous timing are assumed to last as the average file.
+	 *
+	 * @param tests The test files.
+	 * @param timings The status of the test goal, with the durations of the previous run.
+	 * @param count The maximum number of shards.
+	 * @return The test files of each shard.
+	 */
+	static List<List<File>> balance(List<File> tests, StatusFile timings, int count)
+	{
+		final Map<File, Double> durations = new HashMap<>();
+		double total = 0;
+		int known = 0;
+		for (File test : tests)
+			try
+			{
+				String time = timings.get(TIME + test.getName());
+				if (time != null)
+				{
+					durations.put(test, Double.valueOf(time));
+					total += durations.get(test);
+					known++;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				// timing discarded
+			}
+		for (File test : tests)
+			if (!durations.containsKey(test))
+				durations.put(test, known > 0 ? total / known : 1.0);
+
+		List<File> sorted = new ArrayList<>(tests);
+		Collections.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b)
+			{
+				return durations.get(b).compareTo(durations.get(a));
+			}
+		});
+
+		int size = Math.max(1, Math.min(count, tests.size()));
+		List<List<File>> shards = new ArrayList<>();
+		double loads[] = new double[size];
+		for (int i = 0; i < size; i++)
+			shards.add(new ArrayList<File>());
+		for (File test : sorted)
+		{
+			int lightest = 0;
+			for (int i = 1; i < size; i++)
+				if (loads[i] < loads[lightest])
+					lightest = i;
+			shards.get(lightest).add(test);
+			loads[lightest] += durations.get(test);
+		}
+
+		return shards;
+	}
+
+	private File getReport(String packageName, File test)
+	{
+		String name = test.getName();
+		return new File(reportsDirectory, "TEST-" + packageName + "." + name.substring(0, name.lastIndexOf('.')) + ".xml");
+	}
+
+	/**
+	 * @param dir The tests/testthat directory.
+	 * @return The sorted testthat test files.
+	 */
+	static List<File> listTests(File dir)
+	{
+		File files[] = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file)
+			{
+				return file.isFile() && file.getName().matches("test.*\\.[rR]");
+			}
+		});
+
+		List<File> list = files == null ? new ArrayList<File>() : new ArrayList<>(Arrays.asList(files));
+		Collections.sort(list);
+		return list;
+	}
+}
@@ -1,15 +1,22 @@
 package it.bancaditalia.oss;
 
 import java.io.File;
-import java.util.Vector;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.rosuda.JRI.REXP;
-import org.rosuda.JRI.Rengine;
 
 /**
  * <p>
@@ -20,19 +27,41 @@ import org.rosuda.JRI.Rengine;
  * Compliance requires passing tests enumerated in
  * <a href="https://cran.r-project.org/doc/manuals/r-devel/R-exts.html#The-DESCRIPTION-file">official documentation</a>
  * </p>
+ * 
+ * <p>
+ * The most common checks (syntax, required fields, package name and version, maintainer address and dependency
+ * lists) are done in Java, so that broken metadata is reported without starting R. The complete checks of R follow,
+ * unless disabled.
+ * </p>
  */
-@Mojo(name = "validate", defaultPhase = LifecyclePhase.PREPARE_PACKAGE)
+@Mojo(name = "validate", defaultPhase = LifecyclePhase.PREPARE_PACKAGE, threadSafe = true)
 public class RValidate extends AbstractRMojo
 {
 	/**
 	 * You can skip the execution of the plugin if you need to. Its use is NOT RECOMMENDED, but quite convenient on
 	 * occasion.
 	 */
-	@Parameter(property = "R.validate.skip", defaultValue = "false") private boolean skip;
+	@Parameter(property = "R.validate.skip", defaultValue = "false") private boolean			skip;
+
+	/**
+	 * Set it to {@code false} to validate the metadata only with the checks done in Java, without starting R.
+	 */
+	@Parameter(property = "R.validate.withR", defaultValue = "true") private boolean		checkWithR;
+
+	/**
+	 * The encoding of the DESCRIPTION file.
+	 */
+	@Parameter(defaultValue = "${project.build.sourceEncoding}") private String				encoding;
+
+	private static final List<String>	REQUIRED_FIELDS		= Arrays.asList("Package", "Version", "License", "Description", "Title");
+	private static final List<String>	DEPENDENCY_FIELDS	= Arrays.asList("Depends", "Imports", "LinkingTo", "Suggests", "Enhances");
+	private static final Pattern		PACKAGE_NAME		= Pattern.compile("[a-zA-Z][a-zA-Z0-9.]*[a-zA-Z0-9]");
+	private static final Pattern		PACKAGE_VERSION		= Pattern.compile("([0-9]+[.-])+[0-9]+");
+	private static final Pattern		MAINTAINER			= Pattern.compile(".*\\S.*<[^>@\\s]+@[^>\\s]+>\\s*");
+	private static final Pattern		DEPENDENCY			= Pattern.compile("[a-zA-Z][a-zA-Z0-9.]*(\\s*\\(\\s*(>=|<=|>|<|==|!=)\\s*[0-9][0-9.-]*\\s*\\))?");
 
-	@SuppressWarnings("unchecked")
 	@Override
-	public void execute() throws MojoExecutionException
+	protected void executeGoal() throws MojoExecutionException
 	{
 		Log log = getLog();
 
@@ -50,20 +79,85 @@ public class RValidate extends AbstractRMojo
 			throw new MojoExecutionException("DESCRIPTION file does not exists.");
 		}
 
-		Rengine engine = getEngine();
+		List<String> problems = checkDescription(description, encoding);
+		for (String problem : problems)
+			log.error(problem);
+		if (!problems.isEmpty())
+			throw new MojoExecutionException("Project metadata contains errors.");
+
+		if (checkWithR)
+			try (RSession session = openSession())
+			{
+				String statement = "tools:::.check_package_description('" + description.toString().replaceAll("\\\\", "\\\\") + "')";
+				log.debug("Executing R statement: " + statement);
+				List<String> rProblems = RResults.problems(tryCatch(session, statement));
+				for (String problem : rProblems)
+					log.error(problem);
+				if (!rProblems.isEmpty())
+					throw new MojoExecutionException("Project metadata contains errors.");
+			}
 		
-		synchronized (engine)
+		log.info("Validation complete.");
+	}
+
+	/**
+	 * Checks the contents of DESCRIPTION in Java.
+	 * 
+	 * @param description The DESCRIPTION file.
+	 * @param encoding The encoding of the DESCRIPTION file, or null for the platform encoding.
+	 * @return The problems found.
+	 */
+	static List<String> checkDescription(File description, String encoding)
+	{
+		List<String> problems = new ArrayList<>();
+		Map<String, DcfField> fields = new LinkedHashMap<>();
+		Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+		try (DcfReader reader = new DcfReader(new InputStreamReader(new FileInputStream(description), charset)))
 		{
-			String statement = "tools:::.check_package_description('" + description.toString().replaceAll("\\\\", "\\\\") + "')";
-			log.debug("Executing R statement: " + statement);
-			REXP result = tryCatch(statement);
-			for (REXP elem : (Vector<REXP>) result.asVector())
-				log.error(elem.asString());
-			if (result.asVector().size() > 0)
-				throw new MojoExecutionException("Project metadata contains errors.");
+			DcfField field;
+			while ((field = reader.readField()) != null)
+				if (fields.put(field.getName(), field) != null)
+					problems.add("Duplicated field in DESCRIPTION: '" + field.getName() + "'");
 		}
-		
-		log.info("Validation complete.");
+		catch (IOException e)
+		{
+			problems.add("Malformed DESCRIPTION file: " + e.getMessage());
+			return problems;
+		}
+
+		List<String> required = new ArrayList<>(REQUIRED_FIELDS);
+		if (!fields.containsKey("Authors@R"))
+			required.addAll(Arrays.asList("Author", "Maintainer"));
+		StringBuilder missing = new StringBuilder();
+		for (String name : required)
+			if (!fields.containsKey(name) || fields.get(name).getText().isEmpty())
+				missing.append(" '").append(name).append("'");
+		if (missing.length() > 0)
+			problems.add("Required fields missing or empty:" + missing);
+
+		String value = text(fields, "Package");
+		if (value != null && !PACKAGE_NAME.matcher(value).matches())
+			problems.add("Malformed package name: '" + value + "'");
+		value = text(fields, "Version");
+		if (value != null && !PACKAGE_VERSION.matcher(value).matches())
+			problems.add("Malformed package version: '" + value + "'");
+		value = text(fields, "Maintainer");
+		if (value != null && !fields.containsKey("Authors@R") && !MAINTAINER.matcher(value).matches())
+			problems.add("Malformed maintainer field: '" + value + "'");
+
+		for (String name : DEPENDENCY_FIELDS)
+			if ((value = text(fields, name)) != null)
+				for (String entry : value.split(","))
+					if (!entry.trim().isEmpty() && !DEPENDENCY.matcher(entry.trim()).matches())
+						problems.add("Malformed " + name + " entry: '" + entry.trim() + "'");
+
+		return problems;
+	}
+
+	private static String text(Map<String, DcfField> fields, String name)
+	{
+		DcfField field = fields.get(name);
+		return field == null || field.getText().isEmpty() ? null : field.getText();
 	}
 
 	/**
@@ -0,0 +1,271 @@
+package it.bancaditalia.oss;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.rosuda.JRI.REXP;
+
+/**
+ * Goal which watches the R sources and keeps the package loaded in a single R session, e.g. with {@code mvn r:watch}.
+ *
+ * Changes are collected until the sources are quiet for the debounce time. The changed files are then copied and
+ * filtered as by the sources goal, the documentation is updated if the roxygen blocks or signatures of any R file
+ * changed, as tracked by the document goal, the package is reloaded with pkgload and the tests related to the changed
+ * files are run. The tests related to R/name.R are tests/testthat/test-name.R and tests/testthat/test_name.R. Errors
+ * are logged and watching goes on, until Maven is stopped with Ctrl-C.
+ */
+@Mojo(name = "watch", threadSafe = true)
+public class RWatchMojo extends RSourcesMojo
+{
+	/**
+	 * R statement running test files in the loaded package. The names of the failed tests are returned.
+	 */
+	private static final String	RUN_TESTS	= "local({\n"
+			+ "  res <- lapply(c(%s), function(file) as.data.frame(testthat::test_file(file, reporter = 'summary', package = %s, load_package = 'none')))\n"
+			+ "  res <- do.call(rbind, res)\n"
+			+ "  as.character(paste0('Failed test: ', res$file, ': ', res$test)[res$failed > 0 | res$error])\n"
+			+ "})";
+
+	/**
+	 * Milliseconds without changes after which the changed sources are processed.
+	 */
+	@Parameter(defaultValue = "200", property = "R.watch.debounce") int		debounce;
+
+	/**
+	 * Set it to {@code false} to only reload the package on changes, without running the related tests.
+	 */
+	@Parameter(defaultValue = "true", property = "R.watch.tests") boolean	watchTests;
+
+	/**
+	 * Set it to {@code true} to update the documentation when any code of an R file changed, not only its roxygen
+	 * blocks and signatures.
+	 */
+	@Parameter(defaultValue = "false", property = "R.document.wholeFiles") boolean	wholeFiles;
+
+	private final Map<WatchKey, Path>	directories	= new HashMap<>();
+	private final Map<String, String>	topics		= new HashMap<>();
+
+	@Override
+	protected void executeGoal() throws MojoExecutionException
+	{
+		Log log = getLog();
+
+		Path root = getSourceDirectory().toPath();
+		File packageDir = new File(project.getBuild().getOutputDirectory());
+		try (WatchService watcher = FileSystems.getDefault().newWatchService(); RSession session = openSession())
+		{
+			register(watcher, root);
+			super.executeGoal();
+			updateTopics(packageDir);
+			document(session, packageDir);
+			if (watchTests && new File(packageDir, "tests" + File.separator + "testthat").isDirectory())
+				requirePackage("testthat", "3.0.0");
+
+			while (true)
+			{
+				log.info("Watching " + root + " for changes, press Ctrl-C to stop.");
+				Set<String> changed = await(watcher, root);
+				long start = System.currentTimeMillis();
+				log.debug("Changed: " + changed);
+				try
+				{
+					super.executeGoal();
+					boolean touched = updateTopics(packageDir);
+					if (touched || changed.contains("") || changed.contains("DESCRIPTION"))
+						document(session, packageDir);
+					else if (!onlyTests(changed))
+						load(session, packageDir);
+					if (watchTests)
+						test(session, getRelatedTests(packageDir, changed));
+					log.info("Updated in " + (System.currentTimeMillis() - start) + " ms.");
+				}
+				catch (MojoExecutionException e)
+				{
+					log.error(e.getMessage());
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot watch R sources: " + e.getMessage(), e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			log.info("Watch stopped.");
+		}
+	}
+
+	/**
+	 * Waits for changes, then collects further changes until none happens for the debounce time.
+	 *
+	 * @return The paths of the changed files relative to the source directory, or an empty path if changes were lost.
+	 */
+	private Set<String> await(WatchService watcher, Path root) throws InterruptedException, IOException
+	{
+		Set<String> changed = new TreeSet<>();
+		for (WatchKey key = watcher.take(); key != null; key = watcher.poll(debounce, TimeUnit.MILLISECONDS))
+		{
+			Path dir = directories.get(key);
+			for (WatchEvent<?> event : key.pollEvents())
+				if (event.kind() == OVERFLOW || dir == null)
+					changed.add("");
+				else
+				{
+					Path path = dir.resolve((Path) event.context());
+					String name = path.getFileName().toString();
+					// Skip editor backups and lock files
+					if (name.startsWith(".") || name.endsWith("~"))
+						continue;
+					if (event.kind() == ENTRY_CREATE && Files.isDirectory(path))
+						register(watcher, path);
+					changed.add(root.relativize(path).toString().replace(File.separatorChar, '/'));
+				}
+
+			if (!key.reset())
+				directories.remove(key);
+		}
+		changed.remove(".");
+		return changed;
+	}
+
+	private void register(final WatchService watcher, Path dir) throws IOException
+	{
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException
+			{
+				directories.put(subdir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), subdir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Updates the fingerprints of the roxygen blocks and signatures of the R files, and of the roxygen templates.
+	 *
+	 * @return true if any fingerprint changed, i.e. the documentation must be updated.
+	 */
+	private boolean updateTopics(File packageDir) throws MojoExecutionException
+	{
+		try
+		{
+			Map<String, String> current = new HashMap<>();
+			for (Map.Entry<String, File> source : FileTree.list(new File(packageDir, "R")).entrySet())
+				if (source.getKey().matches(".*\\.[rR]"))
+					current.put(source.getKey(), ROxygenizeMojo.fingerprintRoxygen(source.getValue(), wholeFiles));
+			for (Map.Entry<String, File> template : FileTree.list(new File(packageDir, "man-roxygen")).entrySet())
+				current.put("man-roxygen/" + template.getKey(), Fingerprint.of(template.getValue()));
+			for (Map.Entry<String, File> template : FileTree.list(new File(packageDir, "man" + File.separator + "roxygen")).entrySet())
+				current.put("man/roxygen/" + template.getKey(), Fingerprint.of(template.getValue()));
+
+			boolean changed = !current.equals(topics);
+			topics.clear();
+			topics.putAll(current);
+			return changed;
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot read R sources: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Updates the documentation, which also reloads the package.
+	 */
+	private void document(RSession session, File packageDir) throws MojoExecutionException
+	{
+		getLog().info("Updating documentation...");
+		tryCatch(session, withProjectLibraries("devtools::document(pkg = as.package(" + RScript.quote(packageDir.getAbsolutePath()) + "))"));
+	}
+
+	private void load(RSession session, File packageDir) throws MojoExecutionException
+	{
+		getLog().info("Reloading package...");
+		tryCatch(session, withProjectLibraries("suppressPackageStartupMessages(pkgload::load_all(" + RScript.quote(packageDir.getAbsolutePath())
+				+ ", export_all = TRUE, helpers = FALSE, quiet = TRUE))"));
+	}
+
+	private void test(RSession session, List<File> tests) throws MojoExecutionException
+	{
+		Log log = getLog();
+		if (tests.isEmpty())
+		{
+			log.info("No related tests to run.");
+			return;
+		}
+
+		StringBuilder files = new StringBuilder();
+		for (File test : tests)
+			files.append(files.length() > 0 ? ", " : "").append(RScript.quote(test.getAbsolutePath()));
+		log.info("Running " + tests.size() + " test files...");
+		REXP res = tryCatch(session, withProjectLibraries(String.format(RUN_TESTS, files, RScript.quote(project.getArtifactId()))));
+		List<String> failures = RResults.strings(res);
+		if (!failures.isEmpty())
+		{
+			for (String failure : failures)
+				log.error("        " + failure);
+			log.error("There are test failures.");
+		}
+		else
+			log.info("Tests passed.");
+	}
+
+	/**
+	 * @return The test files among the changed files, and the test files named after the changed R files.
+	 */
+	private static List<File> getRelatedTests(File packageDir, Set<String> changed)
+	{
+		File testthat = new File(packageDir, "tests" + File.separator + "testthat");
+		List<File> tests = new ArrayList<>();
+		for (String path : changed)
+		{
+			String name = path.substring(path.lastIndexOf('/') + 1);
+			if (path.startsWith("tests/testthat/") && name.matches("test.*\\.[rR]"))
+				tests.add(new File(packageDir, path));
+			else if (path.startsWith("R/") && name.matches(".*\\.[rR]"))
+				for (String prefix : new String[] { "test-", "test_" })
+					for (String extension : new String[] { ".R", ".r" })
+						tests.add(new File(testthat, prefix + name.substring(0, name.length() - 2) + extension));
+		}
+
+		List<File> existing = new ArrayList<>();
+		for (File test : tests)
+			if (test.isFile() && !existing.contains(test))
+				existing.add(test);
+		return existing;
+	}
+
+	private static boolean onlyTests(Set<String> changed)
+	{
+		for (String path : changed)
+			if (!path.startsWith("tests/"))
+				return false;
+		return true;
+	}
+}
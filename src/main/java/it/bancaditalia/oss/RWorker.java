@@ -0,0 +1,497 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.rosuda.JRI.REXP;
+import org.rosuda.JRI.RVector;
+
+import com.sun.jna.Platform;
+
+/**
+ * An out-of-process R worker.
+ *
+ * The worker is an Rscript process running the <code>rworker.R</code> script, which connects back to a loopback socket
+ * opened by the plugin and then evaluates one request at a time. The console output of each request, and that of the
+ * process, is forwarded to the log of the current session owner. The same script can also run as a long-lived daemon,
+ * see {@link RDaemon}.
+ *
+ * <p>
+ * A request is a line with the number of lines of the R expression, followed by the expression itself. A response is a
+ * tagged, line-oriented encoding of the result value: <code>N</code> for NULL; <code>S</code>, <code>I</code>,
+ * <code>D</code> or <code>B</code> followed by the length and the elements of a character, integer, double or logical
+ * vector; <code>L</code> followed by the length and the name-value pairs of a list; <code>E</code> followed by the
+ * message of an error. Character data is sent as hex-encoded UTF-8 bytes so that it always fits on one line. The
+ * console output of the request is sent as is before the response, followed by an empty line and a line made of the
+ * record separator character. The handshake line sent by the worker when ready, <code>OK</code>, may be followed by its
+ * process id, which is used to interrupt evaluations that time out. A request made of the line <code>RESET</code>
+ * restores the session state of the worker at startup, and is answered with NULL.
+ * </p>
+ */
+class RWorker
+{
+	private static final Charset	UTF8			= Charset.forName("UTF-8");
+	private static final int		STARTUP_TIMEOUT	= 120000;
+	private static final int		CONNECT_TIMEOUT	= 5000;
+	private static final String		END_OF_OUTPUT	= "\u001e";
+	private static final String		RESET			= "RESET";
+	private static File				script;
+
+	private final Process			process;
+	private final Socket			socket;
+	private final BufferedReader	in;
+	private final Writer			out;
+	private final ConsoleLog		console;
+	private volatile boolean		broken			= false;
+	private int						pid				= 0;
+
+	private RWorker(Process process, Socket socket, Log log) throws IOException
+	{
+		this.process = process;
+		this.socket = socket;
+		this.console = new ConsoleLog(log, false);
+		// Requests and responses are small exchanges, results may be large character vectors
+		socket.setTcpNoDelay(true);
+		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8), 65536);
+		this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+	}
+
+	/**
+	 * Starts a new worker process.
+	 *
+	 * @param rHome The R installation directory.
+	 * @param sharedLibs Additional directories containing shared libraries needed by R.
+	 * @param log The log where the startup is reported.
+	 * @return The worker, ready to accept requests.
+	 * @throws MojoExecutionException if the worker could not be started.
+	 */
+	static RWorker start(File rHome, File[] sharedLibs, Log log) throws MojoExecutionException
+	{
+		File rscript = RScript.getExecutable(rHome);
+
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+		{
+			server.setSoTimeout(STARTUP_TIMEOUT);
+
+			ProcessBuilder builder = new ProcessBuilder(rscript.getAbsolutePath(), "--vanilla", getScript().getAbsolutePath(), "connect",
+					Integer.toString(server.getLocalPort()));
+			builder.redirectErrorStream(true);
+			RScript.configure(builder, rHome, sharedLibs);
+
+			log.info("Starting R worker...");
+			Process process = builder.start();
+			process.getOutputStream().close();
+
+			Socket socket;
+			try
+			{
+				socket = server.accept();
+			}
+			catch (SocketTimeoutException e)
+			{
+				process.destroy();
+				throw new MojoExecutionException("R worker did not start within " + STARTUP_TIMEOUT / 1000 + " seconds.");
+			}
+
+			RWorker worker = new RWorker(process, socket, log);
+			worker.pumpConsole();
+			worker.handshake();
+			return worker;
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Cannot start R worker: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Connects to an R daemon, which will serve requests until the worker is destroyed.
+	 *
+	 * @param address The address where the daemon listens.
+	 * @param token The token identifying the plugin to the daemon.
+	 * @param log The log of the session owner.
+	 * @return The worker, ready to accept requests.
+	 * @throws IOException if the daemon is not reachable.
+	 * @throws MojoExecutionException if the daemon refused the connection.
+	 */
+	static RWorker connect(InetSocketAddress address, String token, Log log) throws IOException, MojoExecutionException
+	{
+		Socket socket = new Socket();
+		socket.connect(address, CONNECT_TIMEOUT);
+		RWorker worker = new RWorker(null, socket, log);
+		worker.out.write(token);
+		worker.out.write('\n');
+		worker.out.flush();
+		worker.handshake();
+		return worker;
+	}
+
+	private void handshake() throws IOException, MojoExecutionException
+	{
+		// The worker may also send its process id, so that it can be interrupted
+		String handshake = in.readLine();
+		if (handshake != null && handshake.startsWith("OK ") && handshake.substring(3).matches("\\d+"))
+			pid = Integer.parseInt(handshake.substring(3));
+		else if (!"OK".equals(handshake))
+		{
+			String message = "E".equals(handshake) ? decode(in.readLine()) : "R worker terminated unexpectedly.";
+			destroy();
+			throw new MojoExecutionException(message);
+		}
+	}
+
+	/**
+	 * @return The worker script, extracted to a temporary file.
+	 * @throws IOException if the script cannot be extracted.
+	 */
+	static synchronized File getScript() throws IOException
+	{
+		if (script == null)
+		{
+			File file = File.createTempFile("rworker", ".R");
+			file.deleteOnExit();
+			try (InputStream is = RWorker.class.getResourceAsStream("rworker.R"); OutputStream os = new FileOutputStream(file))
+			{
+				byte buffer[] = new byte[8192];
+				int read;
+				while ((read = is.read(buffer)) >= 0)
+					os.write(buffer, 0, read);
+			}
+			script = file;
+		}
+
+		return script;
+	}
+
+	private void pumpConsole()
+	{
+		Thread pump = new Thread("R worker console") {
+			@Override
+			public void run()
+			{
+				try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream())))
+				{
+					String line;
+					while ((line = output.readLine()) != null)
+						console.write(line + "\n");
+				}
+				catch (IOException e)
+				{
+					// the process is gone
+				}
+			}
+		};
+		pump.setDaemon(true);
+		pump.start();
+	}
+
+	/**
+	 * Redirects the worker activity to another log.
+	 *
+	 * @param log The log of the new owner of this worker.
+	 * @param stream true to log the console output at info level.
+	 */
+	void setLog(Log log, boolean stream)
+	{
+		console.setLog(log, stream);
+	}
+
+	/**
+	 * @return true if the worker cannot be used anymore.
+	 */
+	boolean isBroken()
+	{
+		return broken;
+	}
+
+	/**
+	 * Evaluates an R expression in the worker.
+	 *
+	 * @param expression The R code to evaluate.
+	 * @return The value of the expression.
+	 * @throws MojoExecutionException if R signalled an error or the worker died.
+	 */
+	REXP eval(String expression) throws MojoExecutionException
+	{
+		return eval(expression, 0);
+	}
+
+	/**
+	 * Evaluates an R expression in the worker within a time limit. When the time is up the worker is interrupted, and
+	 * if it does not respond it is terminated.
+	 *
+	 * @param expression The R code to evaluate.
+	 * @param timeout The time limit in milliseconds, or zero for no limit.
+	 * @return The value of the expression.
+	 * @throws MojoExecutionException if R signalled an error, the evaluation timed out or the worker died.
+	 */
+	REXP eval(String expression, long timeout) throws MojoExecutionException
+	{
+		return request(expression, timeout);
+	}
+
+	/**
+	 * Restores the session state of the worker at startup: global variables, attached packages, options and working
+	 * directory.
+	 *
+	 * @throws MojoExecutionException if the worker died.
+	 */
+	void reset() throws MojoExecutionException
+	{
+		request(null, 0);
+	}
+
+	/**
+	 * @param expression The R code to evaluate, or null for a reset.
+	 */
+	private REXP request(String expression, long timeout) throws MojoExecutionException
+	{
+		if (broken)
+			throw new MojoExecutionException("R worker is not available anymore.");
+
+		Watchdog watchdog = Watchdog.watch(new Watchdog.Target() {
+			@Override
+			public void interrupt()
+			{
+				if (!signal("INT"))
+					kill();
+			}
+
+			@Override
+			public void kill()
+			{
+				// A daemon is not a child of this JVM
+				if (process == null)
+					signal("KILL");
+				destroy();
+			}
+		}, timeout);
+		try
+		{
+			String lines[] = expression == null ? new String[0] : expression.split("\r?\n", -1);
+			out.write(expression == null ? RESET : Integer.toString(lines.length));
+			out.write('\n');
+			for (String line : lines)
+			{
+				out.write(line);
+				out.write('\n');
+			}
+			out.flush();
+
+			String tag = readOutput();
+			if (watchdog.hasFired())
+			{
+				if ("E".equals(tag))
+					in.readLine();
+				else
+					read(tag);
+				throw new MojoExecutionException("R evaluation was interrupted after " + timeout / 1000 + " seconds.");
+			}
+			else if ("E".equals(tag))
+				throw new MojoExecutionException("R engine threw an error: " + decode(in.readLine()));
+			else
+				return read(tag);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			broken = true;
+			if (watchdog.hasFired())
+				throw new MojoExecutionException("R evaluation timed out after " + timeout / 1000 + " seconds and the R worker was terminated.", e);
+			throw new MojoExecutionException("R worker terminated unexpectedly.", e);
+		}
+		finally
+		{
+			watchdog.close();
+		}
+	}
+
+	/**
+	 * Sends a signal to the worker process.
+	 *
+	 * @return true if the signal was sent.
+	 */
+	private boolean signal(String signal)
+	{
+		// Windows processes cannot be interrupted from outside
+		if (pid <= 0 || Platform.isWindows() && "INT".equals(signal))
+			return false;
+
+		try
+		{
+			ProcessBuilder builder = Platform.isWindows() ? new ProcessBuilder("taskkill", "/F", "/PID", Integer.toString(pid))
+					: new ProcessBuilder("kill", "-" + signal, Integer.toString(pid));
+			return builder.redirectErrorStream(true).start().waitFor() == 0;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Forwards the console output of a request to the log.
+	 *
+	 * @return The first line of the response.
+	 */
+	private String readOutput() throws IOException
+	{
+		String pending = null;
+		while (true)
+		{
+			String line = in.readLine();
+			if (line == null)
+				throw new IOException("Connection closed by R worker.");
+			else if (END_OF_OUTPUT.equals(line))
+			{
+				// The empty line before the marker was added by the worker
+				if (pending != null && !pending.isEmpty())
+					console.write(pending + "\n");
+				console.flush();
+				return in.readLine();
+			}
+
+			if (pending != null)
+				console.write(pending + "\n");
+			pending = line;
+		}
+	}
+
+	private REXP read(String tag) throws IOException
+	{
+		if (tag == null)
+			throw new IOException("Connection closed by R worker.");
+
+		switch (tag)
+		{
+			case "N":
+				return new REXP(REXP.XT_NULL, null);
+			case "S":
+			{
+				String values[] = new String[readLength()];
+				for (int i = 0; i < values.length; i++)
+					values[i] = decode(in.readLine());
+				return new REXP(values);
+			}
+			case "I":
+			{
+				int values[] = new int[readLength()];
+				for (int i = 0; i < values.length; i++)
+				{
+					String value = in.readLine();
+					values[i] = "NA".equals(value) ? Integer.MIN_VALUE : Integer.parseInt(value);
+				}
+				return new REXP(values);
+			}
+			case "D":
+			{
+				double values[] = new double[readLength()];
+				for (int i = 0; i < values.length; i++)
+				{
+					String value = in.readLine();
+					if ("NA".equals(value) || "NaN".equals(value))
+						values[i] = Double.NaN;
+					else if ("Inf".equals(value))
+						values[i] = Double.POSITIVE_INFINITY;
+					else if ("-Inf".equals(value))
+						values[i] = Double.NEGATIVE_INFINITY;
+					else
+						values[i] = Double.parseDouble(value);
+				}
+				return new REXP(values);
+			}
+			case "B":
+			{
+				// RBool encoding: 0 = FALSE, 1 = TRUE, 2 = NA
+				int values[] = new int[readLength()];
+				for (int i = 0; i < values.length; i++)
+				{
+					String value = in.readLine();
+					values[i] = "T".equals(value) ? 1 : "F".equals(value) ? 0 : 2;
+				}
+				return new REXP(REXP.XT_ARRAY_BOOL_INT, values);
+			}
+			case "L":
+			{
+				int length = readLength();
+				RVector vector = new RVector();
+				// RVector extends the raw Vector
+				@SuppressWarnings("unchecked")
+				List<REXP> elements = vector;
+				List<String> names = new ArrayList<>(length);
+				boolean named = false;
+				for (int i = 0; i < length; i++)
+				{
+					String name = decode(in.readLine());
+					named |= name != null;
+					names.add(name);
+					elements.add(read(in.readLine()));
+				}
+				if (named)
+					vector.setNames(names.toArray(new String[length]));
+				return new REXP(REXP.XT_VECTOR, vector);
+			}
+			default:
+				throw new IOException("Unexpected response from R worker: " + tag);
+		}
+	}
+
+	private int readLength() throws IOException
+	{
+		String length = in.readLine();
+		if (length == null)
+			throw new IOException("Connection closed by R worker.");
+		return Integer.parseInt(length);
+	}
+
+	private static String decode(String hex)
+	{
+		if (hex == null || "NA".equals(hex))
+			return null;
+
+		byte bytes[] = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) (Character.digit(hex.charAt(2 * i), 16) << 4 | Character.digit(hex.charAt(2 * i + 1), 16));
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Terminates the worker process, or disconnects from the daemon.
+	 */
+	void destroy()
+	{
+		broken = true;
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			// nothing to do
+		}
+		if (process != null)
+			process.destroy();
+	}
+}
@@ -0,0 +1,123 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.rosuda.JRI.REXP;
+
+/**
+ * Backend that evaluates R in a pool of out-of-process {@link RWorker}s.
+ *
+ * Each session leases a whole worker, so that independent modules of a parallel build evaluate concurrently. Workers
+ * are started lazily up to the configured size, reused across sessions after resetting their state, and terminated
+ * when the JVM exits.
+ */
+class RWorkerPool extends RBackend
+{
+	private final File							rHome;
+	private final File[]						sharedLibs;
+	private final Semaphore						permits;
+	private final ConcurrentLinkedQueue<RWorker>	idle	= new ConcurrentLinkedQueue<>();
+	private final Set<RWorker>					all		= Collections.synchronizedSet(new HashSet<RWorker>());
+
+	RWorkerPool(File rHome, File[] sharedLibs, int size)
+	{
+		this.rHome = rHome;
+		this.sharedLibs = sharedLibs;
+		this.permits = new Semaphore(size, true);
+
+		Runtime.getRuntime().addShutdownHook(new Thread("R worker pool shutdown") {
+			@Override
+			public void run()
+			{
+				synchronized (all)
+				{
+					for (RWorker worker : all)
+						worker.destroy();
+				}
+			}
+		});
+	}
+
+	@Override
+	public RSession openSession(Log log, boolean stream) throws MojoExecutionException
+	{
+		try
+		{
+			permits.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while waiting for an R worker.", e);
+		}
+
+		RWorker worker;
+		try
+		{
+			worker = idle.poll();
+			if (worker == null)
+			{
+				worker = RWorker.start(rHome, sharedLibs, log);
+				all.add(worker);
+			}
+			worker.setLog(log, stream);
+		}
+		catch (MojoExecutionException | RuntimeException | Error e)
+		{
+			permits.release();
+			throw e;
+		}
+
+		final RWorker leased = worker;
+		return new RSession() {
+			private final AtomicBoolean	closed	= new AtomicBoolean();
+
+			@Override
+			public REXP eval(String expression) throws MojoExecutionException
+			{
+				return leased.eval(expression);
+			}
+
+			@Override
+			public REXP eval(String expression, long timeout) throws MojoExecutionException
+			{
+				return leased.eval(expression, timeout);
+			}
+
+			@Override
+			public void close()
+			{
+				if (!closed.compareAndSet(false, true))
+					return;
+
+				boolean reusable = !leased.isBroken();
+				if (reusable)
+					try
+					{
+						leased.reset();
+					}
+					catch (MojoExecutionException e)
+					{
+						reusable = false;
+					}
+
+				if (!reusable)
+				{
+					all.remove(leased);
+					leased.destroy();
+				}
+				else
+					idle.add(leased);
+				permits.release();
+			}
+		};
+	}
+}
@@ -0,0 +1,106 @@
+package it.bancaditalia.oss;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Key-value state persisted by the incremental goals between builds. The file is rewritten only if something changed.
+ */
+final class StatusFile
+{
+	private final File			file;
+	private final Properties	properties	= new Properties();
+	private boolean				dirty		= false;
+
+	private StatusFile(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Loads a status file. A missing or unreadable file results in an empty status.
+	 *
+	 * @param file The file to load.
+	 * @return the status
+	 */
+	static StatusFile load(File file)
+	{
+		StatusFile status = new StatusFile(file);
+		if (file.isFile())
+			try (InputStream is = new FileInputStream(file))
+			{
+				status.properties.load(is);
+			}
+			catch (IOException | IllegalArgumentException e)
+			{
+				status.properties.clear();
+				status.dirty = true;
+			}
+		return status;
+	}
+
+	String get(String key)
+	{
+		return properties.getProperty(key);
+	}
+
+	void put(String key, String value)
+	{
+		if (!value.equals(properties.setProperty(key, value)))
+			dirty = true;
+	}
+
+	void remove(String key)
+	{
+		if (properties.remove(key) != null)
+			dirty = true;
+	}
+
+	/**
+	 * Removes all the keys.
+	 */
+	void clear()
+	{
+		if (!properties.isEmpty())
+			dirty = true;
+		properties.clear();
+	}
+
+	/**
+	 * @param prefix A key prefix.
+	 * @return the sorted keys starting with the prefix, with the prefix removed.
+	 */
+	Set<String> keys(String prefix)
+	{
+		Set<String> keys = new TreeSet<>();
+		for (String key : properties.stringPropertyNames())
+			if (key.startsWith(prefix))
+				keys.add(key.substring(prefix.length()));
+		return keys;
+	}
+
+	/**
+	 * Writes the status to disk if it was modified.
+	 *
+	 * @throws IOException if the file cannot be written.
+	 */
+	void save() throws IOException
+	{
+		if (!dirty)
+			return;
+
+		file.getParentFile().mkdirs();
+		try (OutputStream os = new FileOutputStream(file))
+		{
+			properties.store(os, null);
+		}
+		dirty = false;
+	}
+}
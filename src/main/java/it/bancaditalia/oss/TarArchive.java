@@ -0,0 +1,400 @@
+package it.bancaditalia.oss;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal reader of gzipped tar archives, as produced by R CMD build, and writer of reproducible tar archives.
+ */
+final class TarArchive
+{
+	private static final int		BLOCK		= 512;
+	private static final int		RECORD		= 20 * BLOCK;
+	private static final Charset	NAMES		= Charset.forName("UTF-8");
+	private static final Pattern	PACKAGED	= Pattern.compile("^Packaged:[^\\r\\n]*(\\r?\\n[ \\t][^\\r\\n]*)*", Pattern.MULTILINE);
+
+	/**
+	 * An entry of an uncompressed archive.
+	 */
+	private static final class Entry
+	{
+		String	name;
+		byte	type;
+		int		mode;
+		long	size;
+		long	offset;
+		String	link;
+	}
+
+	private TarArchive()
+	{
+	}
+
+	/**
+	 * Reads the contents of the first regular file of an archive whose path matches a pattern.
+	 *
+	 * @param archive The gzipped tar archive.
+	 * @param path The pattern of the path, without any leading <code>./</code>.
+	 * @return The file contents, or null if no file matches.
+	 * @throws IOException if the archive cannot be read.
+	 */
+	static byte[] readEntry(File archive, Pattern path) throws IOException
+	{
+		Map<String, byte[]> entries = scan(archive, path, true);
+		return entries.isEmpty() ? null : entries.values().iterator().next();
+	}
+
+	/**
+	 * Reads the contents of all the regular files of an archive whose paths match a pattern.
+	 *
+	 * @param archive The gzipped tar archive.
+	 * @param path The pattern of the paths, without any leading <code>./</code>.
+	 * @return The file contents keyed by path, in archive order.
+	 * @throws IOException if the archive cannot be read.
+	 */
+	static Map<String, byte[]> readEntries(File archive, Pattern path) throws IOException
+	{
+		return scan(archive, path, false);
+	}
+
+	private static Map<String, byte[]> scan(File archive, Pattern path, boolean first) throws IOException
+	{
+		Map<String, byte[]> found = new LinkedHashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(archive), 65536))))
+		{
+			byte header[] = new byte[BLOCK];
+			String longName = null;
+			while (true)
+			{
+				try
+				{
+					in.readFully(header);
+				}
+				catch (EOFException e)
+				{
+					return found;
+				}
+				if (header[0] == 0)
+					return found;
+
+				String name = longName != null ? longName : string(header, 0, 100);
+				longName = null;
+				String prefix = string(header, 345, 155);
+				if ("ustar".equals(string(header, 257, 5)) && !prefix.isEmpty())
+					name = prefix + "/" + name;
+				if (name.startsWith("./"))
+					name = name.substring(2);
+				String octal = string(header, 124, 12).trim();
+				long size = octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+				byte type = header[156];
+
+				if (type == 'L')
+					longName = new String(read(in, size), NAMES).replace("\0", "");
+				else if ((type == '0' || type == 0) && path.matcher(name).matches())
+				{
+					found.put(name, read(in, size));
+					if (first)
+						return found;
+				}
+				else
+					skip(in, padded(size));
+			}
+		}
+	}
+
+	/**
+	 * Rewrites an uncompressed tar archive so that its contents depend only on the packaged files. Entries are sorted
+	 * by path, with each directory before its contents; times are set to a fixed value, owners are cleared and modes
+	 * are normalized to 0755 for directories and executables and 0644 for other files. The <code>Packaged</code> field of
+	 * the DESCRIPTION of the package, with the build time and the user who built it, is set to the same fixed time and
+	 * to the plugin as the user.
+	 *
+	 * @param tar The uncompressed tar archive, as produced by R CMD build --compression=none.
+	 * @param out The stream receiving the rewritten archive.
+	 * @param time The time of all the entries, in seconds since the epoch.
+	 * @throws IOException if the archive cannot be read or contains unsupported entries.
+	 */
+	static void normalize(File tar, OutputStream out, long time) throws IOException
+	{
+		try (RandomAccessFile in = new RandomAccessFile(tar, "r"))
+		{
+			List<Entry> entries = list(in);
+			Collections.sort(entries, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry e1, Entry e2)
+				{
+					String p1[] = e1.name.split("/"), p2[] = e2.name.split("/");
+					for (int i = 0; i < Math.min(p1.length, p2.length); i++)
+						if (!p1[i].equals(p2[i]))
+							return p1[i].compareTo(p2[i]);
+					return p1.length - p2.length;
+				}
+			});
+
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss 'UTC'", Locale.ROOT);
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			String packaged = "Packaged: " + format.format(new Date(time * 1000)) + "; r-maven-plugin";
+
+			byte buffer[] = new byte[65536];
+			long written = 0;
+			for (Entry entry : entries)
+			{
+				if (entry.type == '5')
+				{
+					written += writeHeader(out, entry.name + "/", '5', 0755, 0, time, "");
+					continue;
+				}
+				else if (entry.type == '2' || entry.type == '1')
+				{
+					written += writeHeader(out, entry.name, (char) entry.type, entry.type == '2' ? 0777 : 0644, 0, time, entry.link);
+					continue;
+				}
+
+				int mode = (entry.mode & 0111) != 0 ? 0755 : 0644;
+				if (entry.name.matches("[^/]+/DESCRIPTION"))
+				{
+					byte contents[] = new byte[(int) entry.size];
+					in.seek(entry.offset);
+					in.readFully(contents);
+					Matcher matcher = PACKAGED.matcher(new String(contents, NAMES));
+					if (matcher.find())
+						contents = matcher.replaceFirst(Matcher.quoteReplacement(packaged)).getBytes(NAMES);
+					written += writeHeader(out, entry.name, '0', mode, contents.length, time, "");
+					out.write(contents);
+					written += contents.length + pad(out, contents.length);
+					continue;
+				}
+
+				written += writeHeader(out, entry.name, '0', mode, entry.size, time, "");
+				in.seek(entry.offset);
+				for (long left = entry.size; left > 0;)
+				{
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+					if (read < 0)
+						throw new EOFException("Truncated tar archive");
+					out.write(buffer, 0, read);
+					left -= read;
+				}
+				written += entry.size + pad(out, entry.size);
+			}
+
+			// End of archive, padded to a whole record as tar does
+			long end = written + 2 * BLOCK;
+			out.write(new byte[(int) (2 * BLOCK + (end % RECORD == 0 ? 0 : RECORD - end % RECORD))]);
+		}
+	}
+
+	private static List<Entry> list(RandomAccessFile in) throws IOException
+	{
+		List<Entry> entries = new ArrayList<>();
+		byte header[] = new byte[BLOCK];
+		String longName = null, longLink = null;
+		while (in.getFilePointer() + BLOCK <= in.length())
+		{
+			in.readFully(header);
+			if (header[0] == 0)
+				break;
+
+			Entry entry = new Entry();
+			entry.name = string(header, 0, 100);
+			String prefix = string(header, 345, 155);
+			if ("ustar".equals(string(header, 257, 5)) && !prefix.isEmpty())
+				entry.name = prefix + "/" + entry.name;
+			entry.name = longName != null ? longName : entry.name;
+			entry.link = longLink != null ? longLink : string(header, 157, 100);
+			longName = longLink = null;
+			String octal = string(header, 100, 8).trim();
+			entry.mode = octal.isEmpty() ? 0 : Integer.parseInt(octal, 8);
+			octal = string(header, 124, 12).trim();
+			entry.size = octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+			entry.type = header[156] == 0 ? (byte) '0' : header[156];
+			entry.offset = in.getFilePointer();
+
+			switch (entry.type)
+			{
+				case 'L':
+					longName = readString(in, entry.size);
+					continue;
+				case 'K':
+					longLink = readString(in, entry.size);
+					continue;
+				case 'x':
+					for (String record : readString(in, entry.size).split("\\n"))
+						if (record.matches("\\d+ path=.*"))
+							longName = record.substring(record.indexOf('=') + 1);
+						else if (record.matches("\\d+ linkpath=.*"))
+							longLink = record.substring(record.indexOf('=') + 1);
+					continue;
+				case 'g':
+					in.seek(entry.offset + padded(entry.size));
+					continue;
+				case '0': case '7': case '1': case '2': case '5':
+					break;
+				default:
+					throw new IOException("Unsupported entry type '" + (char) entry.type + "' in tar archive: " + entry.name);
+			}
+
+			while (entry.name.startsWith("./"))
+				entry.name = entry.name.substring(2);
+			while (entry.name.endsWith("/"))
+				entry.name = entry.name.substring(0, entry.name.length() - 1);
+			if (entry.type == '7')
+				entry.type = '0';
+			if (!entry.name.isEmpty())
+				entries.add(entry);
+			in.seek(entry.offset + padded(entry.size));
+		}
+		return entries;
+	}
+
+	private static String readString(RandomAccessFile in, long size) throws IOException
+	{
+		byte contents[] = new byte[(int) size];
+		in.readFully(contents);
+		in.seek(in.getFilePointer() + padded(size) - size);
+		return new String(contents, NAMES).replace("\0", "");
+	}
+
+	private static int writeHeader(OutputStream out, String name, char type, int mode, long size, long time, String link) throws IOException
+	{
+		int written = 0;
+		byte nameBytes[] = name.getBytes(NAMES);
+		String prefix = "";
+		if (nameBytes.length > 100)
+		{
+			// Split the name into the ustar prefix if possible, otherwise use a GNU long name entry
+			int slash = -1;
+			for (int i = name.indexOf('/'); i > 0 && slash < 0; i = name.indexOf('/', i + 1))
+				if (name.substring(0, i).getBytes(NAMES).length <= 155 && name.substring(i + 1).getBytes(NAMES).length <= 100)
+					slash = i;
+			if (slash > 0)
+			{
+				prefix = name.substring(0, slash);
+				name = name.substring(slash + 1);
+			}
+			else
+			{
+				written += writeHeader(out, "././@LongLink", 'L', 0644, nameBytes.length + 1, 0, "");
+				out.write(nameBytes);
+				out.write(0);
+				written += nameBytes.length + 1 + pad(out, nameBytes.length + 1);
+				name = new String(Arrays.copyOf(nameBytes, 100), NAMES);
+			}
+		}
+		byte linkBytes[] = link.getBytes(NAMES);
+		if (linkBytes.length > 100)
+		{
+			written += writeHeader(out, "././@LongLink", 'K', 0644, linkBytes.length + 1, 0, "");
+			out.write(linkBytes);
+			out.write(0);
+			written += linkBytes.length + 1 + pad(out, linkBytes.length + 1);
+			linkBytes = Arrays.copyOf(linkBytes, 100);
+		}
+		if (size > 077777777777L)
+			throw new IOException("Entry too large for a tar archive: " + name);
+
+		byte header[] = new byte[BLOCK];
+		put(header, 0, 100, name.getBytes(NAMES));
+		put(header, 100, 8, String.format("%07o", mode).getBytes(NAMES));
+		put(header, 108, 8, "0000000".getBytes(NAMES));
+		put(header, 116, 8, "0000000".getBytes(NAMES));
+		put(header, 124, 12, String.format("%011o", size).getBytes(NAMES));
+		put(header, 136, 12, String.format("%011o", time).getBytes(NAMES));
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		header[156] = (byte) type;
+		put(header, 157, 100, linkBytes);
+		put(header, 257, 6, "ustar".getBytes(NAMES));
+		put(header, 263, 2, "00".getBytes(NAMES));
+		put(header, 329, 8, "0000000".getBytes(NAMES));
+		put(header, 337, 8, "0000000".getBytes(NAMES));
+		put(header, 345, 155, prefix.getBytes(NAMES));
+
+		int checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xFF;
+		put(header, 148, 6, String.format("%06o", checksum).getBytes(NAMES));
+		header[154] = 0;
+		out.write(header);
+		return written + BLOCK;
+	}
+
+	private static void put(byte header[], int offset, int length, byte value[])
+	{
+		System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+	}
+
+	private static int pad(OutputStream out, long size) throws IOException
+	{
+		int padding = (int) (padded(size) - size);
+		out.write(new byte[padding]);
+		return padding;
+	}
+
+	private static byte[] read(InputStream in, long size) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) size);
+		byte buffer[] = new byte[8192];
+		long left = size;
+		while (left > 0)
+		{
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (read < 0)
+				throw new EOFException("Truncated tar archive");
+			out.write(buffer, 0, read);
+			left -= read;
+		}
+		skip(in, padded(size) - size);
+		return out.toByteArray();
+	}
+
+	private static long padded(long size)
+	{
+		return size % BLOCK == 0 ? size : size + BLOCK - size % BLOCK;
+	}
+
+	private static void skip(InputStream in, long size) throws IOException
+	{
+		while (size > 0)
+		{
+			long skipped = in.skip(size);
+			if (skipped <= 0)
+			{
+				if (in.read() < 0)
+					throw new EOFException("Truncated tar archive");
+				skipped = 1;
+			}
+			size -= skipped;
+		}
+	}
+
+	private static String string(byte header[], int offset, int length)
+	{
+		int end = offset;
+		while (end < offset + length && header[end] != 0)
+			end++;
+		return new String(header, offset, end - offset, NAMES);
+	}
+}
@@ -0,0 +1,147 @@
+package it.bancaditalia.oss;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the timeout of an R evaluation, and cancels the evaluations still running when the JVM shuts down, as on
+ * Ctrl-C.
+ *
+ * When the timeout expires, the evaluation is interrupted; if it is still running after a grace period, it is killed.
+ * A watchdog must be closed when the evaluation ends.
+ */
+final class Watchdog implements AutoCloseable
+{
+	/**
+	 * Milliseconds given to an interrupted evaluation to end before it is killed.
+	 */
+	static final long								GRACE	= 15000;
+
+	/**
+	 * An evaluation that can be stopped from another thread.
+	 */
+	interface Target
+	{
+		/**
+		 * Asks R to stop the evaluation, as with Ctrl-C in the R console.
+		 */
+		void interrupt();
+
+		/**
+		 * Stops the evaluation by any means, e.g. terminating the R process.
+		 */
+		void kill();
+	}
+
+	private static final ScheduledExecutorService	timer	= Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+																@Override
+																public Thread newThread(Runnable r)
+																{
+																	Thread thread = new Thread(r, "R watchdog");
+																	thread.setDaemon(true);
+																	return thread;
+																}
+															});
+	private static final Set<Watchdog>				active	= Collections.synchronizedSet(new HashSet<Watchdog>());
+
+	static
+	{
+		Runtime.getRuntime().addShutdownHook(new Thread("R evaluations shutdown") {
+			@Override
+			public void run()
+			{
+				List<Watchdog> running;
+				synchronized (active)
+				{
+					running = new ArrayList<>(active);
+				}
+				for (Watchdog watchdog : running)
+					watchdog.target.interrupt();
+
+				// Give R a chance to clean up before the JVM exits
+				long deadline = System.currentTimeMillis() + 2000;
+				while (!active.isEmpty() && System.currentTimeMillis() < deadline)
+					try
+					{
+						Thread.sleep(50);
+					}
+					catch (InterruptedException e)
+					{
+						break;
+					}
+
+				synchronized (active)
+				{
+					running = new ArrayList<>(active);
+				}
+				for (Watchdog watchdog : running)
+					watchdog.target.kill();
+			}
+		});
+	}
+
+	private final Target							target;
+	private final List<ScheduledFuture<?>>			scheduled	= new ArrayList<>();
+	private volatile boolean						fired		= false;
+
+	private Watchdog(Target target)
+	{
+		this.target = target;
+	}
+
+	/**
+	 * Starts watching an evaluation.
+	 *
+	 * @param target The evaluation.
+	 * @param timeout The timeout in milliseconds, or zero if the evaluation may run forever.
+	 * @return The watchdog, to be closed when the evaluation ends.
+	 */
+	static Watchdog watch(final Target target, long timeout)
+	{
+		final Watchdog watchdog = new Watchdog(target);
+		if (timeout > 0)
+		{
+			watchdog.scheduled.add(timer.schedule(new Runnable() {
+				@Override
+				public void run()
+				{
+					watchdog.fired = true;
+					target.interrupt();
+				}
+			}, timeout, TimeUnit.MILLISECONDS));
+			watchdog.scheduled.add(timer.schedule(new Runnable() {
+				@Override
+				public void run()
+				{
+					target.kill();
+				}
+			}, timeout + GRACE, TimeUnit.MILLISECONDS));
+		}
+		active.add(watchdog);
+		return watchdog;
+	}
+
+	/**
+	 * @return true if the timeout expired.
+	 */
+	boolean hasFired()
+	{
+		return fired;
+	}
+
+	@Override
+	public void close()
+	{
+		for (ScheduledFuture<?> future : scheduled)
+			future.cancel(false);
+		active.remove(this);
+	}
+}
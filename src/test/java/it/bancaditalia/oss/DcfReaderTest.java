@@ -0,0 +1,93 @@
+package it.bancaditalia.oss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class DcfReaderTest
+{
+	private static final String	DESCRIPTION	= "Package: pkg\n"
+			+ "Title: A Title\n"
+			+ "Description: A description\n"
+			+ "    spanning two lines.\n"
+			+ "Imports:\n"
+			+ "\tutils,\n"
+			+ "\tstats\n"
+			+ "\n"
+			+ "Packaged: 2020-01-01\n";
+
+	@Test
+	public void readsContinuationLines() throws IOException
+	{
+		try (DcfReader reader = new DcfReader(new StringReader(DESCRIPTION)))
+		{
+			DcfField field = reader.readField();
+			assertEquals("Package", field.getName());
+			assertEquals("pkg", field.getValue());
+
+			assertEquals("A Title", reader.readField().getValue());
+
+			field = reader.readField();
+			assertEquals("Description", field.getName());
+			assertEquals("A description\n    spanning two lines.", field.getValue());
+			assertEquals("A description spanning two lines.", field.getText());
+
+			field = reader.readField();
+			assertEquals("Imports", field.getName());
+			assertEquals("\n\tutils,\n\tstats", field.getValue());
+			assertEquals("utils, stats", field.getText());
+
+			// Blank lines between records are skipped
+			assertEquals("Packaged", reader.readField().getName());
+			assertNull(reader.readField());
+		}
+	}
+
+	@Test
+	public void writesFieldsBackUnchanged() throws IOException
+	{
+		StringWriter out = new StringWriter();
+		try (DcfReader reader = new DcfReader(new StringReader(DESCRIPTION.replace("\n\n", "\n"))); DcfWriter writer = new DcfWriter(out))
+		{
+			DcfField field;
+			while ((field = reader.readField()) != null)
+				writer.write(field);
+		}
+
+		assertEquals(DESCRIPTION.replace("\n\n", "\n"), out.toString());
+	}
+
+	@Test
+	public void readsCrLfLineEndings() throws IOException
+	{
+		try (DcfReader reader = new DcfReader(new StringReader("Depends: R (>= 3.5),\r\n  methods\r\n")))
+		{
+			assertEquals("R (>= 3.5), methods", reader.readField().getText());
+			assertNull(reader.readField());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsLeadingContinuation() throws IOException
+	{
+		try (DcfReader reader = new DcfReader(new StringReader("  orphan\nPackage: pkg\n")))
+		{
+			reader.readField();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsLinesWithoutColon() throws IOException
+	{
+		try (DcfReader reader = new DcfReader(new StringReader("Package: pkg\nnot a field\n")))
+		{
+			reader.readField();
+			reader.readField();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package it.bancaditalia.oss;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest
+{
+	/**
+	 * @return Compressible data spanning several blocks, with a repeated run crossing each block boundary.
+	 */
+	private static byte[] data(int length)
+	{
+		Random random = new Random(42);
+		byte data[] = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) ('a' + random.nextInt(4));
+		for (int block = ParallelGzipOutputStream.BLOCK; block + 1000 < length; block += ParallelGzipOutputStream.BLOCK)
+			System.arraycopy(data, 0, data, block - 1000, 2000);
+		return data;
+	}
+
+	private static byte[] compress(byte data[], int threads, int chunk) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, threads, Deflater.DEFAULT_COMPRESSION))
+		{
+			for (int off = 0; off < data.length; off += chunk)
+				gzip.write(data, off, Math.min(chunk, data.length - off));
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] decompress(byte compressed[]) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed)))
+		{
+			byte buffer[] = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+				out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void concatenatesBlocksIntoOneStream() throws IOException
+	{
+		byte data[] = data(5 * ParallelGzipOutputStream.BLOCK + 123);
+		assertArrayEquals(data, decompress(compress(data, 4, 10007)));
+	}
+
+	@Test
+	public void outputDoesNotDependOnThreads() throws IOException
+	{
+		byte data[] = data(3 * ParallelGzipOutputStream.BLOCK + 4567);
+		byte expected[] = compress(data, 1, data.length);
+		assertArrayEquals(expected, compress(data, 2, 65536));
+		assertArrayEquals(expected, compress(data, 8, 777));
+	}
+
+	@Test
+	public void handlesWholeBlocksAndEmptyInput() throws IOException
+	{
+		byte data[] = data(2 * ParallelGzipOutputStream.BLOCK);
+		assertArrayEquals(data, decompress(compress(data, 2, ParallelGzipOutputStream.BLOCK)));
+		assertArrayEquals(new byte[0], decompress(compress(new byte[0], 2, 1)));
+	}
+}
@@ -0,0 +1,44 @@
+package it.bancaditalia.oss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ROxygenizeMojoTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String fingerprint(String code, boolean whole) throws IOException
+	{
+		File source = folder.newFile();
+		Files.write(source.toPath(), code.getBytes("UTF-8"));
+		return ROxygenizeMojo.fingerprintRoxygen(source, whole);
+	}
+
+	@Test
+	public void ignoresBodiesAndUndocumentedCode() throws IOException
+	{
+		String before = fingerprint("#' Adds\n#' @export\nadd <- function(a,\n    b) {\n  a + b\n}\nhelper <- function() 1\n", false);
+		assertEquals(before, fingerprint("#' Adds\n#' @export\nadd <- function(a,\n    b) {\n  b + a\n}\nhelper <- function() 2\n", false));
+		assertNotEquals(before, fingerprint("#' Adds\n#' @export\nadd <- function(a,\n    c) {\n  a + c\n}\nhelper <- function() 1\n", false));
+		assertNotEquals(before, fingerprint("#' Adds two numbers\n#' @export\nadd <- function(a,\n    b) {\n  a + b\n}\nhelper <- function() 1\n", false));
+	}
+
+	@Test
+	public void fingerprintsDynamicFilesAsAWhole() throws IOException
+	{
+		assertNotEquals(fingerprint("#' @evalRd rd()\nf <- function() 1\nrd <- function() 'a'\n", false),
+				fingerprint("#' @evalRd rd()\nf <- function() 1\nrd <- function() 'b'\n", false));
+		assertNotEquals(fingerprint("#' A class\nA <- R6::R6Class('A', public = list(\n  #' @description Go\n  go = function() 1))\n", false),
+				fingerprint("#' A class\nA <- R6::R6Class('A', public = list(\n  #' @description Go\n  go = function() 2))\n", false));
+		assertNotEquals(fingerprint("#' F\nf <- function() 1\n", true), fingerprint("#' F\nf <- function() 2\n", true));
+	}
+}
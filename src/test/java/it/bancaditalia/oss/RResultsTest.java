@@ -0,0 +1,105 @@
+package it.bancaditalia.oss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Test;
+import org.rosuda.JRI.REXP;
+import org.rosuda.JRI.RVector;
+
+public class RResultsTest
+{
+	@SuppressWarnings("unchecked")
+	private static REXP list(String names[], REXP... values)
+	{
+		RVector vector = new RVector();
+		vector.addAll(Arrays.asList(values));
+		vector.setNames(names);
+		return new REXP(REXP.XT_VECTOR, vector);
+	}
+
+	private static List<String> lines(String text)
+	{
+		List<String> lines = new ArrayList<>();
+		for (String line : RResults.lines(text))
+			lines.add(line);
+		return lines;
+	}
+
+	@Test
+	public void readsStrings()
+	{
+		assertEquals(Arrays.asList("a", "b"), RResults.strings(new REXP(new String[] { "a", "b" })));
+		assertEquals(Collections.emptyList(), RResults.strings(null));
+		assertEquals(Collections.emptyList(), RResults.strings(new REXP(REXP.XT_NULL, null)));
+	}
+
+	@Test
+	public void readsCheckResults() throws MojoExecutionException
+	{
+		REXP res = list(new String[] { "errors", "warnings", "notes" }, new REXP(new String[0]), new REXP(new String[] { "w" }),
+				new REXP(new String[] { "n1", "n2" }));
+		RResults.CheckResults results = RResults.CheckResults.of(res);
+		assertEquals(Collections.emptyList(), results.errors);
+		assertEquals(Arrays.asList("w"), results.warnings);
+		assertEquals(Arrays.asList("n1", "n2"), results.notes);
+	}
+
+	@Test(expected = MojoExecutionException.class)
+	public void rejectsMalformedCheckResults() throws MojoExecutionException
+	{
+		RResults.CheckResults.of(new REXP(new String[] { "not a list" }));
+	}
+
+	@Test
+	public void readsPaths() throws MojoExecutionException
+	{
+		assertEquals(new File("pkg_1.0.tar.gz"), RResults.path(new REXP(new String[] { "pkg_1.0.tar.gz" }), "building"));
+	}
+
+	@Test(expected = MojoExecutionException.class)
+	public void rejectsMissingPaths() throws MojoExecutionException
+	{
+		RResults.path(new REXP(REXP.XT_NULL, null), "building");
+	}
+
+	@Test
+	public void splitsLines()
+	{
+		assertEquals(Arrays.asList("a", "b", "", "c"), lines("a\r\nb\n\nc\n\r\n"));
+		assertEquals(Arrays.asList("single"), lines("single"));
+		assertEquals(Arrays.asList(""), lines(""));
+		assertEquals(Collections.emptyList(), lines("\n"));
+	}
+
+	@Test
+	public void rendersResults()
+	{
+		assertEquals("null", RResults.render(null, 100));
+		assertEquals("chr[2] \"a\", NA", RResults.render(new REXP(new String[] { "a", null }), 100));
+		assertEquals("int[3] 1, 2, 3", RResults.render(new REXP(new int[] { 1, 2, 3 }), 100));
+		assertEquals("list[2] (x = num[1] 1.5, NULL)", RResults.render(list(new String[] { "x", null }, new REXP(new double[] { 1.5 }),
+				new REXP(REXP.XT_NULL, null)), 100));
+	}
+
+	@Test
+	public void truncatesRenderingAtAnyLimit()
+	{
+		String values[] = new String[50];
+		Arrays.fill(values, "a value long enough to cross the limit");
+		REXP res = new REXP(values);
+		for (int limit = 0; limit < 200; limit++)
+		{
+			String rendering = RResults.render(res, limit);
+			assertEquals(limit + 3, rendering.length());
+			assertTrue(rendering.endsWith("..."));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package it.bancaditalia.oss;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RTestMojoTest
+{
+	@Rule
+	public TemporaryFolder	folder	= new TemporaryFolder();
+
+	private final File		a		= new File("test-a.R");
+	private final File		b		= new File("test-b.R");
+	private final File		c		= new File("test-c.R");
+	private final File		d		= new File("test-d.R");
+	private final File		e		= new File("test-e.R");
+
+	private StatusFile timings(String... entries)
+	{
+		StatusFile timings = StatusFile.load(new File(folder.getRoot(), "test.status"));
+		for (int i = 0; i < entries.length; i += 2)
+			timings.put("time." + entries[i], entries[i + 1]);
+		return timings;
+	}
+
+	@Test
+	public void assignsLongestFilesFirstToLeastLoadedShard()
+	{
+		StatusFile timings = timings("test-a.R", "1", "test-b.R", "8", "test-c.R", "3", "test-d.R", "5", "test-e.R", "2");
+		List<List<File>> shards = RTestMojo.balance(Arrays.asList(a, b, c, d, e), timings, 2);
+
+		// 8 -> 0; 5 -> 1; 3 -> 1 (5 < 8); 2 -> 0 (8 = 8); 1 -> 1 (8 < 10)
+		assertEquals(Arrays.asList(Arrays.asList(b, e), Arrays.asList(d, c, a)), shards);
+	}
+
+	@Test
+	public void assumesAverageDurationOfUnknownFiles()
+	{
+		StatusFile timings = timings("test-a.R", "6", "test-b.R", "2", "test-c.R", "not a number");
+		List<List<File>> shards = RTestMojo.balance(Arrays.asList(a, b, c), timings, 2);
+
+		// c lasts 4, the average of a and b, and joins b
+		assertEquals(Arrays.asList(Arrays.asList(a), Arrays.asList(c, b)), shards);
+	}
+
+	@Test
+	public void keepsInputOrderWithoutTimings()
+	{
+		List<List<File>> shards = RTestMojo.balance(Arrays.asList(a, b, c, d), timings(), 2);
+		assertEquals(Arrays.asList(Arrays.asList(a, c), Arrays.asList(b, d)), shards);
+	}
+
+	@Test
+	public void usesNoMoreShardsThanFiles()
+	{
+		assertEquals(2, RTestMojo.balance(Arrays.asList(a, b), timings(), 8).size());
+		assertEquals(1, RTestMojo.balance(Arrays.asList(a, b), timings(), 0).size());
+		assertEquals(Arrays.asList(Arrays.asList()), RTestMojo.balance(Arrays.<File> asList(), timings(), 4));
+	}
+}
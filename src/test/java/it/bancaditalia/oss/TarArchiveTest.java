@@ -0,0 +1,163 @@
+package it.bancaditalia.oss;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TarArchiveTest
+{
+	private static final Charset	UTF8	= Charset.forName("UTF-8");
+	private static final Pattern	ALL		= Pattern.compile(".*");
+
+	@Rule
+	public TemporaryFolder			folder	= new TemporaryFolder();
+
+	/**
+	 * Writes an entry of an uncompressed archive as GNU tar does, with a long name entry for names over 100 bytes.
+	 */
+	private static void entry(OutputStream out, String name, char type, int mode, long time, String contents) throws IOException
+	{
+		byte nameBytes[] = name.getBytes(UTF8);
+		if (nameBytes.length > 100)
+		{
+			entry(out, "././@LongLink", 'L', 0644, 0, name + "\0");
+			nameBytes = Arrays.copyOf(nameBytes, 100);
+		}
+
+		byte data[] = contents.getBytes(UTF8);
+		byte header[] = new byte[512];
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		put(header, 100, String.format("%07o", mode));
+		put(header, 124, String.format("%011o", data.length));
+		put(header, 136, String.format("%011o", time));
+		header[156] = (byte) type;
+		put(header, 257, "ustar  ");
+		put(header, 265, "someone");
+		out.write(header);
+		out.write(data);
+		out.write(new byte[(512 - data.length % 512) % 512]);
+	}
+
+	private static void put(byte header[], int offset, String value)
+	{
+		byte bytes[] = value.getBytes(UTF8);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+
+	private byte[] normalize(String... entries) throws IOException
+	{
+		File tar = folder.newFile();
+		try (OutputStream out = new FileOutputStream(tar))
+		{
+			for (int i = 0; i < entries.length; i += 2)
+				if (entries[i].endsWith("/"))
+					entry(out, entries[i], '5', 0775, 1234567890L + i, "");
+				else
+					entry(out, entries[i], '0', entries[i].endsWith(".sh") ? 0775 : 0664, 1234567890L + i, entries[i + 1]);
+			out.write(new byte[1024]);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TarArchive.normalize(tar, out, 0);
+		return out.toByteArray();
+	}
+
+	private Map<String, byte[]> read(byte normalized[]) throws IOException
+	{
+		File archive = folder.newFile();
+		try (OutputStream out = new GZIPOutputStream(new FileOutputStream(archive)))
+		{
+			out.write(normalized);
+		}
+		return TarArchive.readEntries(archive, ALL);
+	}
+
+	private static String string(byte archive[], int offset, int length)
+	{
+		int end = offset;
+		while (end < offset + length && archive[end] != 0)
+			end++;
+		return new String(archive, offset, end - offset, UTF8);
+	}
+
+	@Test
+	public void sortsEntriesAndPadsToWholeRecords() throws IOException
+	{
+		byte normalized[] = normalize("pkg/", "", "pkg/R/", "", "pkg/R/b.R", "b <- 2\n", "pkg/DESCRIPTION", "Package: pkg\n", "pkg/R/a.R",
+				"a <- 1\n", "pkg/configure.sh", "exit 0\n");
+
+		assertEquals(0, normalized.length % (20 * 512));
+		assertEquals(Arrays.asList("pkg/DESCRIPTION", "pkg/R/a.R", "pkg/R/b.R", "pkg/configure.sh"), new ArrayList<>(read(normalized).keySet()));
+
+		// Directories come before their contents, with normalized modes, times and owners
+		assertEquals("pkg/", string(normalized, 0, 100));
+		assertEquals("0000755", string(normalized, 100, 8));
+		assertEquals("00000000000", string(normalized, 136, 12));
+		assertEquals("", string(normalized, 265, 32));
+		assertEquals("pkg/DESCRIPTION", string(normalized, 512, 100));
+		assertEquals("0000644", string(normalized, 612, 8));
+	}
+
+	@Test
+	public void isIndependentOfEntryOrderAndTimes() throws IOException
+	{
+		byte first[] = normalize("pkg/", "", "pkg/R/a.R", "a <- 1\n", "pkg/NAMESPACE", "export(a)\n");
+		byte second[] = normalize("pkg/NAMESPACE", "export(a)\n", "pkg/R/a.R", "a <- 1\n", "pkg/", "");
+		assertArrayEquals(first, second);
+	}
+
+	@Test
+	public void replacesWholePackagedField() throws IOException
+	{
+		byte normalized[] = normalize("pkg/DESCRIPTION", "Package: pkg\nPackaged: 2024-05-06 07:08:09 UTC; someone\n  on a long host name\nBuilt: R 4.4.0\n");
+		assertEquals("Package: pkg\nPackaged: 1970-01-01 00:00:00 UTC; r-maven-plugin\nBuilt: R 4.4.0\n",
+				new String(read(normalized).get("pkg/DESCRIPTION"), UTF8));
+	}
+
+	@Test
+	public void splitsLongNamesIntoUstarPrefix() throws IOException
+	{
+		String dir = "pkg/inst/" + repeat('d', 80);
+		String name = dir + "/" + repeat('f', 60) + ".txt";
+		byte normalized[] = normalize(name, "contents");
+
+		assertEquals(dir, string(normalized, 345, 155));
+		assertEquals(repeat('f', 60) + ".txt", string(normalized, 0, 100));
+		assertEquals('0', normalized[156]);
+		assertEquals("contents", new String(read(normalized).get(name), UTF8));
+	}
+
+	@Test
+	public void usesLongLinkForUnsplittableNames() throws IOException
+	{
+		String name = "pkg/inst/" + repeat('f', 120) + ".txt";
+		byte normalized[] = normalize(name, "contents");
+
+		assertEquals("././@LongLink", string(normalized, 0, 100));
+		assertEquals('L', normalized[156]);
+		assertEquals(name, string(normalized, 512, 512));
+		assertEquals("contents", new String(read(normalized).get(name), UTF8));
+	}
+
+	private static String repeat(char c, int count)
+	{
+		char chars[] = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}